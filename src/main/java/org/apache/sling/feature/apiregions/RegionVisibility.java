@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions;
+
+import java.util.Set;
+
+import org.osgi.annotation.versioning.ProviderType;
+import org.osgi.framework.Bundle;
+
+/**
+ * Query the API Regions visibility of packages without involving the resolver.
+ * The answers are the ones the API Regions resolver hook gives for the current
+ * configuration. This service is registered while API Regions are enforced.
+ */
+@ProviderType
+public interface RegionVisibility {
+    /**
+     * Check whether a package exported by the provider bundle is visible to the requirer bundle.
+     * @param requirer The bundle importing the package.
+     * @param packageName The name of the package.
+     * @param provider The bundle exporting the package.
+     * @return {@code true} if the resolver hook allows the requirer to wire to the package
+     * of the provider.
+     */
+    boolean isVisible(Bundle requirer, String packageName, Bundle provider);
+
+    /**
+     * Obtain the packages that features with API Regions make visible to a bundle. These
+     * are the packages exported in the regions of the bundle, their ancestor regions and
+     * the global region. Packages of bundles that are not in a feature with API Regions
+     * and packages of the features of the bundle itself are visible too, but not listed.
+     * Wildcard entries such as {@code com.acme.api.*} are returned as they are declared.
+     * @param requirer The bundle.
+     * @return The visible packages, unmodifiable.
+     */
+    Set<String> visiblePackages(Bundle requirer);
+}
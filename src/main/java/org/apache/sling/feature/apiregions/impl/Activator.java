@@ -18,6 +18,9 @@
  */
 package org.apache.sling.feature.apiregions.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
@@ -27,10 +30,17 @@ import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.sling.feature.apiregions.RegionVisibility;
 import org.osgi.annotation.bundle.Header;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -61,13 +71,22 @@ public class Activator implements BundleActivator, FrameworkListener {
 
     static final String DISABLE_PROPERTY_NAME = "org.apache.sling.feature.apiregions.disable";
 
+    static final String SLOW_CALL_THRESHOLD_PROPERTY_NAME = "org.apache.sling.feature.apiregions.slowcall.threshold";
+
+    static final String MBEAN_NAME = "org.apache.sling.feature.apiregions:type=RegionEnforcement";
+
     static final Logger LOG = Logger.getLogger(ResolverHookImpl.class.getName());
 
     BundleContext bundleContext;
     ServiceRegistration<ResolverHookFactory> hookRegistration;
     ServiceRegistration<RegionPrinter> webconsoleRegistration;
+    ServiceRegistration<RegionVisibility> visibilityRegistration;
 
     RegionConfiguration configuration;
+    RegionEnforcementStats stats;
+    RegionEnforcer enforcer;
+    HookSettings settings;
+    ObjectName mbeanName;
 
     ServiceTracker<Object, Object> configAdminTracker;
 
@@ -86,6 +105,7 @@ public class Activator implements BundleActivator, FrameworkListener {
         registerHook();
 
         registerWebconsoleStatus();
+        registerMBean();
         this.configAdminTracker =
                 new ServiceTracker<>(context, CONFIG_ADMIN_CLASS_NAME, new ServiceTrackerCustomizer<Object, Object>() {
 
@@ -121,15 +141,24 @@ public class Activator implements BundleActivator, FrameworkListener {
 
         if (configuration != null) {
             configuration.storeLocationToConfigMap(context);
+            saveDecisions();
+            configuration.close();
         }
         if (this.configAdminTracker != null) {
             this.configAdminTracker.close();
         }
+        unregisterMBean();
     }
 
     private void createConfiguration() {
         try {
             this.configuration = new RegionConfiguration(bundleContext);
+
+            String refresh = bundleContext.getProperty(RegionConstants.REFRESH_BUNDLES);
+            if ("true".equals(refresh) || "log".equals(refresh)) {
+                this.configuration.setUpdateListener(
+                        new RefreshPlanner(bundleContext, this.configuration, "true".equals(refresh)));
+            }
         } catch (Exception e) {
             LOG.log(Level.SEVERE, "Problem activating API Regions runtime enforcement component", e);
         }
@@ -145,9 +174,54 @@ public class Activator implements BundleActivator, FrameworkListener {
             return; // Component not enabled
         }
 
-        RegionEnforcer enforcer = new RegionEnforcer(this.configuration);
+        enforcer = new RegionEnforcer(this.configuration, getStats(), getSettings());
+        if (Boolean.parseBoolean(bundleContext.getProperty(RegionConstants.PERSIST_DECISIONS))) {
+            loadDecisions();
+        }
         hookRegistration = bundleContext.registerService(
                 ResolverHookFactory.class, enforcer, this.configuration.getRegistrationProperties());
+        visibilityRegistration = bundleContext.registerService(
+                RegionVisibility.class,
+                new RegionVisibilityImpl(this.configuration),
+                this.configuration.getRegistrationProperties());
+    }
+
+    private void loadDecisions() {
+        enforcer.enablePersistence(id -> {
+            Bundle bundle = bundleContext.getBundle(id);
+            return bundle != null ? bundle.getLocation() : null;
+        });
+
+        File file = bundleContext.getBundle().getDataFile(DecisionStore.FILE_NAME);
+        if (file != null && file.exists()) {
+            try {
+                enforcer.setPendingDecisions(DecisionStore.load(file));
+            } catch (IOException e) {
+                // Start without the decisions of the previous run
+                LOG.log(Level.WARNING, "Unable to load " + DecisionStore.FILE_NAME + ", it is removed", e);
+                file.delete();
+            }
+        }
+    }
+
+    private void saveDecisions() {
+        // The decisions of the previous run are kept if the configuration is still loading in the background
+        if (enforcer == null || !enforcer.isPersistent() || !configuration.isLoaded()) return;
+
+        File file = bundleContext.getBundle().getDataFile(DecisionStore.FILE_NAME);
+        if (file == null) {
+            LOG.warning("Cannot store " + DecisionStore.FILE_NAME + " Persistence not supported by this framework.");
+            return;
+        }
+        try {
+            int count = enforcer.saveDecisions(file);
+            if (count < 0 && file.exists()) {
+                // The decisions of the previous run are outdated
+                file.delete();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to store " + DecisionStore.FILE_NAME, e);
+        }
     }
 
     synchronized void registerWebconsoleStatus() {
@@ -157,7 +231,7 @@ public class Activator implements BundleActivator, FrameworkListener {
         }
 
         LOG.info("Registering region printer");
-        RegionPrinter printer = new RegionPrinter(bundleContext, configuration);
+        RegionPrinter printer = new RegionPrinter(bundleContext, configuration, getStats());
 
         final Dictionary<String, String> serviceProps = new Hashtable<>();
         serviceProps.put("felix.webconsole.label", RegionPrinter.PATH);
@@ -167,10 +241,94 @@ public class Activator implements BundleActivator, FrameworkListener {
         webconsoleRegistration = bundleContext.registerService(RegionPrinter.class, printer, serviceProps);
     }
 
+    private long getSlowCallThresholdNanos() {
+        String threshold = bundleContext.getProperty(SLOW_CALL_THRESHOLD_PROPERTY_NAME);
+        if (threshold != null) {
+            try {
+                long millis = Long.parseLong(threshold.trim());
+                if (millis >= 0) {
+                    return TimeUnit.MILLISECONDS.toNanos(millis);
+                }
+            } catch (NumberFormatException e) {
+                // handled below
+            }
+            LOG.log(
+                    Level.WARNING,
+                    "Ignoring invalid value for " + SLOW_CALL_THRESHOLD_PROPERTY_NAME + ": " + threshold);
+        }
+        return Long.MAX_VALUE; // Disabled
+    }
+
+    synchronized HookSettings getSettings() {
+        if (settings == null) {
+            settings = HookSettings.defaults(getSlowCallThresholdNanos());
+        }
+        return settings;
+    }
+
+    /**
+     * Apply the settings of the runtime configuration to the running hook. Settings that
+     * are not in the configuration return to their defaults.
+     * @param props The configuration properties, or {@code null} if there is no configuration
+     */
+    synchronized void applySettings(Dictionary<?, ?> props) {
+        settings = HookSettings.defaults(getSlowCallThresholdNanos()).with(props);
+        if (enforcer != null) {
+            enforcer.applySettings(settings);
+        } else {
+            getStats().applySettings(settings);
+        }
+        LOG.log(Level.FINE, "API Regions hook settings: {0}", settings);
+    }
+
+    synchronized RegionEnforcementStats getStats() {
+        if (stats == null) {
+            stats = new RegionEnforcementStats(configuration);
+        }
+        return stats;
+    }
+
+    synchronized void registerMBean() {
+        if (mbeanName != null) {
+            return; // Already registered
+        }
+
+        try {
+            String name = MBEAN_NAME;
+            // Several frameworks can run in one JVM, qualify the name with the framework to keep it unique
+            String uuid = bundleContext.getProperty(Constants.FRAMEWORK_UUID);
+            if (uuid != null) {
+                name += ",framework=" + ObjectName.quote(uuid);
+            }
+            ObjectName on = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new StandardMBean(getStats(), RegionEnforcementStatsMBean.class), on);
+            mbeanName = on;
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Problem registering API Regions MBean", e);
+        }
+    }
+
+    synchronized void unregisterMBean() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Problem unregistering API Regions MBean", e);
+            }
+            mbeanName = null;
+        }
+    }
+
     synchronized void unregisterHook() {
         if (hookRegistration != null) {
             hookRegistration.unregister();
             hookRegistration = null;
+            enforcer = null;
+        }
+        if (visibilityRegistration != null) {
+            visibilityRegistration.unregister();
+            visibilityRegistration = null;
         }
     }
 
@@ -229,6 +387,7 @@ public class Activator implements BundleActivator, FrameworkListener {
                     }
                     if ("updated".equals(method.getName()) && args.length == 1) {
                         Object arg = args[0];
+                        applySettings(arg instanceof Dictionary ? (Dictionary<?, ?>) arg : null);
                         if (arg == null) {
                             registerHook();
                             registerWebconsoleStatus();
@@ -313,10 +472,10 @@ public class Activator implements BundleActivator, FrameworkListener {
                                         @SuppressWarnings("unchecked")
                                         final Dictionary<String, Object> props = (Dictionary<String, Object>)
                                                 cfgGetPropertiesMethod.invoke(cfg, (Object[]) null);
-                                        configuration.setConfig(pid, props);
+                                        configuration.setConfigAsync(pid, props);
                                     } else if (eventType.equals(2)) {
                                         // delete
-                                        configuration.removeConfig(pid);
+                                        configuration.removeConfigAsync(pid);
                                     }
                                 }
                             }
@@ -324,17 +483,20 @@ public class Activator implements BundleActivator, FrameworkListener {
                         }
                     });
             final ServiceRegistration<?> reg = bundleContext.registerService(CFG_LISTENER_CLASS_NAME, msf, null);
-            // get existing configurations
+            // get existing configurations, they are applied in a single update
             final Object result = caListConfigcMethod.invoke(cfgAdmin, "(service.factoryPid=" + FACTORY_PID + ")");
             if (result != null) {
+                CompletableFuture<Long> update = null;
                 for (int i = 0; i < Array.getLength(result); i++) {
                     final Object cfg = Array.get(result, i);
                     final String pid = (String) cfgGetPidMethod.invoke(cfg, (Object[]) null);
                     @SuppressWarnings("unchecked")
                     final Dictionary<String, Object> props =
                             (Dictionary<String, Object>) cfgGetPropertiesMethod.invoke(cfg, (Object[]) null);
-                    configuration.setConfig(pid, props);
+                    update = configuration.setConfigAsync(pid, props);
                 }
+                // Don't wait for the properties files that are loaded in the background
+                if (update != null && !configuration.isLoadInBackground()) update.join();
             }
             return reg;
 
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.feature.apiregions.impl.RegionConfiguration.Snapshot;
+import org.osgi.framework.Version;
+
+/**
+ * Evaluates many package requirements against the configuration in one pass, giving the
+ * same result as the resolver hook would give for each of them. This is meant for tooling
+ * that checks a complete deployment.<p>
+ *
+ * Requirements are grouped by the features of the requirer and the package, and decided with
+ * the same {@link RegionDecision} rules as the resolver hook. The covering region per distinct
+ * set of candidate features is shared within a group. An earlier version intersected bit sets of
+ * the region memberships of requirers and providers instead. It was replaced because the hook's
+ * rules are not a plain intersection: candidates from the system bundle or the requiring bundle,
+ * providers in no feature, regions that are not enforced and the pruning of global candidates in
+ * favour of more specific ones gave results that differed from the hook. Sharing the covering
+ * region within a group keeps the saving of deciding each combination once. <p>
+ *
+ * All batches are evaluated against the snapshot of the configuration that was current when the
+ * evaluator was created, so that a rebuild of the configuration does not mix two generations
+ * in one result. Bundles are identified by their location if the configuration associates it with
+ * a symbolic name and version, otherwise by their own symbolic name and version. Instances are thread
+ * safe, so batches can be evaluated concurrently.
+ */
+class BatchEvaluator {
+    private final RegionConfiguration configuration;
+    final Snapshot snapshot;
+
+    BatchEvaluator(RegionConfiguration configuration) {
+        this.configuration = configuration;
+        this.snapshot = configuration.getSnapshot();
+    }
+
+    /**
+     * Evaluate a batch of requirements.
+     * @param requirements The requirements.
+     * @return A bit set with one bit per candidate over all requirements, in iteration order.
+     * A bit is set if the resolver hook keeps the candidate.
+     */
+    BitSet evaluate(Collection<Requirement> requirements) {
+        final Snapshot s = snapshot;
+
+        // Group the requirements by the features of the requirer and the package
+        Map<BundleFeatures, Map<String, List<Integer>>> groups = new IdentityHashMap<>();
+        List<Requirement> reqs = new ArrayList<>(requirements);
+        int[] offsets = new int[reqs.size()];
+        int offset = 0;
+        for (int i = 0; i < reqs.size(); i++) {
+            Requirement req = reqs.get(i);
+            offsets[i] = offset;
+            offset += req.candidates.size();
+
+            groups.computeIfAbsent(getBundleFeatures(s, req.requirer), k -> new HashMap<>())
+                    .computeIfAbsent(req.packageName, k -> new ArrayList<>())
+                    .add(i);
+        }
+
+        BitSet result = new BitSet(offset);
+        for (Map.Entry<BundleFeatures, Map<String, List<Integer>>> byFeatures : groups.entrySet()) {
+            BundleFeatures reqFeatures = byFeatures.getKey();
+            for (Map.Entry<String, List<Integer>> byPackage : byFeatures.getValue().entrySet()) {
+                // BundleFeatures has identity equality
+                Map<BundleFeatures, String> coverage = new IdentityHashMap<>();
+                for (int i : byPackage.getValue()) {
+                    evaluate(s, reqs.get(i), reqFeatures, coverage, result, offsets[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void evaluate(
+            Snapshot s,
+            Requirement req,
+            BundleFeatures reqFeatures,
+            Map<BundleFeatures, String> coverage,
+            BitSet result,
+            int offset) {
+        long[] capBundleIDs = new long[req.candidates.size()];
+        BundleFeatures[] capFeatures = new BundleFeatures[capBundleIDs.length];
+        for (int i = 0; i < capBundleIDs.length; i++) {
+            BundleKey cap = req.candidates.get(i);
+            capBundleIDs[i] = cap.id;
+            capFeatures[i] = getBundleFeatures(s, cap);
+        }
+
+        String[] regions = RegionDecision.decide(
+                s, req.packageName, req.requirer.id, reqFeatures, capBundleIDs, capFeatures, coverage);
+        for (int i = 0; i < capBundleIDs.length; i++) {
+            if (regions == null || regions[i] != ResolverHookImpl.NOT_COVERED) result.set(offset + i);
+        }
+    }
+
+    /**
+     * Obtain the compiled features of a bundle in the same way as the resolver hook does.
+     * @param bundle The bundle
+     * @return The features in the snapshot of the evaluator, never {@code null}.
+     */
+    BundleFeatures getBundleFeatures(BundleKey bundle) {
+        return getBundleFeatures(snapshot, bundle);
+    }
+
+    private BundleFeatures getBundleFeatures(Snapshot s, BundleKey bundle) {
+        Map.Entry<String, Version> bsnVer = null;
+        if (bundle.location != null) {
+            bsnVer = configuration.getBundleLocationConfigMap().get(bundle.location);
+        }
+        return s.getBundleFeatures(bsnVer != null ? bsnVer : bundle.bsnVer);
+    }
+
+    /**
+     * A bundle as known to the configuration.
+     */
+    static final class BundleKey {
+        final long id;
+        final String location;
+        final Map.Entry<String, Version> bsnVer;
+
+        BundleKey(long id, String bsn, Version version) {
+            this(id, null, bsn, version);
+        }
+
+        BundleKey(long id, String location, String bsn, Version version) {
+            this.id = id;
+            this.location = location;
+            this.bsnVer = new AbstractMap.SimpleEntry<>(bsn, version);
+        }
+    }
+
+    /**
+     * A package requirement and the candidates that provide the package.
+     */
+    static final class Requirement {
+        final BundleKey requirer;
+        final String packageName;
+        final List<BundleKey> candidates;
+
+        Requirement(BundleKey requirer, String packageName, List<BundleKey> candidates) {
+            this.requirer = requirer;
+            this.packageName = packageName;
+            this.candidates = candidates;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * The compiled region information of a set of features. It is computed once per
+ * configuration generation and shared by all bundles that are in the same features,
+ * so that evaluating a requirement does not need to collect features and regions again.
+ */
+class BundleFeatures {
+    /** The features, unmodifiable. */
+    final Set<String> features;
+
+    /** The regions of the features, {@code null} if none of the features opted into API Regions. */
+    final Set<String> bareRegions;
+
+    /** The regions of the features plus the default regions, unmodifiable. */
+    final Set<String> regions;
+
+    /** The regions plus their ancestors in the global region order. */
+    final String[] regionsAndAncestors;
+
+    /** Whether any of the regions or their ancestors is enforced. */
+    final boolean enforced;
+
+    /** Whether there are no features and no default regions, so that API Regions never limit the bundle. */
+    final boolean unmanaged;
+
+    private final Map<String, Set<String>> regionPackageMap;
+    private volatile Set<String> visiblePackages;
+
+    BundleFeatures(
+            Set<String> features,
+            Map<String, List<String>> featureRegionMap,
+            Map<String, Set<String>> regionPackageMap,
+            Set<String> defaultRegions,
+            List<String> globalRegionOrder,
+            Set<String> enforcedRegions) {
+        this.features = Collections.unmodifiableSet(features);
+        this.regionPackageMap = regionPackageMap;
+
+        Set<String> bare = null; // Null means: not opting into API Regions
+        for (String feature : features) {
+            List<String> fr = featureRegionMap.get(feature);
+            if (fr != null) {
+                if (bare == null) bare = new HashSet<>();
+                bare.addAll(fr);
+            }
+        }
+        this.bareRegions = bare == null ? null : Collections.unmodifiableSet(bare);
+
+        Set<String> regs = new HashSet<>(defaultRegions);
+        if (bare != null) regs.addAll(bare);
+        this.regions = Collections.unmodifiableSet(regs);
+
+        this.regionsAndAncestors = getRegionsAndAncestors(regs, globalRegionOrder);
+        this.enforced = isEnforced(regionsAndAncestors, enforcedRegions);
+        this.unmanaged = features.isEmpty() && regs.isEmpty();
+    }
+
+    private static boolean isEnforced(String[] regions, Set<String> enforcedRegions) {
+        if (enforcedRegions == null) return true; // All regions are enforced
+
+        for (String region : regions) {
+            if (enforcedRegions.contains(region)) return true;
+        }
+        return false;
+    }
+
+    // Get the a set of the regions plus their ancestors. They are obtained from the global region order.
+    private static String[] getRegionsAndAncestors(Set<String> regions, List<String> globalRegionOrder) {
+        Set<String> s = new HashSet<>();
+
+        for (String region : regions) {
+            s.add(region);
+
+            if (globalRegionOrder.contains(region)) {
+                for (String r : globalRegionOrder) {
+                    if (r.equals(region)) {
+                        break;
+                    }
+                    s.add(r);
+                }
+            } else {
+                Activator.LOG.log(
+                        Level.WARNING,
+                        "Global API Region order " + globalRegionOrder + " does not contain region: " + region);
+            }
+        }
+        return s.toArray(new String[s.size()]);
+    }
+
+    /**
+     * Obtain the packages that region-managed features make visible to these features:
+     * the packages of the regions and their ancestors, and the packages of the global region.
+     * The set is computed on first use and then retained.
+     * @return The visible packages, unmodifiable.
+     */
+    Set<String> getVisiblePackages() {
+        Set<String> packages = visiblePackages;
+        if (packages == null) {
+            Set<String> s = new HashSet<>();
+            for (String region : regionsAndAncestors) {
+                Set<String> rp = regionPackageMap.get(region);
+                if (rp != null) s.addAll(rp);
+            }
+            Set<String> global = regionPackageMap.get(RegionConstants.GLOBAL_REGION);
+            if (global != null) s.addAll(global);
+
+            packages = PackageSet.of(s);
+            visiblePackages = packages;
+        }
+        return packages;
+    }
+}
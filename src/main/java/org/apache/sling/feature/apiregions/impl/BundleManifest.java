@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+/**
+ * The package exports and imports of a bundle, as read from a manifest dump. A dump
+ * contains the main manifest sections of any number of bundles in manifest syntax,
+ * separated by empty lines. Only the {@code Bundle-SymbolicName}, {@code Bundle-Version},
+ * {@code Export-Package} and {@code Import-Package} headers are used.
+ */
+class BundleManifest {
+    final String symbolicName;
+    final Version version;
+    final Map<String, Version> exports = new LinkedHashMap<>();
+    final Map<String, VersionRange> imports = new LinkedHashMap<>();
+
+    BundleManifest(String symbolicName, Version version) {
+        this.symbolicName = symbolicName;
+        this.version = version;
+    }
+
+    /**
+     * Read a manifest dump.
+     * @param reader The reader to read the dump from.
+     * @return The manifests of the bundles, in the order of the dump. Sections without
+     * a {@code Bundle-SymbolicName} are skipped.
+     * @throws IOException If the dump cannot be read.
+     */
+    static List<BundleManifest> readAll(Reader reader) throws IOException {
+        List<BundleManifest> manifests = new ArrayList<>();
+        BufferedReader br = new BufferedReader(reader);
+
+        Map<String, String> headers = new HashMap<>();
+        String name = null;
+        StringBuilder value = new StringBuilder();
+        String line;
+        do {
+            line = br.readLine();
+            if (line != null && line.startsWith(" ")) {
+                // continuation line
+                value.append(line, 1, line.length());
+                continue;
+            }
+
+            if (name != null) {
+                headers.put(name, value.toString().trim());
+                name = null;
+            }
+
+            if (line == null || line.trim().isEmpty()) {
+                BundleManifest bm = fromHeaders(headers);
+                if (bm != null) manifests.add(bm);
+                headers.clear();
+            } else {
+                int idx = line.indexOf(':');
+                if (idx > 0) {
+                    name = line.substring(0, idx).trim();
+                    value.setLength(0);
+                    value.append(line, idx + 1, line.length());
+                }
+            }
+        } while (line != null);
+
+        return manifests;
+    }
+
+    private static BundleManifest fromHeaders(Map<String, String> headers) {
+        String bsn = headers.get("Bundle-SymbolicName");
+        if (bsn == null) return null;
+
+        List<List<String>> bsnClauses = parseHeader(bsn);
+        BundleManifest bm = new BundleManifest(
+                bsnClauses.get(0).get(0), Version.parseVersion(headers.get("Bundle-Version")));
+
+        String exports = headers.get("Export-Package");
+        if (exports != null) {
+            for (List<String> clause : parseHeader(exports)) {
+                Version v = Version.parseVersion(getParameter(clause, "version"));
+                for (String pkg : getPaths(clause)) {
+                    bm.exports.put(pkg, v);
+                }
+            }
+        }
+
+        String imports = headers.get("Import-Package");
+        if (imports != null) {
+            for (List<String> clause : parseHeader(imports)) {
+                String range = getParameter(clause, "version");
+                VersionRange vr = new VersionRange(range != null ? range : "0.0.0");
+                for (String pkg : getPaths(clause)) {
+                    bm.imports.put(pkg, vr);
+                }
+            }
+        }
+        return bm;
+    }
+
+    /**
+     * Split an OSGi header into its clauses and each clause into its parts. Quoted
+     * strings are honoured and the quotes are removed.
+     * @param header The header value.
+     * @return The clauses, each a list of paths and parameters.
+     */
+    static List<List<String>> parseHeader(String header) {
+        List<List<String>> clauses = new ArrayList<>();
+        List<String> clause = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < header.length(); i++) {
+            char c = header.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == ';' || c == ',')) {
+                clause.add(part.toString().trim());
+                part.setLength(0);
+                if (c == ',') {
+                    clauses.add(clause);
+                    clause = new ArrayList<>();
+                }
+            } else {
+                part.append(c);
+            }
+        }
+        clause.add(part.toString().trim());
+        clauses.add(clause);
+        return clauses;
+    }
+
+    private static List<String> getPaths(List<String> clause) {
+        List<String> paths = new ArrayList<>();
+        for (String part : clause) {
+            if (part.indexOf('=') < 0 && !part.isEmpty()) paths.add(part);
+        }
+        return paths;
+    }
+
+    private static String getParameter(List<String> clause, String name) {
+        for (String part : clause) {
+            int idx = part.indexOf('=');
+            if (idx > 0 && part.charAt(idx - 1) != ':' && name.equals(part.substring(0, idx).trim())) {
+                return part.substring(idx + 1).trim();
+            }
+        }
+        return null;
+    }
+}
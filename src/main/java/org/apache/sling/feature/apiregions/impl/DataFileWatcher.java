@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Watches the properties files of a configuration that are located in the file system and
+ * reloads a file when it is modified or replaced. A file is only reloaded once it has settled,
+ * that is when no further events arrived for the settle time and its size and modification
+ * time did not change in that time, so that a file that is written in several steps is not
+ * read partially. Files that are loaded from other kinds of locations are not watched.
+ */
+class DataFileWatcher implements Runnable {
+    static final long SETTLE_MILLIS = 500;
+
+    private final RegionConfiguration configuration;
+    private final long settleMillis;
+    private final WatchService watchService;
+    // Directory to file name in the directory to properties file name
+    private final Map<Path, Map<Path, String>> watched = new HashMap<>();
+    // Properties file name to file
+    private final Map<String, Path> files = new HashMap<>();
+
+    DataFileWatcher(RegionConfiguration configuration, Map<String, URI> dataFiles) throws IOException {
+        this(configuration, dataFiles, SETTLE_MILLIS);
+    }
+
+    DataFileWatcher(RegionConfiguration configuration, Map<String, URI> dataFiles, long settleMillis)
+            throws IOException {
+        this.configuration = configuration;
+        this.settleMillis = settleMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        try {
+            for (Map.Entry<String, URI> entry : dataFiles.entrySet()) {
+                URI uri = entry.getValue();
+                if (!"file".equals(uri.getScheme())) continue;
+
+                Path file = Paths.get(uri).toAbsolutePath();
+                Path dir = file.getParent();
+                if (!watched.containsKey(dir)) {
+                    dir.register(
+                            watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                    watched.put(dir, new HashMap<>());
+                }
+                watched.get(dir).put(file.getFileName(), entry.getKey());
+                files.put(entry.getKey(), file);
+            }
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+
+        Thread thread = new Thread(this, "API Regions properties file watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                // An editor often produces several events for one change, reload each file once
+                Set<String> changed = new LinkedHashSet<>();
+                addChanged(watchService.take(), changed);
+
+                // Wait until the changed files have settled
+                Map<String, List<Object>> states = getStates(changed);
+                while (true) {
+                    WatchKey key = watchService.poll(settleMillis, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        addChanged(key, changed);
+                        continue;
+                    }
+                    Map<String, List<Object>> current = getStates(changed);
+                    if (current.equals(states)) break;
+                    states = current;
+                }
+
+                for (String name : changed) {
+                    try {
+                        configuration.reloadDataFile(name);
+                    } catch (IOException | RuntimeException e) {
+                        Activator.LOG.log(Level.WARNING, "Unable to reload API Regions properties file " + name, e);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed, stop watching
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void addChanged(WatchKey key, Set<String> changed) {
+        Map<Path, String> names = watched.get((Path) key.watchable());
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed.addAll(names.values());
+            } else {
+                String name = names.get((Path) event.context());
+                if (name != null) changed.add(name);
+            }
+        }
+        key.reset();
+    }
+
+    // The size and modification time of the files, null for a file that cannot be read
+    private Map<String, List<Object>> getStates(Set<String> names) {
+        Map<String, List<Object>> states = new HashMap<>();
+        for (String name : names) {
+            Path file = files.get(name);
+            try {
+                states.put(name, Arrays.asList(Files.size(file), Files.getLastModifiedTime(file)));
+            } catch (IOException e) {
+                states.put(name, null);
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Stop watching.
+     */
+    void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            Activator.LOG.log(Level.FINE, "Problem closing the properties file watcher", e);
+        }
+    }
+}
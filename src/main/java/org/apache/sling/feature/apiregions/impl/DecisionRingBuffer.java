@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size, lock-free ring buffer of recent package wiring decisions. Each
+ * decision is stored as a few primitive values and the package name in
+ * preallocated arrays, so recording a decision does not allocate. The package
+ * name is kept by reference, so that only the names of the retained decisions
+ * are held. Readers validate every slot against
+ * its sequence stamp and skip slots that are being overwritten concurrently.
+ */
+class DecisionRingBuffer {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int BUNDLES_PER_SLOT = 3;
+
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    // The sequence number of the decision held by each slot, -1 while empty or being written
+    private final AtomicLongArray stamps;
+    // requirer, removed and kept bundle id of each slot
+    private final AtomicLongArray bundles;
+    private final AtomicReferenceArray<String> packageNames;
+    private final AtomicIntegerArray regionIds;
+
+    DecisionRingBuffer(int capacity) {
+        // round up to a power of two so that the slot can be computed with a mask
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.stamps = new AtomicLongArray(size);
+        this.bundles = new AtomicLongArray(size * BUNDLES_PER_SLOT);
+        this.packageNames = new AtomicReferenceArray<>(size);
+        this.regionIds = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            stamps.set(i, -1);
+        }
+    }
+
+    /**
+     * Record a decision.
+     * @param requirer The bundle id of the requirement
+     * @param packageName The package
+     * @param removed The bundle id of the removed capability, or {@code -1} if nothing was removed
+     * @param kept The bundle id of a kept capability, or {@code -1} if nothing was kept
+     * @param regionId The id of the region that allowed the kept capability, or {@code -1}
+     */
+    void record(long requirer, String packageName, long removed, long kept, int regionId) {
+        long seq = cursor.getAndIncrement();
+        int slot = (int) (seq & mask);
+        stamps.set(slot, -1);
+        int b = slot * BUNDLES_PER_SLOT;
+        bundles.lazySet(b, requirer);
+        bundles.lazySet(b + 1, removed);
+        bundles.lazySet(b + 2, kept);
+        packageNames.lazySet(slot, packageName);
+        regionIds.lazySet(slot, regionId);
+        stamps.set(slot, seq);
+    }
+
+    /**
+     * Visit the decisions currently held by the buffer, newest first.
+     * @param visitor The visitor
+     */
+    void visit(Visitor visitor) {
+        long end = cursor.get();
+        long start = Math.max(0, end - capacity());
+        for (long seq = end - 1; seq >= start; seq--) {
+            int slot = (int) (seq & mask);
+            if (stamps.get(slot) != seq) continue;
+
+            int b = slot * BUNDLES_PER_SLOT;
+            long requirer = bundles.get(b);
+            long removed = bundles.get(b + 1);
+            long kept = bundles.get(b + 2);
+            String packageName = packageNames.get(slot);
+            int regionId = regionIds.get(slot);
+
+            if (stamps.get(slot) != seq) continue; // overwritten while reading
+
+            visitor.visit(seq, requirer, packageName, removed, kept, regionId);
+        }
+    }
+
+    /**
+     * @return The total number of decisions recorded.
+     */
+    long getRecordCount() {
+        return cursor.get();
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    interface Visitor {
+        void visit(long sequence, long requirer, String packageName, long removed, long kept, int regionId);
+    }
+}
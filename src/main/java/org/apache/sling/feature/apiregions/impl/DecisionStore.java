@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongFunction;
+
+/**
+ * The decisions of a {@link VisibilityCache} in a compact binary form, so that they can be
+ * kept in the bundle data area between two runs of the framework. The decisions are only
+ * valid for the configuration they were made with, they are stored with its checksum.
+ * Bundle ids are stored with the location of the bundle, decisions that involve a bundle
+ * id that now belongs to another bundle are not used. <p>
+ *
+ * The file holds a header, the bundles, package names and region names once, and then
+ * each decision as four indexes into those tables. The file is written next to its final
+ * location and then moved into place, so that a crash while saving leaves the previous file.
+ */
+final class DecisionStore {
+    static final String FILE_NAME = "decisions.bin";
+
+    private static final int MAGIC = 0x41524443; // ARDC
+    private static final int FORMAT_VERSION = 1;
+
+    // Region indexes of the values getCoveringRegion() returns that are not region names
+    private static final int NO_REGION = -1;
+    private static final int NOT_COVERED = -2;
+
+    /** The checksum of the configuration the decisions were made with. */
+    final long checksum;
+
+    private final long[] bundleIds;
+    private final String[] locations;
+    private final String[] packageNames;
+    private final String[] regionNames;
+    // Four indexes per decision: requirer, package, provider and region
+    private final int[] decisions;
+
+    private DecisionStore(
+            long checksum,
+            long[] bundleIds,
+            String[] locations,
+            String[] packageNames,
+            String[] regionNames,
+            int[] decisions) {
+        this.checksum = checksum;
+        this.bundleIds = bundleIds;
+        this.locations = locations;
+        this.packageNames = packageNames;
+        this.regionNames = regionNames;
+        this.decisions = decisions;
+    }
+
+    /**
+     * @return The number of decisions.
+     */
+    int size() {
+        return decisions.length / 4;
+    }
+
+    /**
+     * Write the decisions of a cache to a file.
+     * @param file The file
+     * @param checksum The checksum of the configuration the decisions were made with
+     * @param cache The cache
+     * @param generation The generation of the configuration the decisions were made with
+     * @param bundleLocations Obtains the location of a bundle id, {@code null} if not installed
+     * @return The number of decisions written, {@code -1} if the cache holds another generation
+     * and nothing was written.
+     * @throws IOException If the file cannot be written.
+     */
+    static int save(
+            File file, long checksum, VisibilityCache cache, long generation, LongFunction<String> bundleLocations)
+            throws IOException {
+        final Map<Long, Integer> bundles = new HashMap<>();
+        final List<String> bundleLocationList = new ArrayList<>();
+        final List<Long> bundleIdList = new ArrayList<>();
+        final Map<String, Integer> packages = new HashMap<>();
+        final Map<String, Integer> regions = new HashMap<>();
+        final List<int[]> entries = new ArrayList<>();
+
+        boolean current = cache.visit(generation, (requirer, packageName, provider, region) -> {
+            int r = indexOf(requirer, bundles, bundleIdList, bundleLocationList, bundleLocations);
+            int p = indexOf(provider, bundles, bundleIdList, bundleLocationList, bundleLocations);
+            if (r < 0 || p < 0) return; // Uninstalled in the meantime
+
+            int reg;
+            if (region == null) {
+                reg = NO_REGION;
+            } else if (region == ResolverHookImpl.NOT_COVERED) {
+                reg = NOT_COVERED;
+            } else {
+                reg = regions.computeIfAbsent(region, k -> regions.size());
+            }
+            entries.add(new int[] {r, packages.computeIfAbsent(packageName, k -> packages.size()), p, reg});
+        });
+        if (!current) return -1;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(checksum);
+
+            out.writeInt(bundleIdList.size());
+            for (int i = 0; i < bundleIdList.size(); i++) {
+                out.writeLong(bundleIdList.get(i));
+                out.writeUTF(bundleLocationList.get(i));
+            }
+            writeTable(out, packages);
+            writeTable(out, regions);
+
+            out.writeInt(entries.size());
+            for (int[] entry : entries) {
+                for (int i : entry) {
+                    out.writeInt(i);
+                }
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        try {
+            Files.move(
+                    tmp.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmp.delete();
+        }
+        return entries.size();
+    }
+
+    private static int indexOf(
+            long bundleId,
+            Map<Long, Integer> bundles,
+            List<Long> ids,
+            List<String> locations,
+            LongFunction<String> bundleLocations) {
+        Integer idx = bundles.get(bundleId);
+        if (idx == null) {
+            String location = bundleLocations.apply(bundleId);
+            idx = location == null ? -1 : ids.size();
+            bundles.put(bundleId, idx);
+            if (location != null) {
+                ids.add(bundleId);
+                locations.add(location);
+            }
+        }
+        return idx;
+    }
+
+    private static void writeTable(DataOutputStream out, Map<String, Integer> table) throws IOException {
+        String[] names = new String[table.size()];
+        for (Map.Entry<String, Integer> entry : table.entrySet()) {
+            names[entry.getValue()] = entry.getKey();
+        }
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    /**
+     * Read decisions from a file. The counts and indexes in the file are checked, so that a
+     * damaged file is reported rather than put into a cache.
+     * @param file The file
+     * @return The decisions, or {@code null} if the file is not in the format of this version.
+     * @throws IOException If the file cannot be read or is damaged.
+     */
+    static DecisionStore load(File file) throws IOException {
+        final long length = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return null;
+
+            long checksum = in.readLong();
+            // An id and an empty location
+            int bundleCount = readCount(in, length, 10);
+            long[] bundleIds = new long[bundleCount];
+            String[] locations = new String[bundleCount];
+            for (int i = 0; i < bundleCount; i++) {
+                bundleIds[i] = in.readLong();
+                locations[i] = in.readUTF();
+            }
+            String[] packageNames = readTable(in, length);
+            String[] regionNames = readTable(in, length);
+
+            int[] decisions = new int[readCount(in, length, 16) * 4];
+            for (int i = 0; i < decisions.length; i += 4) {
+                decisions[i] = readIndex(in, 0, bundleCount);
+                decisions[i + 1] = readIndex(in, 0, packageNames.length);
+                decisions[i + 2] = readIndex(in, 0, bundleCount);
+                decisions[i + 3] = readIndex(in, NOT_COVERED, regionNames.length);
+            }
+            return new DecisionStore(checksum, bundleIds, locations, packageNames, regionNames, decisions);
+        }
+    }
+
+    private static String[] readTable(DataInputStream in, long length) throws IOException {
+        // An empty name
+        String[] names = new String[readCount(in, length, 2)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    // A count of entries of at least the given size each, which the file must be able to hold
+    private static int readCount(DataInputStream in, long length, int entrySize) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > length / entrySize) {
+            throw new IOException("Damaged " + FILE_NAME + ", invalid count " + count);
+        }
+        return count;
+    }
+
+    private static int readIndex(DataInputStream in, int min, int limit) throws IOException {
+        int index = in.readInt();
+        if (index < min || index >= limit) {
+            throw new IOException("Damaged " + FILE_NAME + ", invalid index " + index);
+        }
+        return index;
+    }
+
+    /**
+     * Put the decisions into a cache. Decisions that involve a bundle id which now has another
+     * location are skipped, and no more decisions are added than the cache can hold. The indexes
+     * were checked when the file was loaded.
+     * @param cache The cache
+     * @param generation The current configuration generation, which must have the checksum
+     * of these decisions
+     * @param bundleLocations Obtains the location of a bundle id, {@code null} if not installed
+     * @return The number of decisions added.
+     */
+    int importInto(VisibilityCache cache, long generation, LongFunction<String> bundleLocations) {
+        boolean[] valid = new boolean[bundleIds.length];
+        for (int i = 0; i < bundleIds.length; i++) {
+            valid[i] = Objects.equals(locations[i], bundleLocations.apply(bundleIds[i]));
+        }
+
+        int count = 0;
+        for (int i = 0; i < decisions.length; i += 4) {
+            int requirer = decisions[i];
+            int provider = decisions[i + 2];
+            if (!valid[requirer] || !valid[provider]) continue;
+            // More decisions would only evict the ones that were added
+            if (count >= cache.capacity()) break;
+
+            int region = decisions[i + 3];
+            cache.put(
+                    generation,
+                    bundleIds[requirer],
+                    packageNames[decisions[i + 1]],
+                    bundleIds[provider],
+                    region == NO_REGION
+                            ? null
+                            : region == NOT_COVERED ? ResolverHookImpl.NOT_COVERED : regionNames[region]);
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts how often regions and (requiring feature, providing feature) pairs caused
+ * candidates to be removed. Counts are kept in arrays indexed by interned ids: a
+ * plain array for regions and an open-addressing table keyed by the pair of
+ * feature ids for feature pairs. A {@code null} region or feature is counted
+ * under id {@code -1}. The feature ids are stored plus one in the pair keys, so that no
+ * pair, including the pair of two {@code null} features, has the key of an empty slot.
+ */
+class DenialCounters {
+    private static final long EMPTY = -1L;
+
+    private final StringIds regionIds;
+    private final StringIds featureIds;
+
+    // guarded by this
+    private long[] regionCounts = new long[16];
+    private long noRegionCount;
+    private long[] pairKeys;
+    private long[] pairCounts;
+    private int pairSize;
+
+    DenialCounters(StringIds regionIds, StringIds featureIds) {
+        this.regionIds = regionIds;
+        this.featureIds = featureIds;
+        initPairs(64);
+    }
+
+    private void initPairs(int capacity) {
+        pairKeys = new long[capacity];
+        Arrays.fill(pairKeys, EMPTY);
+        pairCounts = new long[capacity];
+        pairSize = 0;
+    }
+
+    synchronized void countRegion(String region) {
+        int id = regionIds.idOf(region);
+        if (id < 0) {
+            noRegionCount++;
+            return;
+        }
+        if (id >= regionCounts.length) {
+            regionCounts = Arrays.copyOf(regionCounts, Math.max(id + 1, regionCounts.length * 2));
+        }
+        regionCounts[id]++;
+    }
+
+    synchronized void countFeaturePair(String requiringFeature, String providingFeature) {
+        long key = ((featureIds.idOf(requiringFeature) + 1L) << 32)
+                | ((featureIds.idOf(providingFeature) + 1L) & 0xFFFFFFFFL);
+        if ((pairSize + 1) * 4 > pairKeys.length * 3) {
+            rehash();
+        }
+        int slot = findSlot(pairKeys, key);
+        if (pairKeys[slot] == EMPTY) {
+            pairKeys[slot] = key;
+            pairSize++;
+        }
+        pairCounts[slot]++;
+    }
+
+    private static int findSlot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = Long.hashCode(key * 0x9E3779B97F4A7C15L) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = pairKeys;
+        long[] oldCounts = pairCounts;
+        initPairs(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = findSlot(pairKeys, oldKeys[i]);
+                pairKeys[slot] = oldKeys[i];
+                pairCounts[slot] = oldCounts[i];
+                pairSize++;
+            }
+        }
+    }
+
+    /**
+     * Obtain the regions that caused the most removals.
+     * @param count The maximum number of regions to return
+     * @return Entries of the form {@code region=count}, highest count first
+     */
+    synchronized List<String> topRegions(int count) {
+        List<long[]> entries = new ArrayList<>();
+        for (int i = 0; i < regionCounts.length; i++) {
+            if (regionCounts[i] > 0) {
+                entries.add(new long[] {i, regionCounts[i]});
+            }
+        }
+        if (noRegionCount > 0) {
+            entries.add(new long[] {-1, noRegionCount});
+        }
+        List<String> result = new ArrayList<>();
+        for (long[] e : top(entries, count)) {
+            result.add(nameOf(regionIds, (int) e[0]) + "=" + e[1]);
+        }
+        return result;
+    }
+
+    /**
+     * Obtain the (requiring feature, providing feature) pairs that caused the most removals.
+     * @param count The maximum number of pairs to return
+     * @return Entries of the form {@code requiring -> providing=count}, highest count first
+     */
+    synchronized List<String> topFeaturePairs(int count) {
+        List<long[]> entries = new ArrayList<>();
+        for (int i = 0; i < pairKeys.length; i++) {
+            if (pairKeys[i] != EMPTY) {
+                entries.add(new long[] {pairKeys[i], pairCounts[i]});
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (long[] e : top(entries, count)) {
+            result.add(nameOf(featureIds, (int) (e[0] >>> 32) - 1) + " -> " + nameOf(featureIds, (int) e[0] - 1) + "="
+                    + e[1]);
+        }
+        return result;
+    }
+
+    private static List<long[]> top(List<long[]> entries, int count) {
+        entries.sort((a, b) -> Long.compare(b[1], a[1]));
+        return entries.subList(0, Math.max(0, Math.min(count, entries.size())));
+    }
+
+    private static String nameOf(StringIds ids, int id) {
+        String name = ids.nameOf(id);
+        return name != null ? name : "(none)";
+    }
+
+    synchronized void reset() {
+        Arrays.fill(regionCounts, 0);
+        noRegionCount = 0;
+        initPairs(64);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Limits how often the denial of a package to a requiring bundle is logged. The resolver
+ * repeats the same requirement many times while it searches for a solution, a denial that
+ * was logged less than the window ago is not logged again. It is still recorded in the
+ * statistics.
+ */
+class DenialLogLimiter {
+    // The entries are dropped as a whole when there are more
+    static final int MAX_ENTRIES = 10000;
+
+    private final long windowNanos;
+    private final ConcurrentMap<String, Long> lastLogged = new ConcurrentHashMap<>();
+
+    DenialLogLimiter(long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * Check whether a denial should be logged, and if so remember that it is logged now.
+     * @param requirer The bundle id of the requirement
+     * @param packageName The package
+     * @return {@code false} if the same denial was logged within the window.
+     */
+    boolean shouldLog(long requirer, String packageName) {
+        final long now = System.nanoTime();
+        final String key = requirer + ":" + packageName;
+        Long last = lastLogged.get(key);
+        if (last != null && now - last < windowNanos) return false;
+
+        if (lastLogged.size() >= MAX_ENTRIES) lastLogged.clear();
+        lastLogged.put(key, now);
+        return true;
+    }
+
+    long getWindowNanos() {
+        return windowNanos;
+    }
+}
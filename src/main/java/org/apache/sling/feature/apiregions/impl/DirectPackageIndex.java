@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SortedSet;
+
+/**
+ * A package index that is stored in a direct {@link ByteBuffer}, outside of the Java heap, so
+ * that very large indexes add neither to the old generation nor to the work of the garbage
+ * collector. The buffer holds an open-addressing table keyed by the String hash code, the hash
+ * code and offset per id, and the UTF-8 encoded names. Lookups compare the name with the encoded
+ * bytes directly and do not create objects.
+ */
+final class DirectPackageIndex implements PackageIndex {
+    // Layout: slots (id + 1 per slot, 0 is free), hashes per id, offsets per id, names.
+    // A name is stored as its length in bytes as an unsigned short, followed by the bytes.
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int slotCount; // A power of two, the table is at most half full
+    private final int hashesStart;
+    private final int offsetsStart;
+
+    private DirectPackageIndex(String[] names) {
+        this.size = names.length;
+        this.slotCount = Integer.highestOneBit(Math.max(1, size)) << 2;
+        this.hashesStart = slotCount * 4;
+        this.offsetsStart = hashesStart + size * 4;
+
+        byte[][] encoded = new byte[size][];
+        int length = offsetsStart + size * 4;
+        for (int i = 0; i < size; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > 0xFFFF)
+                throw new IllegalArgumentException("Package name too long: " + names[i].substring(0, 100));
+            length += 2 + encoded[i].length;
+        }
+
+        ByteBuffer b = ByteBuffer.allocateDirect(length);
+        int pos = offsetsStart + size * 4;
+        for (int i = 0; i < size; i++) {
+            int hash = names[i].hashCode();
+            int slot = slot(hash);
+            while (b.getInt(slot * 4) != 0) slot = (slot + 1) & (slotCount - 1);
+            b.putInt(slot * 4, i + 1);
+            b.putInt(hashesStart + i * 4, hash);
+            b.putInt(offsetsStart + i * 4, pos);
+
+            b.putShort(pos, (short) encoded[i].length);
+            pos += 2;
+            for (byte c : encoded[i]) {
+                b.put(pos++, c);
+            }
+        }
+        this.buffer = b;
+    }
+
+    /**
+     * Create an index.
+     * @param names The names, their iteration order must be the natural order.
+     * @return The index.
+     */
+    static DirectPackageIndex of(SortedSet<String> names) {
+        if (names.comparator() != null) throw new IllegalArgumentException("Names must be in natural order");
+        return of(names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * Create an index.
+     * @param names The names in natural order without duplicates.
+     * @return The index.
+     */
+    static DirectPackageIndex of(String[] names) {
+        return new DirectPackageIndex(names);
+    }
+
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (slotCount - 1);
+    }
+
+    @Override
+    public int idOf(String name) {
+        // Only absolute get methods are used, which do not change the state of the buffer
+        int hash = name.hashCode();
+        for (int slot = slot(hash); ; slot = (slot + 1) & (slotCount - 1)) {
+            int id = buffer.getInt(slot * 4) - 1;
+            if (id < 0) return -1;
+            if (buffer.getInt(hashesStart + id * 4) == hash && matches(buffer.getInt(offsetsStart + id * 4), name)) {
+                return id;
+            }
+        }
+    }
+
+    // Compare the name with the UTF-8 bytes at the offset, encoding the name as it goes
+    private boolean matches(int offset, String name) {
+        int pos = offset + 2;
+        int end = pos + (buffer.getShort(offset) & 0xFFFF);
+        for (int i = 0; i < name.length(); i++) {
+            int c = name.charAt(i);
+            if (c < 0x80) {
+                if (pos >= end || buffer.get(pos++) != c) return false;
+                continue;
+            }
+
+            int bytes;
+            if (c < 0x800) {
+                bytes = 2;
+            } else if (Character.isHighSurrogate((char) c)
+                    && i + 1 < name.length()
+                    && Character.isLowSurrogate(name.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, name.charAt(++i));
+                bytes = 4;
+            } else if (Character.isSurrogate((char) c)) {
+                // Unpaired surrogates are encoded as '?'
+                if (pos >= end || buffer.get(pos++) != '?') return false;
+                continue;
+            } else {
+                bytes = 3;
+            }
+            if (end - pos < bytes) return false;
+
+            int lead = bytes == 2 ? 0xC0 : bytes == 3 ? 0xE0 : 0xF0;
+            if ((buffer.get(pos++) & 0xFF) != (lead | (c >> (6 * (bytes - 1))))) return false;
+            for (int shift = 6 * (bytes - 2); shift >= 0; shift -= 6) {
+                if ((buffer.get(pos++) & 0xFF) != (0x80 | ((c >> shift) & 0x3F))) return false;
+            }
+        }
+        return pos == end;
+    }
+
+    @Override
+    public String get(int id) {
+        if (id < 0 || id >= size) throw new IndexOutOfBoundsException("Id: " + id);
+
+        int offset = buffer.getInt(offsetsStart + id * 4);
+        byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getEstimatedHeapUsage() {
+        // This object and the DirectByteBuffer with its cleaner
+        return 32 + 64 + 48;
+    }
+
+    @Override
+    public long getOffHeapUsage() {
+        return buffer.capacity();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * The settings of the resolver hooks that can be changed at runtime through the
+ * configuration of the {@code org.apache.sling.feature.apiregions.impl} PID. Instances
+ * are immutable, a change creates new settings that are applied as a whole.
+ */
+final class HookSettings {
+    static final String CACHE_SIZE = "cache.size";
+    static final String METRICS = "metrics";
+    static final String LOG_SUPPRESSION_WINDOW = "log.suppression.window";
+    static final String SLOW_CALL_THRESHOLD = "slowcall.threshold";
+    static final String DECISIONS_SIZE = "decisions.size";
+    // The value of the slow call threshold that disables the reports
+    static final String OFF = "off";
+
+    /**
+     * The number of packages in the dynamic import cache, {@code 0} disables the cache. The
+     * packages used least recently are evicted, the cache retains at least half of them.
+     */
+    final int cacheSize;
+
+    /** Whether the statistics are recorded. */
+    final boolean metrics;
+
+    /** The time in which a denial is not logged again, {@code 0} logs every denial. */
+    final long logSuppressionNanos;
+
+    /** The duration above which a call is reported, {@link Long#MAX_VALUE} if disabled. */
+    final long slowCallThresholdNanos;
+
+    /**
+     * The number of recent decisions that are retained, between {@code 1} and {@code 1048576}.
+     * The buffer rounds it up to a power of two.
+     */
+    final int decisionCapacity;
+
+    HookSettings(
+            int cacheSize,
+            boolean metrics,
+            long logSuppressionNanos,
+            long slowCallThresholdNanos,
+            int decisionCapacity) {
+        this.cacheSize = cacheSize;
+        this.metrics = metrics;
+        this.logSuppressionNanos = logSuppressionNanos;
+        this.slowCallThresholdNanos = slowCallThresholdNanos;
+        this.decisionCapacity = decisionCapacity;
+    }
+
+    /**
+     * Obtain the settings that apply if there is no configuration.
+     * @param slowCallThresholdNanos The slow call threshold from the framework properties
+     * @return The default settings.
+     */
+    static HookSettings defaults(long slowCallThresholdNanos) {
+        return new HookSettings(
+                VisibilityCache.DEFAULT_CAPACITY, true, 0, slowCallThresholdNanos, DecisionRingBuffer.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create the settings of a configuration. Settings that are not in the configuration
+     * and settings with invalid values keep the value of these settings.
+     * @param props The configuration properties, may be {@code null}
+     * @return The new settings.
+     */
+    HookSettings with(Dictionary<?, ?> props) {
+        if (props == null) return this;
+
+        Object metricsValue = props.get(METRICS);
+        return new HookSettings(
+                (int) Math.min(getLong(props, CACHE_SIZE, cacheSize), Integer.MAX_VALUE),
+                metricsValue != null ? Boolean.parseBoolean(metricsValue.toString().trim()) : metrics,
+                props.get(LOG_SUPPRESSION_WINDOW) != null
+                        ? TimeUnit.MILLISECONDS.toNanos(getLong(props, LOG_SUPPRESSION_WINDOW, 0))
+                        : logSuppressionNanos,
+                getSlowCallThresholdNanos(props),
+                (int) Math.max(1, Math.min(getLong(props, DECISIONS_SIZE, decisionCapacity), 1 << 20)));
+    }
+
+    // Disabling in the configuration also disables a threshold set in the framework properties
+    private long getSlowCallThresholdNanos(Dictionary<?, ?> props) {
+        Object value = props.get(SLOW_CALL_THRESHOLD);
+        if (value != null && OFF.equalsIgnoreCase(value.toString().trim())) return Long.MAX_VALUE;
+
+        long millis = getLong(props, SLOW_CALL_THRESHOLD, -1);
+        return millis >= 0 ? TimeUnit.MILLISECONDS.toNanos(millis) : slowCallThresholdNanos;
+    }
+
+    // A non-negative number, the default if the property is not set or invalid
+    private static long getLong(Dictionary<?, ?> props, String key, long defaultValue) {
+        Object value = props.get(key);
+        if (value == null) return defaultValue;
+
+        try {
+            long l = Long.parseLong(value.toString().trim());
+            if (l >= 0) return l;
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        Activator.LOG.log(Level.WARNING, "Ignoring invalid value for " + key + ": " + value);
+        return defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return CACHE_SIZE + "=" + cacheSize + ", " + METRICS + "=" + metrics + ", " + LOG_SUPPRESSION_WINDOW + "="
+                + TimeUnit.NANOSECONDS.toMillis(logSuppressionNanos) + ", " + SLOW_CALL_THRESHOLD + "="
+                + (slowCallThresholdNanos == Long.MAX_VALUE
+                        ? "disabled"
+                        : TimeUnit.NANOSECONDS.toMillis(slowCallThresholdNanos))
+                + ", " + DECISIONS_SIZE + "=" + decisionCapacity;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * A Java Flight Recorder event type that is defined at runtime through
+ * {@code jdk.jfr.EventFactory}. The JFR API is only accessed reflectively so
+ * that this bundle keeps running on Java 8. If JFR is not available the event
+ * type is inert, and while no recording enables it the only cost is an
+ * {@link #begin()} call returning {@code null}. That call checks the event type
+ * through a method handle rather than reflectively.
+ */
+class JfrEvent {
+    private static final String[] CATEGORY = {"Apache Sling", "API Regions"};
+
+    static final JfrEvent FILTER_MATCHES = create(
+            "org.apache.sling.feature.apiregions.FilterMatches",
+            "API Regions Filter Matches",
+            "Filtering of the package candidates for a requirement by the API Regions resolver hook",
+            new String[] {"packageName", "requirer", "candidates", "kept"},
+            new Class<?>[] {String.class, long.class, int.class, int.class});
+
+    static final JfrEvent CONFIGURATION_UPDATE = create(
+            "org.apache.sling.feature.apiregions.ConfigurationUpdate",
+            "API Regions Configuration Update",
+            "Rebuild of the effective API Regions configuration",
+            new String[] {"generation", "bundles", "features", "regions", "packages"},
+            new Class<?>[] {long.class, int.class, int.class, int.class, int.class});
+
+    static final JfrEvent FILE_LOAD = create(
+            "org.apache.sling.feature.apiregions.FileLoad",
+            "API Regions File Load",
+            "Loading of an API Regions properties file",
+            new String[] {"uri", "entries"},
+            new Class<?>[] {String.class, int.class});
+
+    private final Object factory;
+    // Bound to the event type
+    private final MethodHandle isEnabled;
+    private final Method newEvent;
+    private final Method begin;
+    private final Method end;
+    private final Method shouldCommit;
+    private final Method set;
+    private final Method commit;
+
+    private JfrEvent() {
+        this.factory = null;
+        this.isEnabled = null;
+        this.newEvent = null;
+        this.begin = null;
+        this.end = null;
+        this.shouldCommit = null;
+        this.set = null;
+        this.commit = null;
+    }
+
+    private JfrEvent(Object factory, ClassLoader loader) throws Exception {
+        this.factory = factory;
+        Class<?> factoryClass = factory.getClass();
+        Object eventType = factoryClass.getMethod("getEventType").invoke(factory);
+        this.isEnabled = MethodHandles.publicLookup()
+                .unreflect(eventType.getClass().getMethod("isEnabled"))
+                .bindTo(eventType);
+        this.newEvent = factoryClass.getMethod("newEvent");
+
+        Class<?> eventClass = Class.forName("jdk.jfr.Event", true, loader);
+        this.begin = eventClass.getMethod("begin");
+        this.end = eventClass.getMethod("end");
+        this.shouldCommit = eventClass.getMethod("shouldCommit");
+        this.set = eventClass.getMethod("set", int.class, Object.class);
+        this.commit = eventClass.getMethod("commit");
+    }
+
+    static JfrEvent create(String name, String label, String description, String[] fields, Class<?>[] types) {
+        try {
+            ClassLoader loader = JfrEvent.class.getClassLoader();
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement", true, loader);
+            Constructor<?> annotationCtor = annotationElement.getConstructor(Class.class, Object.class);
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor", true, loader);
+            Constructor<?> valueCtor = valueDescriptor.getConstructor(Class.class, String.class);
+
+            List<Object> annotations = Arrays.asList(
+                    annotationCtor.newInstance(Class.forName("jdk.jfr.Name", true, loader), name),
+                    annotationCtor.newInstance(Class.forName("jdk.jfr.Label", true, loader), label),
+                    annotationCtor.newInstance(Class.forName("jdk.jfr.Description", true, loader), description),
+                    annotationCtor.newInstance(Class.forName("jdk.jfr.Category", true, loader), CATEGORY),
+                    // the stack trace would only show the reflective commit
+                    annotationCtor.newInstance(Class.forName("jdk.jfr.StackTrace", true, loader), false));
+            List<Object> values = new ArrayList<>();
+            for (int i = 0; i < fields.length; i++) {
+                values.add(valueCtor.newInstance(types[i], fields[i]));
+            }
+
+            Object factory = Class.forName("jdk.jfr.EventFactory", true, loader)
+                    .getMethod("create", List.class, List.class)
+                    .invoke(null, annotations, values);
+            return new JfrEvent(factory, loader);
+        } catch (ClassNotFoundException e) {
+            Activator.LOG.log(Level.FINE, "Java Flight Recorder not available, not creating event " + name);
+        } catch (Exception | LinkageError e) {
+            Activator.LOG.log(Level.FINE, "Unable to create Java Flight Recorder event " + name, e);
+        }
+        return new JfrEvent();
+    }
+
+    /**
+     * Begin an event if the event type is enabled in a recording.
+     * @return The event, or {@code null} if the event type is not enabled.
+     */
+    Object begin() {
+        if (factory == null) return null;
+
+        try {
+            if (!(boolean) isEnabled.invokeExact()) return null;
+        } catch (Throwable e) {
+            return null;
+        }
+
+        try {
+            Object event = newEvent.invoke(factory);
+            begin.invoke(event);
+            return event;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * End and commit an event obtained from {@link #begin()}. Callers should check the
+     * event for {@code null} first to avoid creating the values array.
+     * @param event The event, may be {@code null} in which case nothing happens.
+     * @param values The values of the event fields, in declaration order.
+     */
+    void commit(Object event, Object... values) {
+        if (event == null) return;
+
+        try {
+            end.invoke(event);
+            if ((Boolean) shouldCommit.invoke(event)) {
+                for (int i = 0; i < values.length; i++) {
+                    set.invoke(event, i, values[i]);
+                }
+                commit.invoke(event);
+            }
+        } catch (Exception e) {
+            Activator.LOG.log(Level.FINE, "Unable to commit Java Flight Recorder event", e);
+        }
+    }
+
+    boolean isAvailable() {
+        return factory != null;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A Bloom filter over the package entries of all regions. It answers whether a package may be
+ * listed in any region: a negative answer is certain, a positive answer may be a false positive.
+ * Most resolved packages are in no region at all, the filter lets the resolver hook skip the
+ * region lookups for them. Wildcard entries are checked with a {@link PackageTrie}.
+ * A check does not allocate and does not iterate over the characters of the name.
+ */
+final class PackageFilter {
+    static final int BITS_PER_ENTRY = 10;
+    static final int HASH_FUNCTIONS = 7;
+
+    private final long[] bits;
+    private final int size;
+    private final PackageTrie patterns;
+
+    private PackageFilter(long[] bits, int size, PackageTrie patterns) {
+        this.bits = bits;
+        this.size = size;
+        this.patterns = patterns;
+    }
+
+    /**
+     * Compile the filter.
+     * @param regionPackages The package entries of the regions.
+     * @return The filter.
+     */
+    static PackageFilter compile(Collection<? extends Collection<String>> regionPackages) {
+        Set<String> packages = new HashSet<>();
+        List<String> wildcards = new ArrayList<>();
+        for (Collection<String> entries : regionPackages) {
+            for (String entry : entries) {
+                if (PackageTrie.isPattern(entry)) wildcards.add(entry);
+                else packages.add(entry);
+            }
+        }
+
+        long[] bits = new long[Math.max(1, (packages.size() * BITS_PER_ENTRY + 63) / 64)];
+        int m = bits.length * 64;
+        for (String pkg : packages) {
+            long h = mix(pkg.hashCode());
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % m;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+        return new PackageFilter(bits, packages.size(), PackageTrie.compile(wildcards));
+    }
+
+    // Spread the String hash code over 64 bits, from which two hash values are derived
+    private static long mix(int hash) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Check whether the package may be in a region.
+     * @param packageName The package.
+     * @return {@code false} if the package is certainly not in any region.
+     */
+    boolean mayContain(String packageName) {
+        long h = mix(packageName.hashCode());
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        int m = bits.length * 64;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % m;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return patterns != null && patterns.matches(packageName);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of distinct exact package entries in the filter.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of bits of the filter.
+     */
+    int bitCount() {
+        return bits.length * 64;
+    }
+
+    /**
+     * Estimate the heap retained by the bit array of this filter.
+     * @return The estimated number of bytes.
+     */
+    long getEstimatedHeapUsage() {
+        return 24 + 16 + bits.length * 8L;
+    }
+
+    /**
+     * Estimate the probability that a package that is not in any region passes the filter,
+     * from the fraction of bits that are set. Wildcard entries are not taken into account.
+     * @return The false positive rate, between 0 and 1.
+     */
+    double getFalsePositiveRate() {
+        long set = 0;
+        for (long word : bits) {
+            set += Long.bitCount(word);
+        }
+        return Math.pow((double) set / bitCount(), HASH_FUNCTIONS);
+    }
+}
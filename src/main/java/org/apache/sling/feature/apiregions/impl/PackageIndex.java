@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+/**
+ * Assigns int ids to a fixed set of package names. The ids follow the lexicographic order
+ * of the names. Implementations are immutable and thread-safe.
+ */
+interface PackageIndex {
+    /**
+     * Look up the id of a package name without creating objects.
+     * @param name The package name.
+     * @return The id, or {@code -1} if the name is not in the index.
+     */
+    int idOf(String name);
+
+    /**
+     * Obtain the name with the given id. This creates a new String instance.
+     * @param id The id.
+     * @return The package name.
+     */
+    String get(int id);
+
+    /**
+     * @return The number of names in the index.
+     */
+    int size();
+
+    /**
+     * Estimate the heap retained by this index, assuming a 64-bit JVM with compressed oops.
+     * @return The estimated number of bytes.
+     */
+    long getEstimatedHeapUsage();
+
+    /**
+     * @return The number of bytes this index holds outside of the Java heap.
+     */
+    default long getOffHeapUsage() {
+        return 0;
+    }
+}
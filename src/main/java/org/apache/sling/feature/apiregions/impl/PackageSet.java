@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+/**
+ * An immutable set of package names, stored as the sorted ids of the names in a
+ * {@link PackageIndex}. Sets that are created together share one index, so every package
+ * name is stored once no matter how many regions list it. Membership tests look up the id
+ * in the index and do not create objects. Iterating creates the names in sorted order.
+ * A set can also be the union of other sets on the same index, which keeps their ids
+ * instead of copying them.
+ */
+final class PackageSet extends AbstractSet<String> {
+    static final PackageSet EMPTY = new PackageSet(PackageTable.EMPTY, new int[0], null);
+
+    private final PackageIndex index;
+    private final int[] ids;
+    private final int[][] joined; // The ids of the other sets of a union, null if not a union
+    private volatile int size = -1; // Computed on first use for a union
+
+    private PackageSet(PackageIndex index, int[] ids, int[][] joined) {
+        this.index = index;
+        this.ids = ids;
+        this.joined = joined;
+        if (joined == null) size = ids.length;
+    }
+
+    /**
+     * Create a package set with its own index.
+     * @param values The package names.
+     * @return The set.
+     */
+    static PackageSet of(Collection<String> values) {
+        if (values instanceof PackageSet) return (PackageSet) values;
+        if (values.isEmpty()) return EMPTY;
+
+        PackageTable t = PackageTable.of(new TreeSet<>(values));
+        return create(t, values);
+    }
+
+    /**
+     * Create a view of the union of package sets. The view refers to the ids of the sets,
+     * so creating it does not depend on their size. Sets that do not share an index with
+     * the others are copied.
+     * @param sets The sets.
+     * @return The union.
+     */
+    static PackageSet union(Collection<PackageSet> sets) {
+        PackageIndex index = null;
+        List<int[]> parts = new ArrayList<>();
+        for (PackageSet set : sets) {
+            if (set.ids.length == 0 && set.joined == null) continue;
+            if (index != null && index != set.index) {
+                // Not created together, so the ids cannot be compared
+                Set<String> names = new HashSet<>();
+                for (PackageSet s : sets) {
+                    names.addAll(s);
+                }
+                return of(names);
+            }
+            index = set.index;
+            parts.add(set.ids);
+            if (set.joined != null) parts.addAll(Arrays.asList(set.joined));
+        }
+        if (index == null) return EMPTY;
+        if (parts.size() == 1) return new PackageSet(index, parts.get(0), null);
+
+        return new PackageSet(
+                index, parts.get(0), parts.subList(1, parts.size()).toArray(new int[parts.size() - 1][]));
+    }
+
+    /**
+     * Replace the values of a map with package sets that share one index. If all values are
+     * already package sets sharing an index, the map is left as it is.
+     * @param m The map, its values are replaced.
+     * @param offHeap Whether to store a new index outside of the Java heap.
+     * @return The map.
+     */
+    static <K> Map<K, Set<String>> compact(Map<K, Set<String>> m, boolean offHeap) {
+        return compact(m, offHeap, ParallelBuild.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Replace the values of a map with package sets that share one index. If all values are
+     * already package sets sharing an index, the map is left as it is. For many names, the
+     * names are sorted and the sets are created on the common fork-join pool.
+     * @param m The map, its values are replaced.
+     * @param offHeap Whether to store a new index outside of the Java heap.
+     * @param parallelThreshold The number of names from which the work runs in parallel, {@code 0} for never.
+     * @return The map.
+     */
+    static <K> Map<K, Set<String>> compact(Map<K, Set<String>> m, boolean offHeap, int parallelThreshold) {
+        PackageIndex shared = null;
+        boolean compact = true;
+        long count = 0;
+        for (Set<String> values : m.values()) {
+            if (values == EMPTY) continue;
+            if (values instanceof PackageSet && (shared == null || shared == ((PackageSet) values).index)) {
+                shared = ((PackageSet) values).index;
+            } else {
+                compact = false;
+            }
+            count += values.size();
+        }
+        if (compact) return m;
+
+        final boolean parallel = ParallelBuild.isParallel(count, parallelThreshold);
+        final String[] names = sortedNames(m.values(), parallel);
+        final PackageIndex t = offHeap ? DirectPackageIndex.of(names) : PackageTable.of(names);
+        if (parallel) {
+            final List<Map.Entry<K, Set<String>>> entries = new ArrayList<>(m.entrySet());
+            final PackageSet[] sets = new PackageSet[entries.size()];
+            IntStream.range(0, sets.length)
+                    .parallel()
+                    .forEach(i -> sets[i] = create(t, entries.get(i).getValue()));
+            for (int i = 0; i < sets.length; i++) {
+                entries.get(i).setValue(sets[i]);
+            }
+        } else {
+            for (Map.Entry<K, Set<String>> entry : m.entrySet()) {
+                entry.setValue(create(t, entry.getValue()));
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Find the index that the package sets among the values share.
+     * @param sets The sets, empty sets are ignored.
+     * @return The shared index, or {@code null} if a set is not a package set, the sets use
+     * different indexes or all sets are empty.
+     */
+    static PackageIndex getSharedIndex(Collection<Set<String>> sets) {
+        PackageIndex shared = null;
+        for (Set<String> values : sets) {
+            if (values == EMPTY) continue;
+            if (!(values instanceof PackageSet)) return null;
+            PackageIndex index = ((PackageSet) values).index;
+            if (shared != null && shared != index) return null;
+            shared = index;
+        }
+        return shared;
+    }
+
+    // The distinct names of all sets in natural order
+    private static String[] sortedNames(Collection<Set<String>> sets, boolean parallel) {
+        if (!parallel) {
+            TreeSet<String> names = new TreeSet<>();
+            for (Set<String> values : sets) {
+                names.addAll(values);
+            }
+            return names.toArray(new String[names.size()]);
+        }
+
+        String[] names = sets.parallelStream().flatMap(Set::stream).toArray(String[]::new);
+        Arrays.parallelSort(names);
+        int n = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (n == 0 || !names[n - 1].equals(names[i])) names[n++] = names[i];
+        }
+        return n == names.length ? names : Arrays.copyOf(names, n);
+    }
+
+    private static PackageSet create(PackageIndex t, Collection<String> values) {
+        if (values.isEmpty()) return EMPTY;
+
+        int[] ids = new int[values.size()];
+        int i = 0;
+        for (String value : values) {
+            ids[i++] = t.idOf(value);
+        }
+        Arrays.sort(ids);
+
+        // Remove duplicates
+        int n = 0;
+        for (i = 0; i < ids.length; i++) {
+            if (n == 0 || ids[n - 1] != ids[i]) ids[n++] = ids[i];
+        }
+        return new PackageSet(t, n == ids.length ? ids : Arrays.copyOf(ids, n), null);
+    }
+
+    /**
+     * Compare the ids of two sets without decoding any names.
+     * @param other The other set.
+     * @return {@code true} if both sets use the same index and hold the same ids. Sets with
+     * different indexes are never reported as the same, even if they hold the same names.
+     */
+    boolean hasSameIds(PackageSet other) {
+        return this == other
+                || (index == other.index && Arrays.equals(ids, other.ids) && Arrays.deepEquals(joined, other.joined));
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) return false;
+        int id = index.idOf((String) o);
+        if (id < 0) return false;
+        if (Arrays.binarySearch(ids, id) >= 0) return true;
+        if (joined != null) {
+            for (int[] j : joined) {
+                if (Arrays.binarySearch(j, id) >= 0) return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        int s = size;
+        if (s < 0) {
+            // A union counts the distinct ids of its sets once
+            s = 0;
+            for (IdMerger m = new IdMerger(); m.next() >= 0; ) {
+                s++;
+            }
+            size = s;
+        }
+        return s;
+    }
+
+    /**
+     * @return The estimated heap used by this set and the ids of the sets it joins, without the index.
+     */
+    long getEstimatedHeapUsage() {
+        long bytes = 32 + 16 + ids.length * 4L;
+        if (joined != null) {
+            bytes += 16 + joined.length * 4L;
+            for (int[] j : joined) {
+                bytes += 16 + j.length * 4L;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The index that holds the names of this set.
+     */
+    PackageIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        if (joined != null) {
+            return new Iterator<String>() {
+                private final IdMerger merger = new IdMerger();
+                private int next = merger.next();
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public String next() {
+                    if (next < 0) throw new NoSuchElementException();
+                    String name = index.get(next);
+                    next = merger.next();
+                    return name;
+                }
+            };
+        }
+
+        return new Iterator<String>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < ids.length;
+            }
+
+            @Override
+            public String next() {
+                if (next >= ids.length) throw new NoSuchElementException();
+                return index.get(ids[next++]);
+            }
+        };
+    }
+
+    // Merges the ids of a union into ascending order without duplicates
+    private final class IdMerger {
+        private final int[] positions = new int[joined.length + 1];
+
+        // The next id, -1 when done
+        int next() {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < positions.length; i++) {
+                int[] a = i == 0 ? ids : joined[i - 1];
+                if (positions[i] < a.length && a[positions[i]] < min) min = a[positions[i]];
+            }
+            if (min == Integer.MAX_VALUE) return -1;
+
+            for (int i = 0; i < positions.length; i++) {
+                int[] a = i == 0 ? ids : joined[i - 1];
+                if (positions[i] < a.length && a[positions[i]] == min) positions[i]++;
+            }
+            return min;
+        }
+    }
+}
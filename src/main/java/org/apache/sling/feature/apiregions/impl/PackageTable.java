@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.SortedSet;
+
+/**
+ * An immutable table of package names, each identified by an int id. The ids follow the
+ * lexicographic order of the names. The names are front coded: they are stored in blocks
+ * where every entry only keeps the characters that differ from the previous entry, which
+ * is compact as package names share long prefixes. Looking up the id of a name compares
+ * it with the encoded entries directly and does not create any objects.
+ */
+final class PackageTable implements PackageIndex {
+    static final PackageTable EMPTY = new PackageTable(new String[0]);
+
+    private static final int BLOCK_SIZE = 16;
+
+    // Entries are stored as: shared prefix length, suffix length, suffix characters
+    private final char[] data;
+    private final int[] blockOffsets;
+    private final int[] hashes;
+    private final int[] slots; // id + 1 per slot, 0 is free. Length is a power of two, at most half full
+    private final int size;
+
+    private PackageTable(String[] names) {
+        this.size = names.length;
+        this.hashes = new int[size];
+        this.blockOffsets = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        this.slots = new int[Integer.highestOneBit(Math.max(1, size)) << 2];
+
+        int length = 0;
+        String prev = "";
+        for (int i = 0; i < size; i++) {
+            String name = names[i];
+            int prefix = i % BLOCK_SIZE == 0 ? 0 : commonPrefix(prev, name);
+            length += 2 + name.length() - prefix;
+            prev = name;
+        }
+
+        char[] d = new char[length];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            String name = names[i];
+            if (name.length() > Character.MAX_VALUE)
+                throw new IllegalArgumentException("Package name too long: " + name.substring(0, 100));
+
+            int prefix;
+            if (i % BLOCK_SIZE == 0) {
+                blockOffsets[i / BLOCK_SIZE] = pos;
+                prefix = 0;
+            } else {
+                prefix = commonPrefix(names[i - 1], name);
+            }
+            d[pos++] = (char) prefix;
+            d[pos++] = (char) (name.length() - prefix);
+            name.getChars(prefix, name.length(), d, pos);
+            pos += name.length() - prefix;
+
+            hashes[i] = name.hashCode();
+            int slot = slot(hashes[i]);
+            while (slots[slot] != 0) slot = (slot + 1) & (slots.length - 1);
+            slots[slot] = i + 1;
+        }
+        this.data = d;
+    }
+
+    /**
+     * Create a table.
+     * @param names The names, their iteration order must be the natural order.
+     * @return The table.
+     */
+    static PackageTable of(SortedSet<String> names) {
+        if (names.comparator() != null) throw new IllegalArgumentException("Names must be in natural order");
+        return of(names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * Create a table.
+     * @param names The names in natural order without duplicates, the array is not copied.
+     * @return The table.
+     */
+    static PackageTable of(String[] names) {
+        if (names.length == 0) return EMPTY;
+        return new PackageTable(names);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(Math.min(a.length(), b.length()), Character.MAX_VALUE);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) i++;
+        return i;
+    }
+
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (slots.length - 1);
+    }
+
+    @Override
+    public int idOf(String name) {
+        // String caches its hash code, so this does not iterate over the name again
+        int hash = name.hashCode();
+        for (int slot = slot(hash); slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && matches(id, name)) return id;
+        }
+        return -1;
+    }
+
+    // Compare the name with an entry by decoding its block up to the entry
+    private boolean matches(int id, String name) {
+        int pos = blockOffsets[id / BLOCK_SIZE];
+        int matched = 0; // Characters that the current entry has in common with the name
+        int length = 0; // Length of the current entry
+        for (int i = id - id % BLOCK_SIZE; i <= id; i++) {
+            int prefix = data[pos];
+            int suffix = data[pos + 1];
+            pos += 2;
+            if (prefix <= matched) {
+                matched = prefix;
+                while (matched - prefix < suffix
+                        && matched < name.length()
+                        && data[pos + matched - prefix] == name.charAt(matched)) {
+                    matched++;
+                }
+            }
+            length = prefix + suffix;
+            pos += suffix;
+        }
+        return matched == length && length == name.length();
+    }
+
+    @Override
+    public String get(int id) {
+        if (id < 0 || id >= size) throw new IndexOutOfBoundsException("Id: " + id);
+
+        int start = blockOffsets[id / BLOCK_SIZE];
+        int pos = start;
+        for (int i = id - id % BLOCK_SIZE; i < id; i++) {
+            pos += 2 + data[pos + 1];
+        }
+        int length = data[pos] + data[pos + 1];
+
+        // Decode the block again, only keeping the characters that end up in the name
+        char[] buf = new char[length];
+        pos = start;
+        for (int i = id - id % BLOCK_SIZE; i <= id; i++) {
+            int prefix = data[pos];
+            int suffix = data[pos + 1];
+            if (prefix < length) System.arraycopy(data, pos + 2, buf, prefix, Math.min(suffix, length - prefix));
+            pos += 2 + suffix;
+        }
+        return new String(buf);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getEstimatedHeapUsage() {
+        return 32 + array(data.length * 2L) + array(blockOffsets.length * 4L) + array(hashes.length * 4L)
+                + array(slots.length * 4L);
+    }
+
+    private static long array(long bytes) {
+        return (16 + bytes + 7) & ~7;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Matches package names against wildcard entries of the form {@code com.acme.api.*}, which
+ * match the package {@code com.acme.api} and all packages below it. The entry {@code *}
+ * matches every package. The patterns are compiled into a trie of package name segments,
+ * so a match costs one step per segment of the package name, regardless of the number of
+ * patterns. Matching does not allocate.
+ */
+class PackageTrie {
+    private final Node root;
+
+    private PackageTrie(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Check whether a region entry is a wildcard pattern.
+     * @param entry The entry.
+     * @return {@code true} if it is a pattern.
+     */
+    static boolean isPattern(String entry) {
+        return entry.equals("*") || entry.endsWith(".*");
+    }
+
+    /**
+     * Compile the patterns among the entries of a region.
+     * @param entries The entries, may contain exact package names which are ignored.
+     * @return The trie, or {@code null} if there are no patterns.
+     */
+    static PackageTrie compile(Collection<String> entries) {
+        Builder root = null;
+        for (String entry : entries) {
+            if (!isPattern(entry)) continue;
+
+            if (root == null) root = new Builder();
+            Builder node = root;
+            if (entry.length() > 1) {
+                for (String segment : entry.substring(0, entry.length() - 2).split("\\.")) {
+                    node = node.children.computeIfAbsent(segment, s -> new Builder());
+                }
+            }
+            node.wildcard = true;
+        }
+        return root != null ? new PackageTrie(root.build()) : null;
+    }
+
+    /**
+     * Check whether a package matches any of the patterns.
+     * @param packageName The package.
+     * @return {@code true} if the package matches.
+     */
+    boolean matches(String packageName) {
+        Node node = root;
+        int length = packageName.length();
+        int start = 0;
+        while (!node.wildcard) {
+            int end = packageName.indexOf('.', start);
+            if (end < 0) end = length;
+
+            node = node.child(packageName, start, end);
+            if (node == null) return false;
+            if (end == length) return node.wildcard;
+            start = end + 1;
+        }
+        return true;
+    }
+
+    private static final class Node {
+        final boolean wildcard;
+        final String[] segments; // sorted
+        final Node[] children;
+
+        Node(boolean wildcard, String[] segments, Node[] children) {
+            this.wildcard = wildcard;
+            this.segments = segments;
+            this.children = children;
+        }
+
+        Node child(String name, int start, int end) {
+            int low = 0;
+            int high = segments.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(segments[mid], name, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        // Compare a segment with a region of a string in the same order as String.compareTo()
+        private static int compare(String segment, String name, int start, int end) {
+            int len = Math.min(segment.length(), end - start);
+            for (int i = 0; i < len; i++) {
+                int diff = segment.charAt(i) - name.charAt(start + i);
+                if (diff != 0) return diff;
+            }
+            return segment.length() - (end - start);
+        }
+    }
+
+    private static final class Builder {
+        final Map<String, Builder> children = new TreeMap<>();
+        boolean wildcard;
+
+        Node build() {
+            String[] segments = children.keySet().toArray(new String[children.size()]);
+            Node[] nodes = new Node[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                nodes[i] = children.get(segments[i]).build();
+            }
+            return new Node(wildcard, segments, nodes);
+        }
+    }
+}
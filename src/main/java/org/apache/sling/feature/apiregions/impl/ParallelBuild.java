@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Decides whether a stage that builds the compiled configuration runs on the common
+ * fork-join pool. Only very large inputs are processed in parallel, for smaller ones
+ * splitting the work costs more than it saves. A stage produces the same result
+ * either way.
+ */
+final class ParallelBuild {
+    /** The default number of input elements from which a stage runs in parallel. */
+    static final int DEFAULT_THRESHOLD = 10_000;
+
+    private ParallelBuild() {}
+
+    /**
+     * Check whether a stage runs in parallel.
+     * @param size The number of input elements of the stage.
+     * @param threshold The number of elements from which stages run in parallel, {@code 0} for never.
+     * @return {@code true} if the stage should run on the common fork-join pool.
+     */
+    static boolean isParallel(long size, int threshold) {
+        return threshold > 0 && size >= threshold && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    static <T> Stream<T> stream(Collection<T> c, boolean parallel) {
+        return parallel ? c.parallelStream() : c.stream();
+    }
+}
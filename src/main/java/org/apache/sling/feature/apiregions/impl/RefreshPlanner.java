@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
+import org.apache.sling.feature.apiregions.impl.RegionConfiguration.Snapshot;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Computes the bundles whose current package wires would resolve differently after the
+ * configuration changed, and optionally refreshes them. The package wires of all bundles are
+ * visited, but only the wires that the difference between the two generations can affect are
+ * decided again, with both generations. The scan runs on its own thread after the rebuild, so
+ * that it does not hold up the rebuilds of the configuration. Changes that arrive while a scan
+ * is pending are covered by that scan.
+ */
+class RefreshPlanner implements BiConsumer<Snapshot, Snapshot> {
+    static final String AFFECTED_BUNDLES_MESSAGE =
+            "API-Regions configuration generation {0} no longer allows the wires of bundles {1}";
+
+    private final BundleContext context;
+    private final RegionConfiguration configuration;
+    private final boolean refresh;
+    private final Executor executor;
+
+    // The generations of the scan that is scheduled but not started yet, guarded by this
+    private Snapshot pendingPrevious;
+    private Snapshot pendingNext;
+
+    RefreshPlanner(BundleContext context, RegionConfiguration configuration, boolean refresh) {
+        this(context, configuration, refresh, newScanExecutor());
+    }
+
+    RefreshPlanner(BundleContext context, RegionConfiguration configuration, boolean refresh, Executor executor) {
+        this.context = context;
+        this.configuration = configuration;
+        this.refresh = refresh;
+        this.executor = executor;
+    }
+
+    private static Executor newScanExecutor() {
+        // The thread ends when there is nothing to scan
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "API Regions refresh planner");
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public void accept(Snapshot previous, Snapshot next) {
+        synchronized (this) {
+            pendingNext = next;
+            if (pendingPrevious != null) return; // The scheduled scan also covers this change
+            pendingPrevious = previous;
+        }
+        executor.execute(this::scan);
+    }
+
+    private void scan() {
+        final Snapshot previous;
+        final Snapshot next;
+        synchronized (this) {
+            previous = pendingPrevious;
+            next = pendingNext;
+            pendingPrevious = null;
+            pendingNext = null;
+        }
+
+        Set<Bundle> affected = findAffectedBundles(previous, next);
+        if (affected.isEmpty()) return;
+
+        Set<Long> ids = new TreeSet<>();
+        for (Bundle bundle : affected) {
+            ids.add(bundle.getBundleId());
+        }
+        Activator.LOG.log(Level.INFO, AFFECTED_BUNDLES_MESSAGE, new Object[] {next.generation, ids});
+
+        if (refresh) {
+            FrameworkWiring fw = context.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).adapt(FrameworkWiring.class);
+            // The framework adds the bundles that depend on the affected bundles
+            fw.refreshBundles(affected);
+        }
+    }
+
+    /**
+     * Find the bundles that are wired to a package that would resolve differently. That is the case
+     * if the requirer can no longer see the provider, or if a candidate other than the provider is
+     * now kept that was not kept before, for example because it is newly allowed.
+     * @param previous The generation the current wires were resolved with
+     * @param next The new generation
+     * @return The requiring bundles of the wires that would resolve differently.
+     */
+    Set<Bundle> findAffectedBundles(Snapshot previous, Snapshot next) {
+        Set<String> changedFeatures = changedKeys(previous.featureRegionMap, next.featureRegionMap);
+        Set<String> changedRegions = changedKeys(previous.regionPackageMap, next.regionPackageMap);
+        Map<Bundle, Boolean> changedBundles = new HashMap<>();
+        Bundle[] bundles = context.getBundles();
+        Map<String, List<BundleCapability>> exporters = null;
+        Boolean anyBundleChanged = null;
+
+        Set<Bundle> affected = new HashSet<>();
+        for (Bundle requirer : bundles) {
+            BundleWiring wiring = requirer.adapt(BundleWiring.class);
+            if (wiring == null) continue; // Not resolved
+            List<BundleWire> wires = wiring.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE);
+            if (wires == null) continue;
+
+            for (BundleWire wire : wires) {
+                Object pkg = wire.getCapability().getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
+                if (!(pkg instanceof String)) continue;
+                String packageName = (String) pkg;
+
+                // The checks that need no other bundles come first
+                Bundle provider = wire.getProvider().getBundle();
+                boolean changed = isChanged(requirer, previous, next, changedBundles)
+                        || hasChangedFeature(requirer, next, changedFeatures)
+                        || isPackageChanged(packageName, previous, next, changedRegions)
+                        || isChanged(provider, previous, next, changedBundles)
+                        || hasChangedFeature(provider, next, changedFeatures);
+
+                // Another candidate only matters if its features or regions changed, the exports
+                // are only collected once such a bundle exists or a wire needs to be decided again
+                List<Bundle> candidates = null;
+                if (!changed) {
+                    if (anyBundleChanged == null) {
+                        anyBundleChanged = isAnyChanged(bundles, previous, next, changedBundles, changedFeatures);
+                    }
+                    if (!anyBundleChanged) continue;
+
+                    if (exporters == null) exporters = getExporters(bundles);
+                    candidates = getCandidates(wire, exporters.get(packageName));
+                    for (int i = 1; !changed && i < candidates.size(); i++) {
+                        Bundle candidate = candidates.get(i);
+                        changed = isChanged(candidate, previous, next, changedBundles)
+                                || hasChangedFeature(candidate, next, changedFeatures);
+                    }
+                    if (!changed) {
+                        // Nothing that this wire was decided on has changed
+                        continue;
+                    }
+                }
+
+                if (candidates == null) {
+                    if (exporters == null) exporters = getExporters(bundles);
+                    candidates = getCandidates(wire, exporters.get(packageName));
+                }
+                if (resolvesDifferently(previous, next, requirer, packageName, candidates)) {
+                    affected.add(requirer);
+                    break;
+                }
+            }
+        }
+        return affected;
+    }
+
+    // The exported packages of all resolved bundles by package name
+    private static Map<String, List<BundleCapability>> getExporters(Bundle[] bundles) {
+        Map<String, List<BundleCapability>> exporters = new HashMap<>();
+        for (Bundle bundle : bundles) {
+            BundleWiring wiring = bundle.adapt(BundleWiring.class);
+            if (wiring == null) continue; // Not resolved
+            List<BundleCapability> caps = wiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE);
+            if (caps == null) continue;
+
+            for (BundleCapability cap : caps) {
+                Object pkg = cap.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
+                if (pkg instanceof String) {
+                    exporters.computeIfAbsent((String) pkg, p -> new ArrayList<>()).add(cap);
+                }
+            }
+        }
+        return exporters;
+    }
+
+    // The bundles that can provide the package of the wire, the provider first
+    private static List<Bundle> getCandidates(BundleWire wire, List<BundleCapability> exports) {
+        Map<Long, Bundle> candidates = new LinkedHashMap<>();
+        Bundle provider = wire.getProvider().getBundle();
+        candidates.put(provider.getBundleId(), provider);
+        if (exports != null) {
+            BundleRequirement requirement = wire.getRequirement();
+            for (BundleCapability cap : exports) {
+                if (requirement == null || requirement.matches(cap)) {
+                    Bundle bundle = cap.getRevision().getBundle();
+                    candidates.putIfAbsent(bundle.getBundleId(), bundle);
+                }
+            }
+        }
+        return new ArrayList<>(candidates.values());
+    }
+
+    private boolean resolvesDifferently(
+            Snapshot previous, Snapshot next, Bundle requirer, String packageName, List<Bundle> candidates) {
+        boolean[] keptBefore = decide(previous, requirer, packageName, candidates);
+        boolean[] keptNow = decide(next, requirer, packageName, candidates);
+
+        // The provider is the first candidate
+        if (!keptNow[0]) return true;
+        for (int i = 1; i < keptNow.length; i++) {
+            if (keptNow[i] && !keptBefore[i]) return true;
+        }
+        return false;
+    }
+
+    // Per candidate whether the resolver hook keeps it
+    private boolean[] decide(Snapshot s, Bundle requirer, String packageName, List<Bundle> candidates) {
+        long[] capBundleIDs = new long[candidates.size()];
+        BundleFeatures[] capFeatures = new BundleFeatures[capBundleIDs.length];
+        for (int i = 0; i < capBundleIDs.length; i++) {
+            capBundleIDs[i] = candidates.get(i).getBundleId();
+            capFeatures[i] = s.getBundleFeatures(getBsnVer(candidates.get(i)));
+        }
+        String[] regions = RegionDecision.decide(
+                s,
+                packageName,
+                requirer.getBundleId(),
+                s.getBundleFeatures(getBsnVer(requirer)),
+                capBundleIDs,
+                capFeatures,
+                null);
+
+        boolean[] kept = new boolean[capBundleIDs.length];
+        for (int i = 0; i < kept.length; i++) {
+            kept[i] = regions == null || regions[i] != ResolverHookImpl.NOT_COVERED;
+        }
+        return kept;
+    }
+
+    // Whether the features or regions of the bundle differ between the generations
+    private boolean isChanged(Bundle bundle, Snapshot previous, Snapshot next, Map<Bundle, Boolean> changed) {
+        return changed.computeIfAbsent(bundle, b -> {
+            Map.Entry<String, Version> bsnVer = getBsnVer(b);
+            BundleFeatures pbf = previous.bsnVerFeatures.getOrDefault(bsnVer, previous.noFeatures);
+            BundleFeatures nbf = next.bsnVerFeatures.getOrDefault(bsnVer, next.noFeatures);
+            return !pbf.features.equals(nbf.features)
+                    || !Objects.equals(pbf.bareRegions, nbf.bareRegions)
+                    || pbf.enforced != nbf.enforced
+                    || !new HashSet<>(Arrays.asList(pbf.regionsAndAncestors))
+                            .equals(new HashSet<>(Arrays.asList(nbf.regionsAndAncestors)));
+        });
+    }
+
+    private boolean isAnyChanged(
+            Bundle[] bundles,
+            Snapshot previous,
+            Snapshot next,
+            Map<Bundle, Boolean> changedBundles,
+            Set<String> changedFeatures) {
+        for (Bundle bundle : bundles) {
+            if (isChanged(bundle, previous, next, changedBundles)
+                    || hasChangedFeature(bundle, next, changedFeatures)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasChangedFeature(Bundle bundle, Snapshot next, Set<String> changedFeatures) {
+        if (changedFeatures.isEmpty()) return false;
+
+        BundleFeatures bf = next.bsnVerFeatures.getOrDefault(getBsnVer(bundle), next.noFeatures);
+        return !Collections.disjoint(bf.features, changedFeatures);
+    }
+
+    private static boolean isPackageChanged(
+            String packageName, Snapshot previous, Snapshot next, Set<String> changedRegions) {
+        for (String region : changedRegions) {
+            if (previous.isPackageInRegion(region, packageName) != next.isPackageInRegion(region, packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map.Entry<String, Version> getBsnVer(Bundle bundle) {
+        Map.Entry<String, Version> bsnVer = configuration.getBundleLocationConfigMap().get(bundle.getLocation());
+        return bsnVer != null ? bsnVer : new AbstractMap.SimpleEntry<>(bundle.getSymbolicName(), bundle.getVersion());
+    }
+
+    private static <V> Set<String> changedKeys(Map<String, V> previous, Map<String, V> next) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, V> entry : previous.entrySet()) {
+            if (!isSame(entry.getValue(), next.get(entry.getKey()))) changed.add(entry.getKey());
+        }
+        for (String key : next.keySet()) {
+            if (!previous.containsKey(key)) changed.add(key);
+        }
+        return changed;
+    }
+
+    // Package sets are compared by their ids, so that no names are decoded. Sets that were
+    // compacted into another index are reported as changed, the wires then check the package.
+    private static boolean isSame(Object previous, Object next) {
+        if (previous instanceof PackageSet && next instanceof PackageSet) {
+            return ((PackageSet) previous).hasSameIds((PackageSet) next);
+        }
+        return Objects.equals(previous, next);
+    }
+}
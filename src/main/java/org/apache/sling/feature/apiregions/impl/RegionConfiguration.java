@@ -20,6 +20,8 @@ package org.apache.sling.feature.apiregions.impl;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -28,6 +30,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,15 +43,26 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
+import java.util.stream.Collectors;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Version;
@@ -53,22 +70,256 @@ import org.osgi.framework.Version;
 class RegionConfiguration {
     private static final String BUNDLE_LOCATION_TO_FEATURE_FILE = "bundleLocationToFeature.properties";
     private static final String REGION_ORDER = "__region.order__";
+    private static final List<String> DATA_FILE_NAMES = Collections.unmodifiableList(Arrays.asList(
+            RegionConstants.IDBSNVER_FILENAME,
+            RegionConstants.BUNDLE_FEATURE_FILENAME,
+            RegionConstants.FEATURE_REGION_FILENAME,
+            RegionConstants.REGION_PACKAGE_FILENAME));
+    // Rough per-object sizes used by the heap usage estimate
+    private static final long MAP_BYTES = 64;
+    private static final long MAP_ENTRY_BYTES = 40;
+    // Compiled once per package index in use, shared by the frameworks in this JVM
+    private static final Map<PackageIndex, CompiledIndex> COMPILED_INDEXES =
+            Collections.synchronizedMap(new WeakHashMap<>());
 
-    volatile Map<Map.Entry<String, Version>, List<String>> bsnVerMap;
-    volatile Map<String, Set<String>> bundleFeatureMap;
-    volatile Map<String, List<String>> featureRegionMap;
-    volatile Map<String, Set<String>> regionPackageMap;
+    /**
+     * The effective configuration of one generation. A rebuild creates a new snapshot and
+     * publishes it with a single write, so readers never see parts of different generations.
+     */
+    static final class Snapshot {
+        final long generation;
+
+        final Map<Map.Entry<String, Version>, List<String>> bsnVerMap;
+        final Map<String, Set<String>> bundleFeatureMap;
+        final Map<String, List<String>> featureRegionMap;
+        final Map<String, Set<String>> regionPackageMap;
+
+        // Compiled from the maps above, regions without wildcard entries have no trie
+        final Map<String, PackageTrie> regionPatternMap;
+        // Compiled from the maps above, rejects packages that are in no region
+        final PackageFilter packageFilter;
+        // Compiled from the maps above, bundles in the same features share one instance
+        final Map<Map.Entry<String, Version>, BundleFeatures> bsnVerFeatures;
+        final BundleFeatures noFeatures;
+        final List<String> regionOrder;
+
+        // Whether bundles are outside of API Regions by bundle id, filled in by the resolver hook
+        final UnmanagedBundles unmanagedBundles = new UnmanagedBundles();
+
+        // Computed on first use, 0 until then
+        private volatile long checksum;
+
+        Snapshot(
+                long generation,
+                Map<Map.Entry<String, Version>, List<String>> bsnVerMap,
+                Map<String, Set<String>> bundleFeatureMap,
+                Map<String, List<String>> featureRegionMap,
+                Map<String, Set<String>> regionPackageMap,
+                Map<String, PackageTrie> regionPatternMap,
+                PackageFilter packageFilter,
+                Map<Map.Entry<String, Version>, BundleFeatures> bsnVerFeatures,
+                BundleFeatures noFeatures,
+                List<String> regionOrder) {
+            this.generation = generation;
+            this.bsnVerMap = bsnVerMap;
+            this.bundleFeatureMap = bundleFeatureMap;
+            this.featureRegionMap = featureRegionMap;
+            this.regionPackageMap = regionPackageMap;
+            this.regionPatternMap = regionPatternMap;
+            this.packageFilter = packageFilter;
+            this.bsnVerFeatures = bsnVerFeatures;
+            this.noFeatures = noFeatures;
+            this.regionOrder = regionOrder;
+        }
+
+        /**
+         * Obtain the compiled features and regions of a bundle.
+         * @param bsnVer The bundle symbolic name and version the bundle is configured with.
+         * @return The features of the bundle, never {@code null}.
+         */
+        BundleFeatures getBundleFeatures(Map.Entry<String, Version> bsnVer) {
+            BundleFeatures bf = bsnVerFeatures.get(bsnVer);
+            return bf != null ? bf : noFeatures;
+        }
+
+        /**
+         * Check whether a package may be exported in any region. This is a cheap check
+         * that has false positives but no false negatives.
+         * @param packageName The package.
+         * @return {@code false} if no region exports the package.
+         */
+        boolean mayBeInRegion(String packageName) {
+            return packageFilter.mayContain(packageName);
+        }
+
+        /**
+         * Check whether a package is exported in a region, either because it is listed
+         * in the region or because it matches a wildcard entry such as {@code com.acme.api.*}.
+         * @param region The region.
+         * @param packageName The package.
+         * @return {@code true} if the region exports the package.
+         */
+        boolean isPackageInRegion(String region, String packageName) {
+            Set<String> packages = regionPackageMap.get(region);
+            if (packages == null) return false;
+            if (packages.contains(packageName)) return true;
+
+            PackageTrie patterns = regionPatternMap.get(region);
+            return patterns != null && patterns.matches(packageName);
+        }
+    }
+
+    /**
+     * The configuration parsed from the properties files. Frameworks in the same JVM that read
+     * the same files with the same contents share one instance, which is dropped when the last
+     * configuration using it is closed. The maps and their contents are unmodifiable.
+     */
+    static final class BaseConfiguration {
+        // The shared instances by key, also guards the reference counts
+        private static final Map<String, BaseConfiguration> SHARED = new HashMap<>();
+
+        final String key;
+        final Map<Entry<String, Version>, List<String>> bsnVerMap;
+        final Map<String, Set<String>> bundleFeatureMap;
+        final Map<String, List<String>> featureRegionMap;
+        final Map<String, Set<String>> regionPackageMap;
+        final List<String> regionOrder;
+        private int references;
+
+        private BaseConfiguration(
+                String key,
+                Map<String, URI> files,
+                Map<String, byte[]> contents,
+                boolean offHeap,
+                int parallelThreshold)
+                throws IOException {
+            this.key = key;
+            this.bsnVerMap = unmodifiableMapToList(
+                    populateBSNVerMap(parse(files, contents, RegionConstants.IDBSNVER_FILENAME)));
+            this.bundleFeatureMap = unmodifiableMapToSet(
+                    loadMap(parse(files, contents, RegionConstants.BUNDLE_FEATURE_FILENAME), HashSet::new));
+            Map<String, List<String>> frm =
+                    loadMap(parse(files, contents, RegionConstants.FEATURE_REGION_FILENAME), ArrayList::new);
+            this.regionOrder = removeRegionOrder(frm);
+            this.featureRegionMap = unmodifiableMapToList(frm);
+            this.regionPackageMap = Collections.unmodifiableMap(PackageSet.compact(
+                    loadMap(parse(files, contents, RegionConstants.REGION_PACKAGE_FILENAME), HashSet::new),
+                    offHeap,
+                    parallelThreshold));
+        }
+
+        private static Properties parse(Map<String, URI> files, Map<String, byte[]> contents, String name)
+                throws IOException {
+            return loadProperties(files.get(name), new ByteArrayInputStream(contents.get(name)));
+        }
+
+        /**
+         * Get the base configuration for the properties files, parsing them only if no other
+         * configuration in this JVM uses the same files with the same contents.
+         * The caller must {@link #release()} it once it is no longer used.
+         * @param files The locations of the properties files by file name
+         * @param offHeap Whether the package index is stored outside of the Java heap
+         * @param parallelThreshold The input size from which the package index is built in parallel
+         * @return The base configuration
+         * @throws IOException If a file cannot be read
+         */
+        static BaseConfiguration acquire(Map<String, URI> files, boolean offHeap, int parallelThreshold)
+                throws IOException {
+            // The files are read in any case to compute the key, only parsing and compacting is saved
+            final Map<String, byte[]> contents = new HashMap<>();
+            final StringBuilder key = new StringBuilder(offHeap ? "off-heap" : "heap");
+            final MessageDigest md = sha256();
+            for (String name : DATA_FILE_NAMES) {
+                URI uri = files.get(name);
+                byte[] data = readFully(uri);
+                contents.put(name, data);
+                key.append('|').append(uri).append('=');
+                for (byte b : md.digest(data)) {
+                    key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+            }
+
+            synchronized (SHARED) {
+                BaseConfiguration base = SHARED.get(key.toString());
+                if (base != null) {
+                    base.references++;
+                    return base;
+                }
+            }
+
+            final BaseConfiguration parsed =
+                    new BaseConfiguration(key.toString(), files, contents, offHeap, parallelThreshold);
+            synchronized (SHARED) {
+                // Another framework may have parsed the same files in the meantime
+                BaseConfiguration base = SHARED.putIfAbsent(parsed.key, parsed);
+                if (base == null) base = parsed;
+                base.references++;
+                return base;
+            }
+        }
+
+        /**
+         * Release a base configuration obtained from {@link #acquire(Map, boolean, int)}.
+         */
+        void release() {
+            synchronized (SHARED) {
+                if (--references == 0) SHARED.remove(key, this);
+            }
+        }
+
+        int getReferences() {
+            synchronized (SHARED) {
+                return references;
+            }
+        }
+
+        private static byte[] readFully(URI uri) throws IOException {
+            try (InputStream is = uri.toURL().openStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = is.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            }
+        }
+    }
+
+    // The generation is incremented every time the effective configuration is rebuilt
+    private volatile Snapshot snapshot;
+
+    // Completed once the first snapshot is published, the properties files may be loaded in the background
+    private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+
+    // Asynchronous updates run on a single rebuild thread. An update that is scheduled but
+    // not started yet also applies all changes that arrive in the meantime.
+    private final Object updateLock = new Object();
+    private CompletableFuture<Long> pendingUpdate;
+    private ExecutorService updateExecutor;
+    private boolean closed;
+    private boolean backgroundLoading;
 
     final Set<String> defaultRegions;
 
     private final Dictionary<String, Object> regProps = new Hashtable<>();
     private final Map<String, Dictionary<String, Object>> factoryConfigs = new ConcurrentHashMap<>();
 
-    private final Map<Map.Entry<String, Version>, List<String>> baseBsnVerMap;
-    private final Map<String, Set<String>> baseBundleFeatureMap;
-    private final Map<String, List<String>> baseFeatureRegionMap;
-    private final Map<String, Set<String>> baseRegionPackageMap;
-    private final List<String> globalRegionOrder;
+    // The base configuration from the properties files, replaced when a file is reloaded. Guarded by this.
+    private Map<Map.Entry<String, Version>, List<String>> baseBsnVerMap;
+    private Map<String, Set<String>> baseBundleFeatureMap;
+    private Map<String, List<String>> baseFeatureRegionMap;
+    private Map<String, Set<String>> baseRegionPackageMap;
+    private volatile List<String> globalRegionOrder;
+
+    // The locations of the properties files by file name, empty if not created from files
+    private final Map<String, URI> dataFiles = new HashMap<>();
+    private DataFileWatcher watcher; // Guarded by updateLock
+    private BaseConfiguration sharedBase; // Guarded by updateLock
+
+    // Notified with the previous and the new snapshot after every rebuild
+    private volatile BiConsumer<Snapshot, Snapshot> updateListener;
+
 
     // This field stores the association between bundle location and the configuration
     // to be used. The configuration is based on bsn+version. If the bundle is updated
@@ -78,56 +329,69 @@ class RegionConfiguration {
 
     private final String toGlobalConfig;
 
+    // Whether the package index is stored outside of the Java heap
+    private final boolean offHeap;
+
+    // The input size from which the indexes are built on the common fork-join pool, 0 for never
+    private final int parallelThreshold;
+
+    // The regions that are enforced, null if all regions are enforced
+    private final Set<String> enforcedRegions;
+
     RegionConfiguration(
             Map<Entry<String, Version>, List<String>> bsnVerMap,
             Map<String, Set<String>> bundleFeatureMap,
             Map<String, List<String>> featureRegionMap,
             Map<String, Set<String>> regionPackageMap,
             Set<String> defaultRegions) {
+        this(bsnVerMap, bundleFeatureMap, featureRegionMap, regionPackageMap, defaultRegions, null);
+    }
+
+    RegionConfiguration(
+            Map<Entry<String, Version>, List<String>> bsnVerMap,
+            Map<String, Set<String>> bundleFeatureMap,
+            Map<String, List<String>> featureRegionMap,
+            Map<String, Set<String>> regionPackageMap,
+            Set<String> defaultRegions,
+            Set<String> enforcedRegions) {
         this.defaultRegions = defaultRegions;
 
-        this.baseBsnVerMap = new HashMap<>(bsnVerMap);
-        this.baseBundleFeatureMap = new HashMap<>(bundleFeatureMap);
-        this.baseFeatureRegionMap = new HashMap<>(featureRegionMap);
-        this.baseRegionPackageMap = new HashMap<>(regionPackageMap);
-        this.globalRegionOrder =
-                new ArrayList<>(this.baseFeatureRegionMap.getOrDefault(REGION_ORDER, Collections.emptyList()));
-        this.baseFeatureRegionMap.remove(REGION_ORDER);
+        this.offHeap = false;
+        this.parallelThreshold = ParallelBuild.DEFAULT_THRESHOLD;
+        this.enforcedRegions = enforcedRegions;
+
+        final Map<String, List<String>> frm = cloneMapOfLists(featureRegionMap);
+        this.globalRegionOrder = removeRegionOrder(frm);
+        this.baseBsnVerMap = unmodifiableMapToList(cloneMapOfLists(bsnVerMap));
+        this.baseBundleFeatureMap = unmodifiableMapToSet(cloneMapOfSets(bundleFeatureMap));
+        this.baseFeatureRegionMap = unmodifiableMapToList(frm);
+        this.baseRegionPackageMap =
+                Collections.unmodifiableMap(PackageSet.compact(new HashMap<>(regionPackageMap), offHeap));
 
         this.toGlobalConfig = null;
 
         updateConfiguration();
+        loaded.complete(null);
     }
 
     RegionConfiguration(final BundleContext context) throws IOException, URISyntaxException {
-        URI idbsnverFile = getDataFileURI(context, RegionConstants.IDBSNVER_FILENAME);
-        // Register the location as a service property for diagnostic purposes
-        regProps.put(RegionConstants.IDBSNVER_FILENAME, idbsnverFile.toString());
-        Map<Entry<String, Version>, List<String>> bvm = populateBSNVerMap(idbsnverFile);
-
-        URI bundlesFile = getDataFileURI(context, RegionConstants.BUNDLE_FEATURE_FILENAME);
-        // Register the location as a service property for diagnostic purposes
-        regProps.put(RegionConstants.BUNDLE_FEATURE_FILENAME, bundlesFile.toString());
-        Map<String, Set<String>> bfm = populateBundleFeatureMap(bundlesFile);
-
-        URI featuresFile = getDataFileURI(context, RegionConstants.FEATURE_REGION_FILENAME);
-        // Register the location as a service property for diagnostic purposes
-        regProps.put(RegionConstants.FEATURE_REGION_FILENAME, featuresFile.toString());
-        Map<String, List<String>> frm = populateFeatureRegionMap(featuresFile);
-
-        URI regionsFile = getDataFileURI(context, RegionConstants.REGION_PACKAGE_FILENAME);
-        // Register the location as a service property for diagnostic purposes
-        regProps.put(RegionConstants.REGION_PACKAGE_FILENAME, regionsFile.toString());
-        Map<String, Set<String>> rpm = populateRegionPackageMap(regionsFile);
+        // The files are located here but parsed by load()
+        for (String name : DATA_FILE_NAMES) {
+            URI uri = getDataFileURI(context, name);
+            dataFiles.put(name, uri);
+            // Register the location as a service property for diagnostic purposes
+            regProps.put(name, uri.toString());
+        }
 
-        // store base configuration
-        this.baseBsnVerMap = bvm;
-        this.baseBundleFeatureMap = bfm;
-        this.baseFeatureRegionMap = frm;
-        this.baseRegionPackageMap = rpm;
-        this.globalRegionOrder =
-                new ArrayList<>(this.baseFeatureRegionMap.getOrDefault(REGION_ORDER, Collections.emptyList()));
-        this.baseFeatureRegionMap.remove(REGION_ORDER);
+        this.enforcedRegions = parseEnforcedRegions(context.getProperty(Activator.REGIONS_PROPERTY_NAME));
+        this.offHeap = Boolean.parseBoolean(context.getProperty(RegionConstants.OFF_HEAP_INDEX));
+        if (this.offHeap) {
+            regProps.put(RegionConstants.OFF_HEAP_INDEX, Boolean.TRUE.toString());
+        }
+        this.parallelThreshold = parseParallelThreshold(context.getProperty(RegionConstants.PARALLEL_THRESHOLD));
+        if (context.getProperty(RegionConstants.PARALLEL_THRESHOLD) != null) {
+            regProps.put(RegionConstants.PARALLEL_THRESHOLD, Integer.toString(this.parallelThreshold));
+        }
 
         this.toGlobalConfig = context.getProperty(RegionConstants.APIREGIONS_JOINGLOBAL);
         if (this.toGlobalConfig != null) {
@@ -150,8 +414,149 @@ class RegionConfiguration {
             defaultRegions = Collections.emptySet();
         }
 
+        // The location map is read before the hook can use it, so that it is never computed from the bundles
         loadLocationToConfigMap(context);
+
+        final boolean watch = Boolean.parseBoolean(context.getProperty(RegionConstants.WATCH_FILES));
+        if (watch) {
+            regProps.put(RegionConstants.WATCH_FILES, Boolean.TRUE.toString());
+        }
+
+        if (Boolean.parseBoolean(context.getProperty(RegionConstants.LOAD_IN_BACKGROUND))) {
+            regProps.put(RegionConstants.LOAD_IN_BACKGROUND, Boolean.TRUE.toString());
+            backgroundLoading = true;
+            synchronized (updateLock) {
+                // Updates that are scheduled while loading run after it on the same thread
+                if (executeOnUpdateThread(() -> loadInBackground(watch))) return;
+            }
+        }
+        load(watch);
+    }
+
+    private void load(boolean watch) throws IOException {
+        final BaseConfiguration base = BaseConfiguration.acquire(dataFiles, offHeap, parallelThreshold);
+        synchronized (updateLock) {
+            if (closed) base.release();
+            else sharedBase = base;
+        }
+
+        // store base configuration
+        synchronized (this) {
+            this.baseBsnVerMap = base.bsnVerMap;
+            this.baseBundleFeatureMap = base.bundleFeatureMap;
+            this.baseFeatureRegionMap = base.featureRegionMap;
+            this.baseRegionPackageMap = base.regionPackageMap;
+            this.globalRegionOrder = base.regionOrder;
+        }
         updateConfiguration();
+        loaded.complete(null);
+
+        if (watch) {
+            try {
+                DataFileWatcher w = new DataFileWatcher(this, dataFiles);
+                synchronized (updateLock) {
+                    if (closed) w.close();
+                    else watcher = w;
+                }
+            } catch (IOException e) {
+                Activator.LOG.log(Level.WARNING, "Unable to watch the API Regions properties files", e);
+            }
+        }
+    }
+
+    private void loadInBackground(boolean watch) {
+        final long start = System.nanoTime();
+        try {
+            load(watch);
+            Activator.LOG.log(
+                    Level.INFO,
+                    "Loaded the API Regions configuration in the background in {0} ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            Activator.LOG.log(
+                    Level.SEVERE, "Problem loading the API Regions configuration, no regions are enforced", e);
+            synchronized (this) {
+                this.baseBsnVerMap = Collections.emptyMap();
+                this.baseBundleFeatureMap = Collections.emptyMap();
+                this.baseFeatureRegionMap = Collections.emptyMap();
+                this.baseRegionPackageMap = Collections.emptyMap();
+                this.globalRegionOrder = Collections.emptyList();
+            }
+            updateConfiguration();
+        } finally {
+            // Never leave the resolver waiting
+            loaded.complete(null);
+        }
+    }
+
+    private static List<String> removeRegionOrder(Map<String, List<String>> featureRegionMap) {
+        List<String> order = featureRegionMap.remove(REGION_ORDER);
+        return order == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(order));
+    }
+
+    /**
+     * Reparse one of the properties files and apply its new contents through an
+     * asynchronous update, in the same way as a factory configuration change.
+     * @param name The file name, for example {@link RegionConstants#REGION_PACKAGE_FILENAME}
+     * @return A future that completes with a generation that contains the new contents
+     * @throws IOException If the file cannot be read, the configuration is then unchanged
+     */
+    CompletableFuture<Long> reloadDataFile(String name) throws IOException {
+        URI uri = dataFiles.get(name);
+        if (uri == null) throw new IllegalArgumentException("Not a properties file of this configuration: " + name);
+
+        switch (name) {
+            case RegionConstants.IDBSNVER_FILENAME:
+                Map<Entry<String, Version>, List<String>> bvm = unmodifiableMapToList(populateBSNVerMap(uri));
+                synchronized (this) {
+                    baseBsnVerMap = bvm;
+                }
+                break;
+            case RegionConstants.BUNDLE_FEATURE_FILENAME:
+                Map<String, Set<String>> bfm = unmodifiableMapToSet(populateBundleFeatureMap(uri));
+                synchronized (this) {
+                    baseBundleFeatureMap = bfm;
+                }
+                break;
+            case RegionConstants.FEATURE_REGION_FILENAME:
+                Map<String, List<String>> frm = populateFeatureRegionMap(uri);
+                List<String> order = removeRegionOrder(frm);
+                synchronized (this) {
+                    baseFeatureRegionMap = unmodifiableMapToList(frm);
+                    globalRegionOrder = order;
+                }
+                break;
+            default:
+                Map<String, Set<String>> rpm = Collections.unmodifiableMap(
+                        PackageSet.compact(populateRegionPackageMap(uri), offHeap, parallelThreshold));
+                synchronized (this) {
+                    baseRegionPackageMap = rpm;
+                }
+                break;
+        }
+        Activator.LOG.log(Level.INFO, "Reloaded API Regions properties file {0}", uri);
+        return scheduleUpdate();
+    }
+
+    /**
+     * Create a configuration from the properties files directly, for use outside of a framework.
+     * @param idbsnverFile The bundle artifact id to symbolic name and version file.
+     * @param bundlesFile The bundle to features file.
+     * @param featuresFile The feature to regions file.
+     * @param regionsFile The region to packages file.
+     * @param defaultRegions The default regions.
+     * @return The configuration.
+     * @throws IOException If a file cannot be read.
+     */
+    static RegionConfiguration fromFiles(
+            URI idbsnverFile, URI bundlesFile, URI featuresFile, URI regionsFile, Set<String> defaultRegions)
+            throws IOException {
+        return new RegionConfiguration(
+                populateBSNVerMap(idbsnverFile),
+                populateBundleFeatureMap(bundlesFile),
+                populateFeatureRegionMap(featuresFile),
+                populateRegionPackageMap(regionsFile),
+                defaultRegions);
     }
 
     private void loadLocationToConfigMap(BundleContext context) {
@@ -216,13 +621,30 @@ class RegionConfiguration {
     }
 
     private synchronized void updateConfiguration() {
-        final Map<Entry<String, Version>, List<String>> bvm = cloneMapOfLists(this.baseBsnVerMap);
-        final Map<String, Set<String>> bfm = cloneMapOfSets(this.baseBundleFeatureMap);
-        final Map<String, List<String>> frm = cloneMapOfLists(this.baseFeatureRegionMap);
-        final Map<String, Set<String>> rpm = cloneMapOfSets(this.baseRegionPackageMap);
+        // Not loaded yet, the first snapshot then also contains the factory configurations added until then
+        if (this.baseRegionPackageMap == null) return;
+
+        final Object event = JfrEvent.CONFIGURATION_UPDATE.begin();
+
+        // Configurations are added and removed concurrently, check and apply the same ones
+        final List<Dictionary<String, Object>> configs = new ArrayList<>(this.factoryConfigs.values());
+
+        // Only the maps that factory configurations add to are copied, the others are used as they are.
+        // The base maps are unmodifiable and may be shared with the other frameworks in this JVM.
+        final Map<Entry<String, Version>, List<String>> bvm = hasFactoryProperty(configs, RegionConstants.PROP_idbsnver)
+                ? cloneMapOfLists(this.baseBsnVerMap)
+                : null;
+        final Map<String, Set<String>> bfm = hasFactoryProperty(configs, RegionConstants.PROP_bundleFeatures)
+                ? cloneMapOfSets(this.baseBundleFeatureMap)
+                : null;
+        final Map<String, List<String>> frm = hasFactoryProperty(configs, RegionConstants.PROP_featureRegions)
+                ? cloneMapOfLists(this.baseFeatureRegionMap)
+                : null;
+        // The compacted package sets are immutable, addValuesToMap() copies them when they are modified
+        final Map<String, Set<String>> rpm = new HashMap<>(this.baseRegionPackageMap);
 
         // apply configurations
-        for (final Dictionary<String, Object> props : this.factoryConfigs.values()) {
+        for (final Dictionary<String, Object> props : configs) {
             // bundle id to bsnver
             Object valObj = props.get(RegionConstants.PROP_idbsnver);
             if (valObj != null) {
@@ -255,16 +677,194 @@ class RegionConfiguration {
             }
         }
 
-        // join regions
+        // Make all maps and their contents unmodifiable
+        final Map<Entry<String, Version>, List<String>> bsnVerMap =
+                bvm != null ? unmodifiableMapToList(bvm) : this.baseBsnVerMap;
+        final Map<String, Set<String>> bundleFeatureMap =
+                bfm != null ? unmodifiableMapToSet(bfm) : this.baseBundleFeatureMap;
+        final Map<String, List<String>> featureRegionMap =
+                frm != null ? unmodifiableMapToList(frm) : this.baseFeatureRegionMap;
+        PackageSet.compact(rpm, offHeap, parallelThreshold);
+        // join regions, after compacting so that the index is not rebuilt for the joined packages
         if (this.toGlobalConfig != null) {
             joinRegionsWithGlobal(this.toGlobalConfig, rpm);
         }
+        final Map<String, Set<String>> regionPackageMap = Collections.unmodifiableMap(rpm);
+
+        final BundleFeatures none = new BundleFeatures(
+                new HashSet<>(),
+                featureRegionMap,
+                regionPackageMap,
+                defaultRegions,
+                globalRegionOrder,
+                enforcedRegions);
+        final CompiledIndex compiled = getCompiledIndex(regionPackageMap);
+        final Snapshot current = this.snapshot;
+        final Snapshot next = new Snapshot(
+                current != null ? current.generation + 1 : 1,
+                bsnVerMap,
+                bundleFeatureMap,
+                featureRegionMap,
+                regionPackageMap,
+                compileRegionPatterns(regionPackageMap, compiled),
+                compiled != null ? compiled.filter : PackageFilter.compile(regionPackageMap.values()),
+                compileBundleFeatures(bsnVerMap, bundleFeatureMap, featureRegionMap, regionPackageMap, none),
+                none,
+                globalRegionOrder);
+        this.snapshot = next;
+
+        if (event != null) {
+            JfrEvent.CONFIGURATION_UPDATE.commit(
+                    event,
+                    next.generation,
+                    bsnVerMap.size(),
+                    bundleFeatureMap.size(),
+                    featureRegionMap.size(),
+                    regionPackageMap.size(),
+                    getPackageCount());
+        }
 
-        // Make all maps and their contents unmodifiable
-        bsnVerMap = unmodifiableMapToList(bvm);
-        bundleFeatureMap = unmodifiableMapToSet(bfm);
-        featureRegionMap = unmodifiableMapToList(frm);
-        regionPackageMap = unmodifiableMapToSet(rpm);
+        final BiConsumer<Snapshot, Snapshot> listener = this.updateListener;
+        if (listener != null && current != null) {
+            try {
+                listener.accept(current, next);
+            } catch (RuntimeException e) {
+                Activator.LOG.log(Level.WARNING, "Problem handling the API Regions configuration update", e);
+            }
+        }
+    }
+
+    /**
+     * Set the listener that is notified with the previous and the new snapshot every time
+     * the configuration is rebuilt. The listener is called while no other rebuild can run.
+     * @param listener The listener, or {@code null} to remove it.
+     */
+    void setUpdateListener(BiConsumer<Snapshot, Snapshot> listener) {
+        this.updateListener = listener;
+    }
+
+    // Null if the sets do not share an index
+    private static CompiledIndex getCompiledIndex(Map<String, Set<String>> rpm) {
+        final PackageIndex index = PackageSet.getSharedIndex(rpm.values());
+        if (index == null) return null;
+
+        // The index holds exactly the names of all sets. It only changes when the factory
+        // configurations add packages, so most rebuilds reuse what was compiled for the base index.
+        return COMPILED_INDEXES.computeIfAbsent(index, CompiledIndex::new);
+    }
+
+    /**
+     * What is compiled from all names of a package index. It must not refer to the index,
+     * which is the weak key it is cached with.
+     */
+    private static final class CompiledIndex {
+        final PackageFilter filter;
+        final List<String> patterns; // The wildcard entries among the names
+
+        CompiledIndex(PackageIndex index) {
+            final List<String> names = new ArrayList<>(index.size());
+            for (int i = 0; i < index.size(); i++) {
+                names.add(index.get(i));
+            }
+            this.filter = PackageFilter.compile(Collections.singletonList(names));
+            this.patterns = names.stream().filter(PackageTrie::isPattern).collect(Collectors.toList());
+        }
+    }
+
+    private static Map<String, PackageTrie> compileRegionPatterns(
+            Map<String, Set<String>> rpm, CompiledIndex compiled) {
+        if (compiled != null && compiled.patterns.isEmpty()) return Collections.emptyMap();
+
+        final Map<String, PackageTrie> patterns = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : rpm.entrySet()) {
+            // With a compiled index only the few wildcard entries are looked up, no names are decoded
+            PackageTrie trie = PackageTrie.compile(
+                    compiled != null
+                            ? compiled.patterns.stream()
+                                    .filter(entry.getValue()::contains)
+                                    .collect(Collectors.toList())
+                            : entry.getValue());
+            if (trie != null) patterns.put(entry.getKey(), trie);
+        }
+        return patterns.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(patterns);
+    }
+
+    private Map<Map.Entry<String, Version>, BundleFeatures> compileBundleFeatures(
+            Map<Map.Entry<String, Version>, List<String>> bsnVerMap,
+            Map<String, Set<String>> bundleFeatureMap,
+            Map<String, List<String>> featureRegionMap,
+            Map<String, Set<String>> regionPackageMap,
+            BundleFeatures none) {
+        // Collect the features of every bundle, then compile every distinct set of features once.
+        // For many bundles the stages run on the common fork-join pool, the result is the same.
+        final boolean parallel = ParallelBuild.isParallel(bsnVerMap.size(), parallelThreshold);
+        final Map<Map.Entry<String, Version>, Set<String>> bundleSets = ParallelBuild.stream(
+                        bsnVerMap.entrySet(), parallel)
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> collectFeatures(e.getValue(), bundleFeatureMap)));
+        final Set<Set<String>> distinct =
+                ParallelBuild.stream(bundleSets.values(), parallel).collect(Collectors.toSet());
+        final Map<Set<String>, BundleFeatures> canonical = ParallelBuild.stream(distinct, parallel)
+                .collect(Collectors.toMap(
+                        f -> f,
+                        f -> f.equals(none.features)
+                                ? none
+                                : new BundleFeatures(
+                                        f,
+                                        featureRegionMap,
+                                        regionPackageMap,
+                                        defaultRegions,
+                                        globalRegionOrder,
+                                        enforcedRegions)));
+
+        final Map<Map.Entry<String, Version>, BundleFeatures> bvf = new HashMap<>();
+        for (Map.Entry<Map.Entry<String, Version>, Set<String>> entry : bundleSets.entrySet()) {
+            bvf.put(entry.getKey(), canonical.get(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(bvf);
+    }
+
+    private static Set<String> collectFeatures(List<String> artifacts, Map<String, Set<String>> bundleFeatureMap) {
+        Set<String> features = new HashSet<>();
+        for (String aid : artifacts) {
+            Set<String> fid = bundleFeatureMap.get(aid);
+            if (fid != null) features.addAll(fid);
+        }
+        return features;
+    }
+
+    private static int parseParallelThreshold(String value) {
+        if (value == null) return ParallelBuild.DEFAULT_THRESHOLD;
+
+        try {
+            int threshold = Integer.parseInt(value.trim());
+            if (threshold >= 0) return threshold;
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        Activator.LOG.log(
+                Level.WARNING, "Ignoring invalid value for " + RegionConstants.PARALLEL_THRESHOLD + ": " + value);
+        return ParallelBuild.DEFAULT_THRESHOLD;
+    }
+
+    // A comma-separated list of regions, '*' enforces all regions
+    private static Set<String> parseEnforcedRegions(String value) {
+        if (value == null) return null;
+
+        Set<String> regions = new HashSet<>();
+        for (String region : value.split(",")) {
+            region = region.trim();
+            if (region.equals("*")) return null;
+            if (region.length() > 0) regions.add(region);
+        }
+        return regions.isEmpty() ? null : Collections.unmodifiableSet(regions);
+    }
+
+    /**
+     * Obtain the regions that are enforced.
+     * @return The enforced regions, or {@code null} if all regions are enforced.
+     */
+    public Set<String> getEnforcedRegions() {
+        return enforcedRegions;
     }
 
     private <T extends Collection<String>> void handleMapConfig(
@@ -278,6 +878,13 @@ class RegionConfiguration {
         }
     }
 
+    private static boolean hasFactoryProperty(List<Dictionary<String, Object>> configs, String key) {
+        for (Dictionary<String, Object> props : configs) {
+            if (props.get(key) != null) return true;
+        }
+        return false;
+    }
+
     private static <K, V> Map<K, List<V>> cloneMapOfLists(Map<K, List<V>> m) {
         final Map<K, List<V>> newMap = new HashMap<>();
         for (Map.Entry<K, List<V>> entry : m.entrySet()) {
@@ -308,24 +915,28 @@ class RegionConfiguration {
         return Collections.unmodifiableMap(m);
     }
 
-    private void joinRegionsWithGlobal(String toglobal, Map<String, Set<String>> rpm) {
+    // The global region becomes a view of its own packages and the packages of the joined regions,
+    // which refers to their compacted sets instead of copying them
+    private static void joinRegionsWithGlobal(String toglobal, Map<String, Set<String>> rpm) {
+        final List<PackageSet> sets = new ArrayList<>();
+        final Set<String> global = rpm.get(RegionConstants.GLOBAL_REGION);
+        if (global != null) sets.add((PackageSet) global);
         for (String region : toglobal.split(",")) {
-            Set<String> packages = rpm.get(region);
-            if (packages == null) continue;
-
-            addValuesToMap(rpm, RegionConstants.GLOBAL_REGION, packages, HashSet::new);
-            rpm.remove(region);
+            Set<String> packages = rpm.remove(region);
+            if (packages != null) sets.add((PackageSet) packages);
+        }
+        if (sets.size() > (global != null ? 1 : 0)) {
+            rpm.put(RegionConstants.GLOBAL_REGION, PackageSet.union(sets));
         }
     }
 
     private static Map<Map.Entry<String, Version>, List<String>> populateBSNVerMap(URI idbsnverFile)
             throws IOException {
-        Map<Map.Entry<String, Version>, List<String>> m = new HashMap<>();
+        return populateBSNVerMap(loadProperties(idbsnverFile));
+    }
 
-        Properties p = new Properties();
-        try (InputStream is = idbsnverFile.toURL().openStream()) {
-            p.load(is);
-        }
+    private static Map<Map.Entry<String, Version>, List<String>> populateBSNVerMap(Properties p) {
+        Map<Map.Entry<String, Version>, List<String>> m = new HashMap<>();
 
         for (String n : p.stringPropertyNames()) {
             String[] bsnver = p.getProperty(n).split("~");
@@ -362,14 +973,31 @@ class RegionConfiguration {
         return loadMap(regionsFile, HashSet::new);
     }
 
-    private static <T extends Collection<String>> Map<String, T> loadMap(URI propsFile, Supplier<T> constructor)
-            throws IOException {
-        Map<String, T> m = new HashMap<>();
+    private static Properties loadProperties(URI propsFile) throws IOException {
+        try (InputStream is = propsFile.toURL().openStream()) {
+            return loadProperties(propsFile, is);
+        }
+    }
+
+    private static Properties loadProperties(URI propsFile, InputStream is) throws IOException {
+        final Object event = JfrEvent.FILE_LOAD.begin();
 
         Properties p = new Properties();
-        try (InputStream is = propsFile.toURL().openStream()) {
-            p.load(is);
+        p.load(is);
+
+        if (event != null) {
+            JfrEvent.FILE_LOAD.commit(event, propsFile.toString(), p.size());
         }
+        return p;
+    }
+
+    private static <T extends Collection<String>> Map<String, T> loadMap(URI propsFile, Supplier<T> constructor)
+            throws IOException {
+        return loadMap(loadProperties(propsFile), constructor);
+    }
+
+    private static <T extends Collection<String>> Map<String, T> loadMap(Properties p, Supplier<T> constructor) {
+        Map<String, T> m = new HashMap<>();
 
         for (String n : p.stringPropertyNames()) {
             String[] values = p.getProperty(n).split(",");
@@ -382,8 +1010,11 @@ class RegionConfiguration {
     private static <T extends Collection<String>> void addValuesToMap(
             Map<String, T> map, String key, Collection<String> values, Supplier<T> constructor) {
         T bf = map.get(key);
-        if (bf == null) {
-            bf = constructor.get();
+        if (bf == null || bf instanceof PackageSet) {
+            // Compact package sets are immutable, copy them on first modification
+            T nbf = constructor.get();
+            if (bf != null) nbf.addAll(bf);
+            bf = nbf;
             map.put(key, bf);
         }
         bf.addAll(values);
@@ -417,8 +1048,93 @@ class RegionConfiguration {
         }
     }
 
+    /**
+     * Obtain the effective configuration. Callers that read more than one part of it
+     * should obtain the snapshot once, so that all parts are of the same generation.
+     * While the properties files are loaded in the background this waits until they are
+     * loaded, callers other than the resolver hook should check {@link #isLoaded()} first.
+     * @return The current snapshot.
+     */
+    Snapshot getSnapshot() {
+        Snapshot s = snapshot;
+        if (s == null) {
+            // The properties files are loaded in the background, wait for the first snapshot
+            loaded.join();
+            s = snapshot;
+        }
+        return s;
+    }
+
+    /**
+     * Obtain a checksum over the contents of a snapshot and the settings it was compiled with.
+     * Configurations with the same contents have the same checksum, also in another process.
+     * @param s The snapshot
+     * @return The checksum, never {@code 0}.
+     */
+    long getChecksum(Snapshot s) {
+        long checksum = s.checksum;
+        if (checksum == 0) {
+            final MessageDigest md = sha256();
+            final Map<String, Collection<String>> bsnVers = new HashMap<>();
+            for (Map.Entry<Map.Entry<String, Version>, List<String>> entry : s.bsnVerMap.entrySet()) {
+                bsnVers.put(entry.getKey().getKey() + "~" + entry.getKey().getValue(), entry.getValue());
+            }
+            digest(md, bsnVers);
+            digest(md, s.bundleFeatureMap);
+            digest(md, s.featureRegionMap);
+            digest(md, s.regionPackageMap);
+            digest(md, Collections.singletonMap(REGION_ORDER, s.regionOrder));
+            digest(md, Collections.singletonMap(RegionConstants.DEFAULT_REGIONS, defaultRegions));
+            if (enforcedRegions != null) {
+                digest(md, Collections.singletonMap(Activator.REGIONS_PROPERTY_NAME, enforcedRegions));
+            }
+            checksum = ByteBuffer.wrap(md.digest()).getLong();
+            if (checksum == 0) checksum = 1;
+            s.checksum = checksum;
+        }
+        return checksum;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Digest the entries and their values in sorted order, the maps are hash based
+    private static void digest(MessageDigest md, Map<String, ? extends Collection<String>> map) {
+        for (String key : new TreeSet<>(map.keySet())) {
+            md.update(key.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '=');
+            for (String value : new TreeSet<>(map.get(key))) {
+                md.update(value.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) ',');
+            }
+            md.update((byte) '\n');
+        }
+    }
+
+    /**
+     * Check whether the first snapshot is published, so that reading the configuration does not block.
+     * @return {@code true} if the properties files are loaded.
+     */
+    boolean isLoaded() {
+        return loaded.isDone();
+    }
+
+    /**
+     * Check whether the properties files are loaded in the background.
+     * @return {@code true} if the configuration was created with background loading enabled.
+     */
+    boolean isLoadInBackground() {
+        return backgroundLoading;
+    }
+
     public Map<Map.Entry<String, Version>, List<String>> getBsnVerMap() {
-        return bsnVerMap;
+        return getSnapshot().bsnVerMap;
     }
 
     /**
@@ -439,16 +1155,62 @@ class RegionConfiguration {
         return bundleLocationConfigMap;
     }
 
+    /**
+     * Obtain the compiled features and regions of a bundle.
+     * @param bsnVer The bundle symbolic name and version the bundle is configured with.
+     * @return The features of the bundle, never {@code null}.
+     */
+    public BundleFeatures getBundleFeatures(Map.Entry<String, Version> bsnVer) {
+        return getSnapshot().getBundleFeatures(bsnVer);
+    }
+
     public Map<String, Set<String>> getBundleFeatureMap() {
-        return bundleFeatureMap;
+        return getSnapshot().bundleFeatureMap;
     }
 
     public Map<String, List<String>> getFeatureRegionMap() {
-        return featureRegionMap;
+        return getSnapshot().featureRegionMap;
     }
 
     public Map<String, Set<String>> getRegionPackageMap() {
-        return regionPackageMap;
+        return getSnapshot().regionPackageMap;
+    }
+
+    /**
+     * Obtain the compiled wildcard entries of the regions.
+     * @return The region to trie map, regions without wildcard entries are not present.
+     */
+    public Map<String, PackageTrie> getRegionPatternMap() {
+        return getSnapshot().regionPatternMap;
+    }
+
+    /**
+     * Obtain the filter over the packages of all regions.
+     * @return The filter.
+     */
+    public PackageFilter getPackageFilter() {
+        return getSnapshot().packageFilter;
+    }
+
+    /**
+     * Check whether a package may be exported in any region. This is a cheap check
+     * that has false positives but no false negatives.
+     * @param packageName The package.
+     * @return {@code false} if no region exports the package.
+     */
+    public boolean mayBeInRegion(String packageName) {
+        return getSnapshot().mayBeInRegion(packageName);
+    }
+
+    /**
+     * Check whether a package is exported in a region, either because it is listed
+     * in the region or because it matches a wildcard entry such as {@code com.acme.api.*}.
+     * @param region The region.
+     * @param packageName The package.
+     * @return {@code true} if the region exports the package.
+     */
+    public boolean isPackageInRegion(String region, String packageName) {
+        return getSnapshot().isPackageInRegion(region, packageName);
     }
 
     public Set<String> getDefaultRegions() {
@@ -456,6 +1218,7 @@ class RegionConfiguration {
     }
 
     public List<String> getGlobalRegionOrder() {
+        getSnapshot(); // The order is loaded with the properties files
         return globalRegionOrder;
     }
 
@@ -463,6 +1226,117 @@ class RegionConfiguration {
         return regProps;
     }
 
+    /**
+     * Obtain the generation of the effective configuration. The generation
+     * is incremented every time the configuration is rebuilt, for example
+     * when a factory configuration is added or removed.
+     * @return The configuration generation.
+     */
+    public long getGeneration() {
+        return getSnapshot().generation;
+    }
+
+    /**
+     * Obtain the total number of package entries over all regions.
+     * @return The number of packages listed in regions.
+     */
+    public int getPackageCount() {
+        int count = 0;
+        for (Set<String> packages : getSnapshot().regionPackageMap.values()) {
+            count += packages.size();
+        }
+        return count;
+    }
+
+    /**
+     * Estimate the heap retained by the effective configuration maps. The
+     * estimate assumes a 64-bit JVM with compressed oops and compact strings
+     * and counts every distinct object once.
+     * @return The estimated number of bytes.
+     */
+    public long getEstimatedHeapUsage() {
+        long size = 0;
+        for (long s : getEstimatedHeapUsageByMap().values()) {
+            size += s;
+        }
+        return size;
+    }
+
+    /**
+     * Estimate the heap retained by each of the effective configuration maps, as
+     * described in {@link #getEstimatedHeapUsage()}. Objects shared between maps are
+     * attributed to the first map that refers to them.
+     * @return The estimated number of bytes per map, in a stable order.
+     */
+    public Map<String, Long> getEstimatedHeapUsageByMap() {
+        final Snapshot s = getSnapshot();
+        final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Map<String, Long> usage = new LinkedHashMap<>();
+        long size = MAP_BYTES;
+        for (Map.Entry<Map.Entry<String, Version>, List<String>> entry : s.bsnVerMap.entrySet()) {
+            // key is a SimpleEntry holding the bsn and a Version
+            size += MAP_ENTRY_BYTES + 24 + estimateString(entry.getKey().getKey(), seen) + 40;
+            size += estimateCollection(entry.getValue(), seen);
+        }
+        usage.put("bsnVerMap", size);
+        usage.put("bundleFeatureMap", estimateMapOfCollections(s.bundleFeatureMap, seen));
+        usage.put("featureRegionMap", estimateMapOfCollections(s.featureRegionMap, seen));
+        usage.put("regionPackageMap", estimateMapOfCollections(s.regionPackageMap, seen));
+        usage.put("packageFilter", s.packageFilter.getEstimatedHeapUsage());
+        return usage;
+    }
+
+    /**
+     * Obtain the number of bytes that the package index of the effective configuration
+     * holds outside of the Java heap.
+     * @return The number of bytes, 0 unless the off-heap index is enabled.
+     */
+    public long getOffHeapUsage() {
+        final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long size = 0;
+        for (Set<String> packages : getSnapshot().regionPackageMap.values()) {
+            if (packages instanceof PackageSet) {
+                PackageIndex index = ((PackageSet) packages).getIndex();
+                if (seen.add(index)) size += index.getOffHeapUsage();
+            }
+        }
+        return size;
+    }
+
+    private static long estimateMapOfCollections(Map<String, ? extends Collection<String>> map, Set<Object> seen) {
+        long size = MAP_BYTES;
+        for (Map.Entry<String, ? extends Collection<String>> entry : map.entrySet()) {
+            size += MAP_ENTRY_BYTES + estimateString(entry.getKey(), seen);
+            size += estimateCollection(entry.getValue(), seen);
+        }
+        return size;
+    }
+
+    private static long estimateCollection(Collection<String> values, Set<Object> seen) {
+        long size;
+        if (values instanceof PackageSet) {
+            // A package set holds an array of ids, its names are in a table shared with other sets
+            if (!seen.add(values)) return 0;
+            PackageIndex index = ((PackageSet) values).getIndex();
+            size = ((PackageSet) values).getEstimatedHeapUsage();
+            if (seen.add(index)) size += index.getEstimatedHeapUsage();
+            return size;
+        } else {
+            // Sets are backed by a HashMap, lists by an array, both are wrapped unmodifiable
+            size = values instanceof Set ? MAP_BYTES + values.size() * MAP_ENTRY_BYTES : 40 + values.size() * 4;
+        }
+        for (String value : values) {
+            size += estimateString(value, seen);
+        }
+        return size;
+    }
+
+    private static long estimateString(String s, Set<Object> seen) {
+        if (s == null || !seen.add(s)) return 0;
+        // String object plus its byte[] with header, rounded up to 8 bytes
+        return 24 + ((16 + s.length() + 7) & ~7);
+    }
+
     private String[] convert(final Object obj) {
         if (obj instanceof String[]) {
             return (String[]) obj;
@@ -470,6 +1344,113 @@ class RegionConfiguration {
         return new String[] {obj.toString()};
     }
 
+    /**
+     * Add a new factory configuration and rebuild the effective configuration on the
+     * rebuild thread instead of the calling thread.
+     * @param pid The pid
+     * @param props The properties
+     * @return A future that completes with a generation that contains the change
+     */
+    public CompletableFuture<Long> setConfigAsync(final String pid, final Dictionary<String, Object> props) {
+        this.factoryConfigs.put(pid, props);
+        return scheduleUpdate();
+    }
+
+    /**
+     * Remove a factory configuration and rebuild the effective configuration on the
+     * rebuild thread instead of the calling thread.
+     * @param pid The pid
+     * @return A future that completes with a generation that contains the change
+     */
+    public CompletableFuture<Long> removeConfigAsync(final String pid) {
+        if (this.factoryConfigs.remove(pid) == null) {
+            return CompletableFuture.completedFuture(getGeneration());
+        }
+        return scheduleUpdate();
+    }
+
+    private CompletableFuture<Long> scheduleUpdate() {
+        synchronized (updateLock) {
+            if (pendingUpdate != null) return pendingUpdate;
+
+            final CompletableFuture<Long> future = new CompletableFuture<>();
+            pendingUpdate = future;
+            if (executeOnUpdateThread(() -> runUpdate(future))) return future;
+
+            // No rebuild thread, update on the calling thread
+            pendingUpdate = null;
+            runUpdate(future);
+            return future;
+        }
+    }
+
+    // Must be called with updateLock held
+    private boolean executeOnUpdateThread(Runnable task) {
+        if (closed) return false;
+
+        if (updateExecutor == null) {
+            updateExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "API Regions configuration update");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        try {
+            updateExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void runUpdate(final CompletableFuture<Long> future) {
+        synchronized (updateLock) {
+            // Changes from now on need another update
+            if (pendingUpdate == future) pendingUpdate = null;
+        }
+        try {
+            updateConfiguration();
+            future.complete(getGeneration());
+        } catch (RuntimeException e) {
+            Activator.LOG.log(Level.SEVERE, "Problem updating the API Regions configuration", e);
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Get the base configuration parsed from the properties files that this configuration shares
+     * with other configurations in the same JVM.
+     * @return The base configuration, or {@code null} if not created from the files or closed.
+     */
+    BaseConfiguration getSharedBase() {
+        synchronized (updateLock) {
+            return sharedBase;
+        }
+    }
+
+    /**
+     * Stop the rebuild thread and the properties file watcher, and release the shared base
+     * configuration. Later asynchronous
+     * updates run on the calling thread.
+     */
+    public void close() {
+        synchronized (updateLock) {
+            closed = true;
+            if (sharedBase != null) {
+                sharedBase.release();
+                sharedBase = null;
+            }
+            if (watcher != null) {
+                watcher.close();
+                watcher = null;
+            }
+            if (updateExecutor != null) {
+                updateExecutor.shutdown();
+                updateExecutor = null;
+            }
+        }
+    }
+
     /**
      * Add a new factory configuration
      * @param pid The pid
@@ -27,6 +27,12 @@ abstract class RegionConstants {
     static final String DEFAULT_REGIONS = "sling.feature.apiregions.default";
     static final String PROPERTIES_RESOURCE_PREFIX = "sling.feature.apiregions.resource.";
     static final String PROPERTIES_FILE_LOCATION = "sling.feature.apiregions.location";
+    static final String OFF_HEAP_INDEX = "sling.feature.apiregions.offheap";
+    static final String WATCH_FILES = "sling.feature.apiregions.watch";
+    static final String REFRESH_BUNDLES = "sling.feature.apiregions.refresh";
+    static final String LOAD_IN_BACKGROUND = "sling.feature.apiregions.background";
+    static final String PERSIST_DECISIONS = "sling.feature.apiregions.persist";
+    static final String PARALLEL_THRESHOLD = "sling.feature.apiregions.parallel.threshold";
 
     static final String IDBSNVER_FILENAME = "idbsnver.properties";
     static final String BUNDLE_FEATURE_FILENAME = "bundles.properties";
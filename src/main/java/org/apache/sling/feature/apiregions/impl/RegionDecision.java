@@ -0,0 +1,294 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.feature.apiregions.impl.RegionConfiguration.Snapshot;
+
+/**
+ * The rules that decide which capabilities of a package are visible to a requirer. The resolver
+ * hook and the tools that evaluate requirements without a framework all decide with these
+ * methods, each against a single snapshot of the configuration. <p>
+ *
+ * A decision takes three steps: candidates are kept without looking at the package if no region
+ * that is enforced is involved, then the region that covers each candidate is determined with
+ * {@link #getCoveringRegion}, and finally the covered candidates are pruned with {@link #prune}.
+ * {@link #decide} performs all three steps.
+ */
+final class RegionDecision {
+
+    private RegionDecision() {}
+
+    /**
+     * Decide which candidates of a package requirement are visible to the requirer.
+     * @param s The snapshot of the configuration to decide with
+     * @param packageName The package
+     * @param reqBundleID The bundle ID of the requirer
+     * @param reqFeatures The compiled features of the requirer
+     * @param capBundleIDs The bundle IDs of the candidates
+     * @param capFeatures The compiled features of the candidates
+     * @param coverage If not {@code null} the covering regions of candidates from bundles other than the
+     * requirer and the system bundle by their features. The map can be shared by the decisions for the same
+     * package and requirer features.
+     * @return Per candidate the region it is visible in as returned by {@link #getCoveringRegion},
+     * or {@link ResolverHookImpl#NOT_COVERED} if it is removed. {@code null} if all candidates are kept
+     * because only regions that are not enforced are involved.
+     */
+    static String[] decide(
+            Snapshot s,
+            String packageName,
+            long reqBundleID,
+            BundleFeatures reqFeatures,
+            long[] capBundleIDs,
+            BundleFeatures[] capFeatures,
+            Map<BundleFeatures, String> coverage) {
+        // This also keeps the candidates of bundles outside of API Regions, which are never enforced
+        if (!isEnforced(reqFeatures, capFeatures)) return null;
+
+        String[] regions = new String[capFeatures.length];
+        for (int i = 0; i < regions.length; i++) {
+            long capBundleID = capBundleIDs[i];
+            if (coverage != null && capBundleID != 0 && capBundleID != reqBundleID) {
+                String region = coverage.get(capFeatures[i]);
+                if (region == null && !coverage.containsKey(capFeatures[i])) {
+                    region = getCoveringRegion(
+                            s, packageName, reqBundleID, reqFeatures, capBundleID, capFeatures[i], null);
+                    coverage.put(capFeatures[i], region);
+                }
+                regions[i] = region;
+            } else {
+                regions[i] = getCoveringRegion(
+                        s, packageName, reqBundleID, reqFeatures, capBundleID, capFeatures[i], null);
+            }
+        }
+
+        boolean[] kept = prune(reqFeatures.bareRegions, regions);
+        if (kept != null) {
+            for (int i = 0; i < regions.length; i++) {
+                if (!kept[i]) regions[i] = ResolverHookImpl.NOT_COVERED;
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Decide whether a single candidate of a package requirement is visible to the requirer. This is
+     * the decision of {@link #decide} for one candidate without allocating: a single covered
+     * candidate is never pruned.
+     * @param s The snapshot of the configuration to decide with
+     * @param packageName The package
+     * @param reqBundleID The bundle ID of the requirer
+     * @param reqFeatures The compiled features of the requirer
+     * @param capBundleID The bundle ID of the candidate
+     * @param capFeatures The compiled features of the candidate
+     * @return {@code true} if the candidate is kept.
+     */
+    static boolean isVisible(
+            Snapshot s,
+            String packageName,
+            long reqBundleID,
+            BundleFeatures reqFeatures,
+            long capBundleID,
+            BundleFeatures capFeatures) {
+        if (!reqFeatures.enforced && !capFeatures.enforced) return true;
+
+        return getCoveringRegion(s, packageName, reqBundleID, reqFeatures, capBundleID, capFeatures, null)
+                != ResolverHookImpl.NOT_COVERED;
+    }
+
+    /**
+     * Check whether any of the bundles is in an enforced region.
+     * @param reqFeatures The compiled features of the requirer
+     * @param capFeatures The compiled features of the candidates
+     * @return {@code false} if all candidates are kept.
+     */
+    static boolean isEnforced(BundleFeatures reqFeatures, BundleFeatures[] capFeatures) {
+        if (reqFeatures.enforced) return true;
+        for (BundleFeatures bf : capFeatures) {
+            if (bf.enforced) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Determine whether a capability of the provider bundle is visible to the requirer and
+     * if so, in which region.
+     * @param s The snapshot of the configuration to decide with
+     * @param packageName The package of the capability
+     * @param reqBundleID The bundle ID of the requirer
+     * @param reqFeatures The compiled features of the requirer
+     * @param capBundleID The bundle ID of the provider
+     * @param capFeatures The compiled features of the provider
+     * @param report If not {@code null} the cost breakdown is collected in this report
+     * @return The region the capability is visible in, {@code null} if it is visible because it
+     * is in the same bundle, same feature or the system bundle, or {@link ResolverHookImpl#NOT_COVERED}
+     * if it is not visible
+     */
+    static String getCoveringRegion(
+            Snapshot s,
+            String packageName,
+            long reqBundleID,
+            BundleFeatures reqFeatures,
+            long capBundleID,
+            BundleFeatures capFeatures,
+            SlowCallReport report) {
+        if (capBundleID == 0) {
+            if (report != null) report.featuresPerCandidate.add(0);
+
+            // always allow capability from the system bundle
+            return null; // null value means same bundle, same feature or system bundle
+        }
+
+        String covered = ResolverHookImpl.NOT_COVERED;
+        if (capBundleID == reqBundleID) {
+            // always allow capability from same bundle
+
+            // Here we cover the case where the bundle is not in any feature which means that the package is in the
+            // 'global' region,
+            // however if the bundle is in a feature then it could be marked as more specific, with a 'null value',
+            // which may
+            // happen below.
+            covered = RegionConstants.GLOBAL_REGION;
+
+            // note: don't return here, this one may be overwritten later...
+        }
+
+        if (report != null) report.featuresPerCandidate.add(capFeatures.features.size());
+        if (capFeatures.features.isEmpty()) {
+            // Capability is not in any feature, everyone can access
+            return RegionConstants.GLOBAL_REGION;
+        }
+
+        // Most packages are in no region, the filter rules this out without looking at the regions
+        boolean inRegion = s.mayBeInRegion(packageName);
+        for (String capFeat : capFeatures.features) {
+            if (reqFeatures.features.contains(capFeat)) {
+                // Within a single feature everything can wire to everything else
+
+                // null value means same bundle, same feature or system bundle, but if exported into global region,
+                // use 'global' instead
+                return isInGlobalRegion(s, packageName, capFeat) ? RegionConstants.GLOBAL_REGION : null;
+            }
+
+            List<String> capRegions = s.featureRegionMap.get(capFeat);
+            if (capRegions == null || capRegions.size() == 0) {
+                // If the feature hosting the capability has no regions defined, everyone can access
+                return RegionConstants.GLOBAL_REGION;
+            }
+            if (!inRegion) continue;
+
+            // Look at specific regions first as they take precedence over the global region
+            for (String region : reqFeatures.regionsAndAncestors) {
+                if (report != null) report.sharedRegionScan++;
+                if (!capRegions.contains(region)) continue;
+
+                if (s.isPackageInRegion(region, packageName)) {
+                    // If the export is in a region that the feature is also in, then allow
+                    return region;
+                }
+            }
+
+            // Now check the global region
+            if (s.isPackageInRegion(RegionConstants.GLOBAL_REGION, packageName)) {
+                // If the export is in the global region everyone can access
+                return RegionConstants.GLOBAL_REGION;
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * Check if the package is exported in the global region
+     * @param s The snapshot of the configuration
+     * @param packageName The package
+     * @param capFeat The feature where it is found
+     * @return If the feature exports to the global region and the package is exported into the global region
+     */
+    private static boolean isInGlobalRegion(Snapshot s, String packageName, String capFeat) {
+        List<String> capRegions = s.featureRegionMap.get(capFeat);
+        return capRegions != null
+                && capRegions.contains(RegionConstants.GLOBAL_REGION)
+                && s.isPackageInRegion(RegionConstants.GLOBAL_REGION, packageName);
+    }
+
+    /**
+     * If there are multiple choices of capabilities and some of the capabilities are in the global
+     * region while others are in another named region or in a feature-private region, take out the
+     * capabilities from the global region so that the requirement gets wired to the more 'specific'
+     * one than the global one.
+     * Capabilities that are considered specific but not in a named region have a {@code null} region.
+     *
+     * @param reqRegions The regions declared in the requiring feature. If {@code null} is passed in
+     * the requirement did not opt into the API Regions
+     * @param regions Per candidate the region it is visible in, {@link ResolverHookImpl#NOT_COVERED}
+     * for the candidates that are not visible
+     * @return {@code null} if no candidate is taken out, otherwise per candidate whether it is kept
+     */
+    static boolean[] prune(Set<String> reqRegions, String[] regions) {
+        if (reqRegions == null) {
+            // No regions (other than global) for the requirement: do nothing
+            return null;
+        }
+
+        int coveredCount = 0;
+        boolean[] specific = new boolean[regions.length];
+        int specificCount = 0;
+        for (int i = 0; i < regions.length; i++) {
+            String capRegion = regions[i];
+            if (capRegion == ResolverHookImpl.NOT_COVERED) continue;
+            coveredCount++;
+
+            if (capRegion == null) {
+                // This one came from the same bundle, the same feature or bundle 0 -> always allow
+                specific[i] = true;
+                specificCount++;
+            } else if (!RegionConstants.GLOBAL_REGION.equals(capRegion) && reqRegions.contains(capRegion)) {
+                // the requirement has the region from the capability
+                specific[i] = true;
+                specificCount++;
+            }
+        }
+
+        // There are no capabilities that are either in the same bundle, same feature or overlapping specific
+        // feature. We should just allow all, including the global region. If all are specific, there is
+        // nothing to take out either.
+        if (specificCount == 0 || specificCount == coveredCount) return null;
+
+        // There are specific capabilities, therefore we should remove the Global region is any from the capabilities
+        return specific;
+    }
+
+    /**
+     * Obtain the feature a denial of the provider is attributed to.
+     * @param s The snapshot of the configuration
+     * @param capFeatures The compiled features of the provider
+     * @return The last feature of the provider that has regions, {@code null} if there is none.
+     */
+    static String getDenyingFeature(Snapshot s, BundleFeatures capFeatures) {
+        String capFeat = null;
+        for (String feature : capFeatures.features) {
+            List<String> regions = s.featureRegionMap.get(feature);
+            if (regions != null && !regions.isEmpty()) capFeat = feature;
+        }
+        return capFeat;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics collected by the resolver hooks created by a {@link RegionEnforcer}.
+ * The hot path only updates striped counters, the values are aggregated when read.
+ */
+class RegionEnforcementStats implements RegionEnforcementStatsMBean {
+    static final int MAX_DENIALS = 100;
+
+    private final RegionConfiguration configuration;
+
+    private final LongAdder callCount = new LongAdder();
+    private final LongAdder cumulativeLatency = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final LongAdder denialCount = new LongAdder();
+    private final LongAdder slowCallCount = new LongAdder();
+    private final LongAdder cacheHitCount = new LongAdder();
+    private final LongAdder cacheMissCount = new LongAdder();
+    private final LongAdder bypassedCallCount = new LongAdder();
+    private final Deque<String> denials = new ArrayDeque<>();
+    private volatile long resetTime = System.nanoTime();
+    // When false nothing is recorded, the values that were recorded before remain
+    private volatile boolean recording = true;
+
+    private volatile DecisionRingBuffer decisions;
+    private final StringIds regionIds = new StringIds();
+    private final DenialCounters denialCounters = new DenialCounters(regionIds, new StringIds());
+
+    RegionEnforcementStats(RegionConfiguration configuration) {
+        this(configuration, DecisionRingBuffer.DEFAULT_CAPACITY);
+    }
+
+    RegionEnforcementStats(RegionConfiguration configuration, int decisionCapacity) {
+        this.configuration = configuration;
+        this.decisions = new DecisionRingBuffer(decisionCapacity);
+    }
+
+    /**
+     * Apply the metrics settings. A new decision capacity drops the recent decisions.
+     * @param settings The settings
+     */
+    synchronized void applySettings(HookSettings settings) {
+        this.recording = settings.metrics;
+        if (decisions.capacity() != capacityFor(settings.decisionCapacity)) {
+            decisions = new DecisionRingBuffer(settings.decisionCapacity);
+        }
+    }
+
+    // The ring buffer rounds up to a power of two
+    private static int capacityFor(int capacity) {
+        return capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    /**
+     * Check whether statistics are recorded.
+     * @return {@code false} if recording is switched off.
+     */
+    boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Record a completed {@code filterMatches} call.
+     * @param nanos The duration of the call
+     */
+    void recordCall(long nanos) {
+        if (!recording) return;
+        callCount.increment();
+        cumulativeLatency.add(nanos);
+        if (nanos > maxLatency.get()) {
+            maxLatency.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    /**
+     * Record a call that exceeded the slow call threshold.
+     */
+    void recordSlowCall() {
+        if (!recording) return;
+        slowCallCount.increment();
+    }
+
+    /**
+     * Record a lookup in the dynamic import visibility cache.
+     * @param hit Whether the lookup was served from the cache
+     */
+    void recordCacheLookup(boolean hit) {
+        if (!recording) return;
+        if (hit) {
+            cacheHitCount.increment();
+        } else {
+            cacheMissCount.increment();
+        }
+    }
+
+    /**
+     * Record a call that was not filtered because it only involves regions that are not enforced,
+     * or only bundles that are outside of API Regions.
+     */
+    void recordBypass() {
+        if (!recording) return;
+        bypassedCallCount.increment();
+    }
+
+    /**
+     * Record that candidates were removed for a requirement.
+     * @param denial The description of the denial
+     */
+    void recordDenial(String denial) {
+        if (!recording) return;
+        denialCount.increment();
+        synchronized (denials) {
+            if (denials.size() == MAX_DENIALS) {
+                denials.removeLast();
+            }
+            denials.addFirst(denial);
+        }
+    }
+
+    /**
+     * Record that a region caused a candidate to be removed.
+     * @param region The region, or {@code null} if the package is not exported in any region
+     */
+    void recordRegionDenial(String region) {
+        if (!recording) return;
+        denialCounters.countRegion(region);
+    }
+
+    /**
+     * Record that a capability of the providing feature was removed for a requirement of the
+     * requiring feature.
+     * @param requiringFeature The requiring feature, or {@code null} if the requirement is in no feature
+     * @param providingFeature The providing feature, or {@code null} if not known
+     */
+    void recordFeatureDenial(String requiringFeature, String providingFeature) {
+        if (!recording) return;
+        denialCounters.countFeaturePair(requiringFeature, providingFeature);
+    }
+
+    /**
+     * Record a package wiring decision in the ring buffer of recent decisions.
+     * @param requirer The bundle id of the requirement
+     * @param packageName The package
+     * @param removed The bundle id of the removed capability, or {@code -1} if nothing was removed
+     * @param kept The bundle id of a kept capability, or {@code -1} if nothing was kept
+     * @param region The region that allowed the kept capability, or {@code null}
+     */
+    void recordDecision(long requirer, String packageName, long removed, long kept, String region) {
+        if (!recording) return;
+        decisions.record(requirer, packageName, removed, kept, regionIds.idOf(region));
+    }
+
+    /**
+     * Visit the recent decisions, newest first.
+     * @param visitor The visitor
+     */
+    void visitDecisions(DecisionVisitor visitor) {
+        decisions.visit((seq, requirer, packageName, removed, kept, regionId) ->
+                visitor.visit(seq, requirer, packageName, removed, kept, regionIds.nameOf(regionId)));
+    }
+
+    @Override
+    public long getCallCount() {
+        return callCount.sum();
+    }
+
+    @Override
+    public double getCallRate() {
+        long elapsed = System.nanoTime() - resetTime;
+        if (elapsed <= 0) return 0;
+        return getCallCount() / ((double) elapsed / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public long getCumulativeLatencyNanos() {
+        return cumulativeLatency.sum();
+    }
+
+    @Override
+    public long getMaxLatencyNanos() {
+        return maxLatency.get();
+    }
+
+    @Override
+    public long getDenialCount() {
+        return denialCount.sum();
+    }
+
+    @Override
+    public long getSlowCallCount() {
+        return slowCallCount.sum();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cacheHitCount.sum();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cacheMissCount.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHitCount();
+        long lookups = hits + getCacheMissCount();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getBypassedCallCount() {
+        return bypassedCallCount.sum();
+    }
+
+    // The configuration getters wait while the properties files are loaded in the background
+    private boolean isLoaded() {
+        return configuration != null && configuration.isLoaded();
+    }
+
+    @Override
+    public long getConfigurationGeneration() {
+        return isLoaded() ? configuration.getGeneration() : -1;
+    }
+
+    @Override
+    public int getBundleCount() {
+        return isLoaded() ? configuration.getBsnVerMap().size() : 0;
+    }
+
+    @Override
+    public int getFeatureCount() {
+        return isLoaded() ? configuration.getFeatureRegionMap().size() : 0;
+    }
+
+    @Override
+    public int getRegionCount() {
+        return isLoaded() ? configuration.getRegionPackageMap().size() : 0;
+    }
+
+    @Override
+    public int getPackageCount() {
+        return isLoaded() ? configuration.getPackageCount() : 0;
+    }
+
+    @Override
+    public long getEstimatedConfigurationHeapBytes() {
+        return isLoaded() ? configuration.getEstimatedHeapUsage() : 0;
+    }
+
+    @Override
+    public void resetCounters() {
+        callCount.reset();
+        cumulativeLatency.reset();
+        maxLatency.set(0);
+        denialCount.reset();
+        slowCallCount.reset();
+        cacheHitCount.reset();
+        cacheMissCount.reset();
+        bypassedCallCount.reset();
+        synchronized (denials) {
+            denials.clear();
+        }
+        denialCounters.reset();
+        resetTime = System.nanoTime();
+    }
+
+    @Override
+    public String[] dumpDenials(int count) {
+        synchronized (denials) {
+            String[] result = new String[Math.max(0, Math.min(count, denials.size()))];
+            Iterator<String> it = denials.iterator();
+            for (int i = 0; i < result.length; i++) {
+                result[i] = it.next();
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public String[] topRegionDenials(int count) {
+        return denialCounters.topRegions(count).toArray(new String[0]);
+    }
+
+    @Override
+    public String[] topFeatureDenials(int count) {
+        return denialCounters.topFeaturePairs(count).toArray(new String[0]);
+    }
+
+    @Override
+    public String[] recentDecisions(String filter) {
+        List<String> result = new ArrayList<>();
+        visitDecisions((seq, requirer, pkg, removed, kept, region) -> {
+            String line = String.format(
+                    "#%d bundle %d -> %s: removed %s, kept %s, region %s",
+                    seq,
+                    requirer,
+                    pkg,
+                    removed < 0 ? "-" : String.valueOf(removed),
+                    kept < 0 ? "-" : String.valueOf(kept),
+                    region == null ? "-" : region);
+            if (filter == null || line.contains(filter)) {
+                result.add(line);
+            }
+        });
+        return result.toArray(new String[0]);
+    }
+
+    interface DecisionVisitor {
+        void visit(long sequence, long requirer, String packageName, long removed, long kept, String region);
+    }
+}
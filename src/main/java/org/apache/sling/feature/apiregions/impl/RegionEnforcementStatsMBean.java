@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+/**
+ * Management interface exposing the cost of the API Regions runtime enforcement
+ * and the size of the current region configuration.
+ */
+public interface RegionEnforcementStatsMBean {
+    /**
+     * @return The number of package namespace {@code filterMatches} calls since the last reset.
+     */
+    long getCallCount();
+
+    /**
+     * @return The average number of {@code filterMatches} calls per second since the last reset.
+     */
+    double getCallRate();
+
+    /**
+     * @return The cumulative time spent in {@code filterMatches} since the last reset, in nanoseconds.
+     */
+    long getCumulativeLatencyNanos();
+
+    /**
+     * @return The longest single {@code filterMatches} call since the last reset, in nanoseconds.
+     */
+    long getMaxLatencyNanos();
+
+    /**
+     * @return The number of requirements for which candidates were removed since the last reset.
+     */
+    long getDenialCount();
+
+    /**
+     * @return The number of {@code filterMatches} calls that exceeded the slow call threshold since the last reset.
+     */
+    long getSlowCallCount();
+
+    /**
+     * @return The number of dynamic import visibility lookups served from the cache since the last reset.
+     */
+    long getCacheHitCount();
+
+    /**
+     * @return The number of dynamic import visibility lookups not found in the cache since the last reset.
+     */
+    long getCacheMissCount();
+
+    /**
+     * @return The fraction of dynamic import visibility lookups served from the cache since the last reset.
+     */
+    double getCacheHitRatio();
+
+    /**
+     * @return The number of package resolution calls that were not filtered since the last reset,
+     * because neither the requirer nor any candidate is in an enforced region, or because the requirer
+     * and all candidates other than the system bundle are in no feature while no default regions are
+     * configured.
+     */
+    long getBypassedCallCount();
+
+    /**
+     * @return The generation of the effective region configuration, {@code -1} while the configuration
+     * is loaded in the background. The sizes of the configuration are {@code 0} until then.
+     */
+    long getConfigurationGeneration();
+
+    /**
+     * @return The number of bundles (by symbolic name and version) known to the configuration.
+     */
+    int getBundleCount();
+
+    /**
+     * @return The number of features known to the configuration.
+     */
+    int getFeatureCount();
+
+    /**
+     * @return The number of regions known to the configuration.
+     */
+    int getRegionCount();
+
+    /**
+     * @return The total number of package entries over all regions.
+     */
+    int getPackageCount();
+
+    /**
+     * @return The estimated heap footprint of the current region configuration, in bytes.
+     */
+    long getEstimatedConfigurationHeapBytes();
+
+    /**
+     * Reset all call, latency and denial counters.
+     */
+    void resetCounters();
+
+    /**
+     * Obtain the most recent denials, newest first.
+     * @param count The maximum number of denials to return.
+     * @return The denials.
+     */
+    String[] dumpDenials(int count);
+
+    /**
+     * Obtain the regions that caused the most candidate removals.
+     * @param count The maximum number of regions to return.
+     * @return Entries of the form {@code region=count}, highest count first.
+     */
+    String[] topRegionDenials(int count);
+
+    /**
+     * Obtain the (requiring feature, providing feature) pairs that caused the most candidate removals.
+     * @param count The maximum number of pairs to return.
+     * @return Entries of the form {@code requiring -> providing=count}, highest count first.
+     */
+    String[] topFeatureDenials(int count);
+
+    /**
+     * Obtain the recent wiring decisions of the resolver hook, newest first.
+     * @param filter Only decisions that contain this text are returned, all decisions if it is empty.
+     * @return Entries of the form {@code #sequence bundle requirer -> package: removed provider, kept provider,
+     * region region}.
+     */
+    String[] recentDecisions(String filter);
+}
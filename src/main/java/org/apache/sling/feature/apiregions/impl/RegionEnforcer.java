@@ -18,8 +18,13 @@
  */
 package org.apache.sling.feature.apiregions.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.function.LongFunction;
+import java.util.logging.Level;
 
+import org.apache.sling.feature.apiregions.impl.RegionConfiguration.Snapshot;
 import org.osgi.framework.hooks.resolver.ResolverHook;
 import org.osgi.framework.hooks.resolver.ResolverHookFactory;
 import org.osgi.framework.wiring.BundleRevision;
@@ -27,13 +32,156 @@ import org.osgi.framework.wiring.BundleRevision;
 class RegionEnforcer implements ResolverHookFactory {
 
     final RegionConfiguration configuration;
+    final RegionEnforcementStats stats;
+
+    // Replaced as a whole when the settings change, a hook reads it once when it begins
+    private volatile HookState state;
+
+    // Set when the decisions are persisted, the hooks then cache all package requirements
+    private volatile LongFunction<String> bundleLocations;
+    // Decisions of an earlier run, imported once the configuration has the same checksum
+    private volatile DecisionStore pendingDecisions;
+    private long checkedGeneration = -1; // Guarded by this
 
     RegionEnforcer(RegionConfiguration configuration) {
+        this(configuration, new RegionEnforcementStats(configuration), Long.MAX_VALUE);
+    }
+
+    RegionEnforcer(RegionConfiguration configuration, RegionEnforcementStats stats, long slowCallThresholdNanos) {
+        this(configuration, stats, HookSettings.defaults(slowCallThresholdNanos));
+    }
+
+    RegionEnforcer(RegionConfiguration configuration, RegionEnforcementStats stats, HookSettings settings) {
         this.configuration = configuration;
+        this.stats = stats;
+        applySettings(settings);
+    }
+
+    /**
+     * Apply new settings to the hooks that begin from now on. The dynamic import cache
+     * and the denial log history are kept if their settings did not change.
+     * @param settings The settings
+     */
+    synchronized void applySettings(HookSettings settings) {
+        final HookState current = this.state;
+
+        VisibilityCache cache = null;
+        if (settings.cacheSize > 0) {
+            cache = current != null && current.settings.cacheSize == settings.cacheSize
+                    ? current.visibilityCache
+                    : new VisibilityCache(settings.cacheSize);
+        }
+        DenialLogLimiter logLimiter = null;
+        if (settings.logSuppressionNanos > 0) {
+            logLimiter = current != null && current.settings.logSuppressionNanos == settings.logSuppressionNanos
+                    ? current.logLimiter
+                    : new DenialLogLimiter(settings.logSuppressionNanos);
+        }
+        stats.applySettings(settings);
+        this.state = new HookState(settings, cache, logLimiter, isPersistent());
+    }
+
+    HookSettings getSettings() {
+        return state.settings;
+    }
+
+    /**
+     * Cache the decisions of all package requirements, so that they can be saved and used again
+     * in the next run.
+     * @param bundleLocations Obtains the location of a bundle id, {@code null} if not installed
+     */
+    synchronized void enablePersistence(LongFunction<String> bundleLocations) {
+        this.bundleLocations = bundleLocations;
+        final HookState current = this.state;
+        this.state = new HookState(current.settings, current.visibilityCache, current.logLimiter, true);
+    }
+
+    boolean isPersistent() {
+        return bundleLocations != null;
+    }
+
+    /**
+     * Set the decisions of an earlier run. They are put into the cache as soon as the
+     * configuration has the checksum they were made with.
+     * @param decisions The decisions
+     */
+    void setPendingDecisions(DecisionStore decisions) {
+        this.pendingDecisions = decisions;
+    }
+
+    /**
+     * Save the cached decisions of the current configuration.
+     * @param file The file
+     * @return The number of decisions saved, {@code -1} if there is nothing to save.
+     * @throws IOException If the file cannot be written.
+     */
+    int saveDecisions(File file) throws IOException {
+        final HookState s = this.state;
+        if (s.visibilityCache == null || bundleLocations == null) return -1;
+
+        final Snapshot snapshot = configuration.getSnapshot();
+        return DecisionStore.save(
+                file, configuration.getChecksum(snapshot), s.visibilityCache, snapshot.generation, bundleLocations);
+    }
+
+    private void importPendingDecisions(VisibilityCache cache) {
+        // Don't wait for a configuration that is loaded in the background
+        if (pendingDecisions == null || cache == null || !configuration.isLoaded()) return;
+
+        synchronized (this) {
+            final DecisionStore decisions = pendingDecisions;
+            final Snapshot snapshot = configuration.getSnapshot();
+            // Compute the checksum once per generation
+            if (decisions == null || snapshot.generation == checkedGeneration) return;
+            checkedGeneration = snapshot.generation;
+            if (configuration.getChecksum(snapshot) != decisions.checksum) return;
+
+            pendingDecisions = null;
+            final int count;
+            try {
+                count = decisions.importInto(cache, snapshot.generation, bundleLocations);
+            } catch (RuntimeException e) {
+                // Resolve without the decisions of the previous run rather than failing
+                Activator.LOG.log(Level.WARNING, "Unable to use the API Regions decisions of the previous run", e);
+                return;
+            }
+            Activator.LOG.log(
+                    Level.INFO,
+                    "Using {0} of {1} API Regions decisions of the previous run",
+                    new Object[] {count, decisions.size()});
+        }
     }
 
     @Override
     public ResolverHook begin(Collection<BundleRevision> triggers) {
-        return new ResolverHookImpl(this.configuration);
+        final HookState s = this.state;
+        importPendingDecisions(s.visibilityCache);
+        return new ResolverHookImpl(this.configuration, this.stats, s);
+    }
+
+    /**
+     * What the hooks share between resolve operations.
+     */
+    static final class HookState {
+        /** No dynamic import cache, no log suppression and no slow call reports. */
+        static final HookState NONE = new HookState(
+                new HookSettings(0, true, 0, Long.MAX_VALUE, DecisionRingBuffer.DEFAULT_CAPACITY), null, null, false);
+
+        final HookSettings settings;
+        final VisibilityCache visibilityCache;
+        final DenialLogLimiter logLimiter;
+        // Set when the decisions are persisted, then the decisions of all package requirements are cached
+        final boolean cacheAllRequirements;
+
+        HookState(
+                HookSettings settings,
+                VisibilityCache visibilityCache,
+                DenialLogLimiter logLimiter,
+                boolean cacheAllRequirements) {
+            this.settings = settings;
+            this.visibilityCache = visibilityCache;
+            this.logLimiter = logLimiter;
+            this.cacheAllRequirements = cacheAllRequirements;
+        }
     }
 }
@@ -23,6 +23,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
@@ -38,12 +39,19 @@ public class RegionPrinter {
 
     static final String HEADLINE = "Sling Feature - API Regions";
     static final String PATH = "feature_apiregions";
+    static final int TOP_DENIALS = 10;
     private RegionConfiguration config;
     private BundleContext context;
+    private RegionEnforcementStats stats;
 
     public RegionPrinter(BundleContext context, RegionConfiguration config) {
+        this(context, config, null);
+    }
+
+    RegionPrinter(BundleContext context, RegionConfiguration config, RegionEnforcementStats stats) {
         this.context = context;
         this.config = config;
+        this.stats = stats;
     }
 
     private void renderPackageMappings(PrintWriter pw) {
@@ -75,6 +83,64 @@ public class RegionPrinter {
         });
     }
 
+    /**
+     * Print the recent wiring decisions recorded by the resolver hook, newest first. The
+     * web console can't pass a filter, the {@code recentDecisions} operation of the MBean
+     * returns the decisions that contain a text.
+     *
+     * @param pw The writer to print to
+     */
+    public void printDecisions(PrintWriter pw) {
+        if (stats == null) {
+            pw.println("Decisions not available");
+            return;
+        }
+        printAll(Arrays.asList(stats.recentDecisions("")), pw);
+    }
+
+    /**
+     * Print the estimated heap usage of the effective configuration, per map and in total.
+     *
+     * @param pw The writer to print to
+     */
+    public void printHeapUsage(PrintWriter pw) {
+        if (config == null || !config.isLoaded()) {
+            pw.println("Heap usage not available");
+            return;
+        }
+        long total = 0;
+        for (Map.Entry<String, Long> entry : config.getEstimatedHeapUsageByMap().entrySet()) {
+            pw.println(String.format(" - %s: %d bytes", entry.getKey(), entry.getValue()));
+            total += entry.getValue();
+        }
+        pw.println(String.format(" - total: %d bytes for %d package entries", total, config.getPackageCount()));
+        long offHeap = config.getOffHeapUsage();
+        if (offHeap > 0) {
+            pw.println(String.format(" - off-heap package index: %d bytes", offHeap));
+        }
+    }
+
+    /**
+     * Print the size and estimated false positive rate of the filter that rejects packages
+     * which are in no region.
+     *
+     * @param pw The writer to print to
+     */
+    public void printPackageFilter(PrintWriter pw) {
+        PackageFilter filter = config != null && config.isLoaded() ? config.getPackageFilter() : null;
+        if (filter == null) {
+            pw.println("Package filter not available");
+            return;
+        }
+        pw.println(String.format(
+                Locale.ROOT,
+                " - %d packages, %d bits, %d hash functions, false positive rate %.4f%%",
+                filter.size(),
+                filter.bitCount(),
+                PackageFilter.HASH_FUNCTIONS,
+                filter.getFalsePositiveRate() * 100));
+    }
+
     private void renderHeader(PrintWriter pw, String header) {
         pw.println("\n\n" + header + "\n-------------------\n");
     }
@@ -101,7 +167,10 @@ public class RegionPrinter {
     public void printConfiguration(PrintWriter pw) {
         pw.println(HEADLINE + "\n===========================");
 
-        if (config != null) {
+        if (config != null && !config.isLoaded()) {
+            // Don't wait for the properties files that are loaded in the background
+            pw.println("\n\nConfiguration is loading");
+        } else if (config != null) {
             renderHeader(pw, "Default Regions");
             printAll(config.getDefaultRegions(), pw);
             renderHeader(pw, "Region Order");
@@ -112,6 +181,18 @@ public class RegionPrinter {
             renderPackageMappings(pw);
             renderHeader(pw, "Bundle Mappings");
             renderBundleMappings(pw);
+            if (stats != null) {
+                renderHeader(pw, "Top Denials per Region");
+                printAll(Arrays.asList(stats.topRegionDenials(TOP_DENIALS)), pw);
+                renderHeader(pw, "Top Denials per Feature");
+                printAll(Arrays.asList(stats.topFeatureDenials(TOP_DENIALS)), pw);
+                renderHeader(pw, "Recent Decisions");
+                printDecisions(pw);
+            }
+            renderHeader(pw, "Heap Usage");
+            printHeapUsage(pw);
+            renderHeader(pw, "Package Filter");
+            printPackageFilter(pw);
         } else {
             pw.println("\n\nConfiguration not available");
         }
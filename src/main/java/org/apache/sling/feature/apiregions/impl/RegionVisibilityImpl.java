@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.feature.apiregions.RegionVisibility;
+import org.apache.sling.feature.apiregions.impl.RegionConfiguration.Snapshot;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+/**
+ * Answers visibility queries from the same compiled configuration and decision logic
+ * that the resolver hook uses.
+ */
+class RegionVisibilityImpl implements RegionVisibility {
+    private final RegionConfiguration configuration;
+
+    RegionVisibilityImpl(RegionConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    @Override
+    public boolean isVisible(Bundle requirer, String packageName, Bundle provider) {
+        final Snapshot s = configuration.getSnapshot();
+        return RegionDecision.isVisible(
+                s,
+                packageName,
+                requirer.getBundleId(),
+                s.getBundleFeatures(getBsnVer(requirer)),
+                provider.getBundleId(),
+                s.getBundleFeatures(getBsnVer(provider)));
+    }
+
+    @Override
+    public Set<String> visiblePackages(Bundle requirer) {
+        return configuration.getSnapshot().getBundleFeatures(getBsnVer(requirer)).getVisiblePackages();
+    }
+
+    // The bsn and version the bundle was first installed with, as the resolver hook looks it up
+    private Map.Entry<String, Version> getBsnVer(Bundle bundle) {
+        Map.Entry<String, Version> bsnVer = configuration.getBundleLocationConfigMap().get(bundle.getLocation());
+        return bsnVer != null ? bsnVer : new AbstractMap.SimpleEntry<>(bundle.getSymbolicName(), bundle.getVersion());
+    }
+}
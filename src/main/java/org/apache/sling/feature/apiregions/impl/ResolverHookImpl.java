@@ -18,19 +18,19 @@
  */
 package org.apache.sling.feature.apiregions.impl;
 
+import java.text.MessageFormat;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
-import java.util.stream.Collectors;
 
+import org.apache.sling.feature.apiregions.impl.RegionConfiguration.Snapshot;
+import org.apache.sling.feature.apiregions.impl.RegionEnforcer.HookState;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Version;
 import org.osgi.framework.hooks.resolver.ResolverHook;
@@ -41,10 +41,32 @@ import org.osgi.framework.wiring.BundleRevision;
 
 class ResolverHookImpl implements ResolverHook {
 
+    static final String REMOVED_CANDIDATES_MESSAGE =
+            "API-Regions removed candidates {0} for requirement {1} as the requirement is in the following regions: {2} and in feature: {3}";
+
+    static final String SLOW_CALL_MESSAGE = "API-Regions slow filterMatches call: {0}";
+
+    // Returned by RegionDecision.getCoveringRegion() for capabilities that are not visible, compared by identity
+    static final String NOT_COVERED = new String("not covered");
+
     final RegionConfiguration configuration;
+    final RegionEnforcementStats stats;
+    final long slowCallThresholdNanos;
+    final VisibilityCache visibilityCache;
+    final DenialLogLimiter logLimiter;
+    final boolean cacheAllRequirements;
 
     ResolverHookImpl(RegionConfiguration cfg) {
+        this(cfg, new RegionEnforcementStats(cfg), HookState.NONE);
+    }
+
+    ResolverHookImpl(RegionConfiguration cfg, RegionEnforcementStats stats, HookState state) {
         this.configuration = cfg;
+        this.stats = stats;
+        this.slowCallThresholdNanos = state.settings.slowCallThresholdNanos;
+        this.visibilityCache = state.visibilityCache;
+        this.logLimiter = state.logLimiter;
+        this.cacheAllRequirements = state.cacheAllRequirements;
     }
 
     @Override
@@ -63,113 +85,157 @@ class ResolverHookImpl implements ResolverHook {
         // Filtering is only on package resolution. Any other kind of resolution is not limited
         if (!PackageNamespace.PACKAGE_NAMESPACE.equals(requirement.getNamespace())) return;
 
-        if (candidates.isEmpty()) return;
-
-        Object pkg = candidates.iterator().next().getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
-        if (!(pkg instanceof String)) {
-            return;
+        final Object event = JfrEvent.FILTER_MATCHES.begin();
+        final long start = System.nanoTime();
+        Snapshot s = null;
+        List<BundleCapability> allCandidates = null;
+        try {
+            if (!candidates.isEmpty()) {
+                // All decisions of the call are made against the same generation of the configuration
+                s = configuration.getSnapshot();
+                allCandidates = filterPackageMatches(s, requirement, candidates);
+            }
+        } finally {
+            final long duration = System.nanoTime() - start;
+            stats.recordCall(duration);
+            if (event != null && allCandidates != null) {
+                JfrEvent.FILTER_MATCHES.commit(
+                        event,
+                        allCandidates.get(0).getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE),
+                        requirement.getRevision().getBundle().getBundleId(),
+                        allCandidates.size(),
+                        candidates.size());
+            }
+            if (duration > slowCallThresholdNanos && allCandidates != null) {
+                stats.recordSlowCall();
+                Activator.LOG.log(
+                        Level.WARNING, SLOW_CALL_MESSAGE, analyzeSlowCall(s, requirement, allCandidates, duration));
+            }
         }
-        String packageName = (String) pkg;
+    }
 
+    /**
+     * Evaluate a slow call a second time, against the same configuration snapshot, while collecting
+     * its cost breakdown. The decisions are not cached, recorded or logged.
+     * @param s The configuration snapshot of the slow call
+     * @param requirement The requirement
+     * @param allCandidates The candidates as they were passed to the slow call
+     * @param duration The duration of the slow call
+     * @return The cost breakdown.
+     */
+    private SlowCallReport analyzeSlowCall(
+            Snapshot s, BundleRequirement requirement, List<BundleCapability> allCandidates, long duration) {
         Bundle reqBundle = requirement.getRevision().getBundle();
-        long reqBundleID = reqBundle.getBundleId();
-
-        Set<String> bareReqRegions = null; // Null means: not opting into API Regions
-        Set<String> reqFeatures = getFeaturesForBundle(reqBundle);
-        for (String feature : reqFeatures) {
-            List<String> fr = this.configuration.getFeatureRegionMap().get(feature);
-            if (fr != null) {
-                if (bareReqRegions == null) bareReqRegions = new HashSet<>();
-                bareReqRegions.addAll(fr);
-            }
+        SlowCallReport report = new SlowCallReport(
+                (String) allCandidates.get(0).getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE),
+                reqBundle.getBundleId(),
+                duration);
+        BundleFeatures reqBundleFeatures = getBundleFeatures(s, reqBundle);
+
+        String[] regions = new String[allCandidates.size()];
+        report.candidates = regions.length;
+        for (int i = 0; i < regions.length; i++) {
+            Bundle capBundle = allCandidates.get(i).getRevision().getBundle();
+            regions[i] = RegionDecision.getCoveringRegion(
+                    s,
+                    report.packageName,
+                    report.requirer,
+                    reqBundleFeatures,
+                    capBundle.getBundleId(),
+                    getBundleFeatures(s, capBundle),
+                    report);
         }
-        Set<String> reqRegions = new HashSet<>(this.configuration.getDefaultRegions());
-        if (bareReqRegions != null) reqRegions.addAll(bareReqRegions);
-
-        Map<BundleCapability, String> coveredCaps = new HashMap<>();
-        Map<BundleCapability, String> bcFeatureMap = new HashMap<>();
-
-        nextCapability:
-        for (BundleCapability bc : candidates) {
-            BundleRevision rev = bc.getRevision();
-
-            Bundle capBundle = rev.getBundle();
-            long capBundleID = capBundle.getBundleId();
-            if (capBundleID == 0) {
-                // always allow capability from the system bundle
-                coveredCaps.put(bc, null); // null value means same bundle, same feature or system bundle
-                continue nextCapability;
-            }
-
-            if (capBundleID == reqBundleID) {
-                // always allow capability from same bundle
 
-                // Here we cover the case where the bundle is not in any feature which means that the package is in the
-                // 'global' region,
-                // however if the bundle is in a feature then it could be marked as more specific, with a 'null value',
-                // which may
-                // happen below.
-                coveredCaps.put(bc, RegionConstants.GLOBAL_REGION);
+        final long pruneStart = System.nanoTime();
+        boolean[] specific = RegionDecision.prune(reqBundleFeatures.bareRegions, regions);
+        report.pruneNanos = System.nanoTime() - pruneStart;
 
-                // note: don't continue to nextCapability here, this one may be overwritten later...
-            }
-
-            Set<String> capFeatures = getFeaturesForBundle(capBundle);
-            if (capFeatures.isEmpty()) {
-                // Capability is not in any feature, everyone can access
-                coveredCaps.put(bc, RegionConstants.GLOBAL_REGION);
-                continue nextCapability;
-            }
+        for (int i = 0; i < regions.length; i++) {
+            if (regions[i] != NOT_COVERED && (specific == null || specific[i])) report.kept++;
+        }
+        return report;
+    }
 
-            for (String capFeat : capFeatures) {
-                if (reqFeatures.contains(capFeat)) {
-                    // Within a single feature everything can wire to everything else
+    /**
+     * Remove the candidates that are not visible to the requirement.
+     * @param s The configuration snapshot
+     * @param requirement The requirement
+     * @param candidates The candidates, not empty, modified in place
+     * @return The candidates before filtering, or {@code null} if the candidates were not filtered
+     */
+    private List<BundleCapability> filterPackageMatches(
+            Snapshot s, BundleRequirement requirement, Collection<BundleCapability> candidates) {
+        Bundle reqBundle = requirement.getRevision().getBundle();
+        if (isUnmanaged(s, reqBundle, candidates)) {
+            // None of the bundles is limited by API Regions, keep all candidates
+            stats.recordBypass();
+            return null;
+        }
 
-                    // null value means same bundle, same feature or system bundle, but if exported into global region,
-                    // use 'global' instead
-                    coveredCaps.put(bc, isInGlobalRegion(packageName, capFeat) ? RegionConstants.GLOBAL_REGION : null);
-                    continue nextCapability;
-                }
+        Object pkg = candidates.iterator().next().getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
+        if (!(pkg instanceof String)) {
+            return null;
+        }
+        String packageName = (String) pkg;
 
-                List<String> capRegions =
-                        this.configuration.getFeatureRegionMap().get(capFeat);
-                if (capRegions == null || capRegions.size() == 0) {
-                    // If the feature hosting the capability has no regions defined, everyone can access
-                    coveredCaps.put(bc, RegionConstants.GLOBAL_REGION);
-                    continue nextCapability;
-                }
-                bcFeatureMap.put(bc, capFeat);
-
-                List<String> sharedRegions = new ArrayList<>(getRegionsAndAncestors(reqRegions));
-                sharedRegions.retainAll(capRegions);
-
-                // Look at specific regions first as they take precedence over the global region
-                for (String region : sharedRegions) {
-                    Set<String> regionPackages =
-                            this.configuration.getRegionPackageMap().get(region);
-                    if (regionPackages != null && regionPackages.contains(packageName)) {
-                        // If the export is in a region that the feature is also in, then allow
-                        coveredCaps.put(bc, region);
-                        continue nextCapability;
-                    }
-                }
+        long reqBundleID = reqBundle.getBundleId();
+        BundleFeatures reqBundleFeatures = getBundleFeatures(s, reqBundle);
+
+        List<BundleCapability> allCandidates = new ArrayList<>(candidates);
+        long[] capBundleIDs = new long[allCandidates.size()];
+        BundleFeatures[] capFeatures = new BundleFeatures[capBundleIDs.length];
+        for (int i = 0; i < capBundleIDs.length; i++) {
+            Bundle capBundle = allCandidates.get(i).getRevision().getBundle();
+            capBundleIDs[i] = capBundle.getBundleId();
+            capFeatures[i] = getBundleFeatures(s, capBundle);
+        }
+        if (!RegionDecision.isEnforced(reqBundleFeatures, capFeatures)) {
+            // Only regions that are not enforced are involved, keep all candidates
+            stats.recordBypass();
+            return null;
+        }
 
-                // Now check the global region
-                Set<String> globalPackages =
-                        this.configuration.getRegionPackageMap().get(RegionConstants.GLOBAL_REGION);
-                if (globalPackages != null && globalPackages.contains(packageName)) {
-                    // If the export is in the global region everyone can access
-                    coveredCaps.put(bc, RegionConstants.GLOBAL_REGION);
-                    continue nextCapability;
+        String[] regions = new String[capBundleIDs.length];
+
+        // Dynamic imports are resolved repeatedly at class load time, serve them from the cache. When the
+        // decisions are persisted, all requirements are cached so that the next run can use them.
+        VisibilityCache cache = cacheAllRequirements || isDynamicImport(requirement) ? visibilityCache : null;
+        for (int i = 0; i < regions.length; i++) {
+            if (cache != null) {
+                regions[i] = cache.get(s.generation, reqBundleID, packageName, capBundleIDs[i]);
+                stats.recordCacheLookup(regions[i] != VisibilityCache.MISS);
+                if (regions[i] == VisibilityCache.MISS) {
+                    regions[i] = RegionDecision.getCoveringRegion(
+                            s, packageName, reqBundleID, reqBundleFeatures, capBundleIDs[i], capFeatures[i], null);
+                    cache.put(s.generation, reqBundleID, packageName, capBundleIDs[i], regions[i]);
                 }
+            } else {
+                regions[i] = RegionDecision.getCoveringRegion(
+                        s, packageName, reqBundleID, reqBundleFeatures, capBundleIDs[i], capFeatures[i], null);
             }
         }
 
-        pruneCoveredCaps(bareReqRegions, coveredCaps);
+        boolean[] specific = RegionDecision.prune(reqBundleFeatures.bareRegions, regions);
+        if (specific != null) {
+            logPrunedCandidates(allCandidates, regions, specific);
+            for (int i = 0; i < regions.length; i++) {
+                if (!specific[i]) regions[i] = NOT_COVERED;
+            }
+        }
 
-        List<BundleCapability> removedCandidates = new ArrayList<>(candidates);
-        // Remove any capabilities that are not covered
-        candidates.retainAll(coveredCaps.keySet());
+        // Remove any capabilities that are not covered, the candidates are in the same order as the copy
+        long keptBundleID = -1;
+        String keptRegion = null;
+        int index = 0;
+        for (Iterator<BundleCapability> it = candidates.iterator(); it.hasNext(); index++) {
+            it.next();
+            if (regions[index] == NOT_COVERED) {
+                it.remove();
+            } else if (keptBundleID == -1) {
+                keptBundleID = capBundleIDs[index];
+                keptRegion = regions[index];
+            }
+        }
 
         Level logLevel;
         if (candidates.isEmpty()) {
@@ -177,184 +243,149 @@ class ResolverHookImpl implements ResolverHook {
         } else {
             logLevel = Level.INFO;
         }
-        removedCandidates.removeAll(candidates);
 
-        if (!removedCandidates.isEmpty()) {
+        if (candidates.size() == allCandidates.size()) {
+            stats.recordDecision(reqBundleID, packageName, -1, keptBundleID, keptRegion);
+        } else {
+            Set<String> reqFeatures = reqBundleFeatures.features;
             StringBuilder sb = new StringBuilder();
             boolean first = true;
-            for (BundleCapability bc : removedCandidates) {
+            for (int i = 0; i < regions.length; i++) {
+                if (regions[i] != NOT_COVERED) continue;
+
+                BundleCapability bc = allCandidates.get(i);
+                stats.recordDecision(reqBundleID, packageName, capBundleIDs[i], keptBundleID, keptRegion);
+
                 if (first) first = false;
                 else sb.append(", ");
 
-                String capFeat = bcFeatureMap.get(bc);
+                String capFeat = RegionDecision.getDenyingFeature(s, capFeatures[i]);
+                List<String> capRegions = getRegionsForPackage(s, packageName, capFeat);
+                countDenial(reqFeatures, capFeat, capRegions);
+
                 sb.append(bc.toString());
                 sb.append("[Regions: ");
-                sb.append(getRegionsForPackage(packageName, capFeat));
+                sb.append(capRegions);
                 sb.append(", Feature: ");
                 sb.append(capFeat);
                 sb.append("]");
             }
 
-            Activator.LOG.log(
-                    logLevel,
-                    "API-Regions removed candidates {0} for requirement {1} as the requirement is in the following regions: {2} and in feature: {3}",
-                    new Object[] {sb, requirement, reqRegions, reqFeatures});
+            Object[] params = new Object[] {sb, requirement, reqBundleFeatures.regions, reqFeatures};
+            if (logLimiter == null || logLimiter.shouldLog(reqBundleID, packageName)) {
+                Activator.LOG.log(logLevel, REMOVED_CANDIDATES_MESSAGE, params);
+            }
+            if (stats.isRecording()) {
+                stats.recordDenial(MessageFormat.format(REMOVED_CANDIDATES_MESSAGE, params));
+            }
         }
+        return allCandidates;
     }
 
-    // Get the a set of the regions plus their ancestors. They are obtained from the global region order.
-    private Set<String> getRegionsAndAncestors(Set<String> regions) {
-        Set<String> s = new HashSet<>();
+    private static void logPrunedCandidates(List<BundleCapability> caps, String[] regions, boolean[] specific) {
+        if (!Activator.LOG.isLoggable(Level.INFO)) return;
 
-        for (String region : regions) {
-            s.add(region);
-
-            if (configuration.getGlobalRegionOrder().contains(region)) {
-                for (String r : configuration.getGlobalRegionOrder()) {
-                    if (r.equals(region)) {
-                        break;
-                    }
-                    s.add(r);
-                }
-            } else {
-                Activator.LOG.log(
-                        Level.WARNING,
-                        "Global API Region order " + configuration.getGlobalRegionOrder() + " does not contain region: "
-                                + region);
-            }
+        StringBuilder specificCaps = new StringBuilder();
+        for (int i = 0; i < regions.length; i++) {
+            if (!specific[i]) continue;
+            if (specificCaps.length() > 0) specificCaps.append('/');
+            specificCaps.append(caps.get(i)).append(" region ").append(regions[i]);
         }
-        return s;
-    }
-
-    /**
-     * Check if the package is exported in the global region
-     * @param packageName The package
-     * @param capFeat The feature where it is found
-     * @return If the feature exports to the global region and the package is exported into the global region
-     */
-    private boolean isInGlobalRegion(String packageName, String capFeat) {
-        List<String> capRegions = this.configuration.getFeatureRegionMap().get(capFeat);
-        if (capRegions != null && capRegions.contains(RegionConstants.GLOBAL_REGION)) {
-            Set<String> globalPackages =
-                    this.configuration.getRegionPackageMap().get(RegionConstants.GLOBAL_REGION);
-            if (globalPackages.contains(packageName)) {
-                return true;
-            }
+        for (int i = 0; i < regions.length; i++) {
+            if (specific[i] || regions[i] == NOT_COVERED) continue;
+            Activator.LOG.log(
+                    Level.INFO,
+                    "Removing candidate {0} which is in region {1} as more specific candidate(s) are available in "
+                            + "regions {2}",
+                    new Object[] {caps.get(i), regions[i], specificCaps});
         }
-        return false;
     }
 
-    /**
-     * If there are multiple choices of capabilities and some of the capabilities are in the global
-     * region while others are in another named region or in a feature-private region, take out the
-     * capabilities from the global region so that the requirement gets wired to the more 'specific'
-     * one than the global one.
-     * Capabilities that are considered specific but not in a named region are marked in the CapMap
-     * with a {@code null} region value.
-     *
-     * @param reqRegions The regions declared in the requiring feature. If {@code null} is passed in
-     * the requirement did not opt into the API Regions
-     * @param capMap The map of capabilities to regions where they are found in
-     */
-    private void pruneCoveredCaps(Set<String> reqRegions, Map<BundleCapability, String> capMap) {
-        if (reqRegions == null) {
-            // No regions (other than global) for the requirement: do nothing
-            return;
+    // Check whether the requirer and all candidates other than the system bundle are outside of API Regions.
+    // This only checks the flags of the bundles once they are known and does not create any objects.
+    private boolean isUnmanaged(Snapshot s, Bundle reqBundle, Collection<BundleCapability> candidates) {
+        if (!s.noFeatures.unmanaged) return false; // Default regions apply to all bundles
+
+        if (!isUnmanaged(s, reqBundle)) return false;
+        for (BundleCapability bc : candidates) {
+            Bundle capBundle = bc.getRevision().getBundle();
+            if (capBundle.getBundleId() != 0 && !isUnmanaged(s, capBundle)) return false;
         }
+        return true;
+    }
 
-        Set<String> reqNonGlobalRegions = new HashSet<>(reqRegions);
-        reqNonGlobalRegions.remove(RegionConstants.GLOBAL_REGION);
+    private boolean isUnmanaged(Snapshot s, Bundle bundle) {
+        final long id = bundle.getBundleId();
+        final byte state = s.unmanagedBundles.get(id);
+        if (state != UnmanagedBundles.UNKNOWN) return state == UnmanagedBundles.UNMANAGED;
 
-        if (capMap.size() <= 1) {
-            // Shortcut: there is only 0 or 1 capability, nothing to do
-            return;
-        }
+        final boolean unmanaged = s.getBundleFeatures(getBsnVer(bundle)).unmanaged;
+        s.unmanagedBundles.set(id, unmanaged);
+        return unmanaged;
+    }
 
-        List<BundleCapability> specificCaps = new ArrayList<>();
-        for (Iterator<Map.Entry<BundleCapability, String>> it =
-                        capMap.entrySet().iterator();
-                it.hasNext(); ) {
-            Map.Entry<BundleCapability, String> entry = it.next();
-
-            String capRegion = entry.getValue();
-            if (capRegion == null) {
-                // This one came from the same bundle, the same feature or bundle 0 -> always allow
-                specificCaps.add(entry.getKey());
-                continue;
-            }
+    private static boolean isDynamicImport(BundleRequirement requirement) {
+        return PackageNamespace.RESOLUTION_DYNAMIC.equals(
+                requirement.getDirectives().get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE));
+    }
 
-            if (reqNonGlobalRegions.contains(capRegion)) {
-                // the requirement has the region from the capability
-                specificCaps.add(entry.getKey());
-            }
+    void countDenial(Set<String> reqFeatures, String capFeat, List<String> capRegions) {
+        if (capRegions.isEmpty()) {
+            stats.recordRegionDenial(null);
         }
-
-        if (specificCaps.size() == 0) {
-            // There are no capabilities that are either in the same bundle, same feature or overlapping specific
-            // feature. We should just allow all, including the global region
-            return;
+        for (String region : capRegions) {
+            stats.recordRegionDenial(region);
         }
 
-        // There are specific capabilities, therefore we should remove the Global region is any from the capabilities
-        // We have collected the capabilities we want to keep in specificCaps
-        for (Iterator<BundleCapability> it = capMap.keySet().iterator(); it.hasNext(); ) {
-            BundleCapability cap = it.next();
-            if (!specificCaps.contains(cap)) {
-                it.remove();
-                Activator.LOG.log(
-                        Level.INFO,
-                        "Removing candidate {0} which is in region {1} as more specific candidate(s) are available in regions {2}",
-                        new Object[] {
-                            cap,
-                            capMap.get(cap),
-                            specificCaps.stream()
-                                    .map(c -> "" + c + " region " + capMap.get(c))
-                                    .collect(Collectors.joining("/"))
-                        });
-            }
+        if (reqFeatures.isEmpty()) {
+            stats.recordFeatureDenial(null, capFeat);
+        }
+        for (String reqFeat : reqFeatures) {
+            stats.recordFeatureDenial(reqFeat, capFeat);
         }
     }
 
     Set<String> getFeaturesForBundle(Bundle bundle) {
-        // Look up the bsn and bundle version initially associated with the location. If the bundle
-        // for the specified location was later updated, the initial bsn+version is still used to look up the
-        // api regions configuration
-        Map.Entry<String, Version> bsnVer = this.configuration
-                .getBundleLocationConfigMap()
-                .computeIfAbsent(
-                        bundle.getLocation(),
-                        l -> new AbstractMap.SimpleEntry<>(bundle.getSymbolicName(), bundle.getVersion()));
+        return getBundleFeatures(bundle).features;
+    }
 
-        return getFeaturesForBundleFromConfig(bsnVer.getKey(), bsnVer.getValue());
+    BundleFeatures getBundleFeatures(Bundle bundle) {
+        return getBundleFeatures(configuration.getSnapshot(), bundle);
     }
 
-    private Set<String> getFeaturesForBundleFromConfig(String bundleName, Version bundleVersion) {
-        Set<String> newSet = new HashSet<>();
-        List<String> aids = this.configuration
-                .getBsnVerMap()
-                .get(new AbstractMap.SimpleEntry<String, Version>(bundleName, bundleVersion));
-        if (aids != null) {
-            for (String aid : aids) {
-                Set<String> fid = this.configuration.getBundleFeatureMap().get(aid);
-                if (fid != null) newSet.addAll(fid);
-            }
-        }
+    BundleFeatures getBundleFeatures(Snapshot s, Bundle bundle) {
+        return s.getBundleFeatures(getBsnVer(bundle));
+    }
 
-        return Collections.unmodifiableSet(newSet);
+    private Map.Entry<String, Version> getBsnVer(Bundle bundle) {
+        // Look up the bsn and bundle version initially associated with the location. If the bundle
+        // for the specified location was later updated, the initial bsn+version is still used to look up the
+        // api regions configuration
+        Map.Entry<String, Version> bsnVer =
+                this.configuration.getBundleLocationConfigMap().get(bundle.getLocation());
+        if (bsnVer == null) {
+            bsnVer = this.configuration
+                    .getBundleLocationConfigMap()
+                    .computeIfAbsent(
+                            bundle.getLocation(),
+                            l -> new AbstractMap.SimpleEntry<>(bundle.getSymbolicName(), bundle.getVersion()));
+        }
+        return bsnVer;
     }
 
     List<String> getRegionsForPackage(String packageName, String feature) {
+        return getRegionsForPackage(configuration.getSnapshot(), packageName, feature);
+    }
+
+    static List<String> getRegionsForPackage(Snapshot s, String packageName, String feature) {
         if (packageName == null) return Collections.emptyList();
 
-        List<String> regions = this.configuration.getFeatureRegionMap().get(feature);
+        List<String> regions = s.featureRegionMap.get(feature);
         if (regions == null) return Collections.emptyList();
 
         List<String> res = new ArrayList<>();
         for (String region : regions) {
-            Set<String> packages = this.configuration.getRegionPackageMap().get(region);
-            if (packages == null) continue;
-
-            if (packages.contains(packageName)) {
+            if (s.isPackageInRegion(region, packageName)) {
                 res.add(region);
             }
         }
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cost breakdown of a {@code filterMatches} call that exceeded the slow call threshold.
+ * The breakdown is collected after the call, by evaluating it a second time, so that
+ * calls under the threshold only pay for their duration being measured.
+ */
+class SlowCallReport {
+    final String packageName;
+    final long requirer;
+    final long durationNanos;
+
+    int candidates;
+    final List<Integer> featuresPerCandidate = new ArrayList<>();
+    int sharedRegionScan;
+    long pruneNanos;
+    int kept;
+
+    SlowCallReport(String packageName, long requirer, long durationNanos) {
+        this.packageName = packageName;
+        this.requirer = requirer;
+        this.durationNanos = durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "package=" + packageName
+                + " requirer=" + requirer
+                + " durationNanos=" + durationNanos
+                + " candidates=" + candidates
+                + " kept=" + kept
+                + " featuresPerCandidate=" + featuresPerCandidate
+                + " sharedRegionScan=" + sharedRegionScan
+                + " pruneNanos=" + pruneNanos;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns stable, dense int ids to strings. Looking up a string that already
+ * has an id does not allocate, so ids can be obtained on the resolver hot path.
+ */
+class StringIds {
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int size; // guarded by this
+
+    /**
+     * Obtain the id of a string, assigning a new one if needed.
+     * @param name The string
+     * @return The id, or {@code -1} if the string is {@code null}
+     */
+    int idOf(String name) {
+        if (name == null) return -1;
+
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        return add(name);
+    }
+
+    private synchronized int add(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        names[size] = name;
+        // publish the id only after the name is stored so that nameOf() can always resolve it
+        ids.put(name, size);
+        return size++;
+    }
+
+    /**
+     * Obtain the string for an id.
+     * @param id The id
+     * @return The string, or {@code null} if the id is not known
+     */
+    String nameOf(int id) {
+        String[] n = names;
+        return id >= 0 && id < n.length ? n[id] : null;
+    }
+
+    /**
+     * @return The number of ids assigned.
+     */
+    synchronized int size() {
+        return size;
+    }
+}
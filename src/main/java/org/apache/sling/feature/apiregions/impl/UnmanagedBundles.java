@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Arrays;
+
+/**
+ * Remembers for each bundle id whether the bundle is outside of API Regions, that is in no
+ * feature while no default regions are configured. The states are filled in on first use and
+ * belong to one configuration generation, which is valid as a bundle id always refers to the
+ * same location. Looking up a state does not create any objects.
+ */
+final class UnmanagedBundles {
+    static final byte UNKNOWN = 0;
+    static final byte MANAGED = 1;
+    static final byte UNMANAGED = 2;
+
+    // Bundles with higher ids are not remembered
+    private static final int MAX_IDS = 1 << 20;
+
+    // Written without locking, a lost write only means that the state is determined again
+    private volatile byte[] states = new byte[64];
+
+    /**
+     * @param bundleId The bundle id
+     * @return The state of the bundle, {@link #UNKNOWN} if not determined yet.
+     */
+    byte get(long bundleId) {
+        byte[] s = states;
+        return bundleId >= 0 && bundleId < s.length ? s[(int) bundleId] : UNKNOWN;
+    }
+
+    /**
+     * @param bundleId The bundle id
+     * @param unmanaged Whether the bundle is outside of API Regions
+     */
+    void set(long bundleId, boolean unmanaged) {
+        if (bundleId < 0 || bundleId >= MAX_IDS) return;
+
+        byte[] s = states;
+        if (bundleId >= s.length) {
+            synchronized (this) {
+                s = states;
+                if (bundleId >= s.length) {
+                    s = Arrays.copyOf(s, Integer.highestOneBit((int) bundleId) << 1);
+                    states = s;
+                }
+            }
+        }
+        s[(int) bundleId] = unmanaged ? UNMANAGED : MANAGED;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches per requiring bundle and package in which region the capabilities of a provider
+ * bundle are visible, as computed by {@link RegionDecision#getCoveringRegion}. It serves
+ * dynamic imports, which are resolved repeatedly on application threads. <p>
+ *
+ * The cache belongs to one configuration generation and is dropped as a whole when the
+ * generation changes. Within a generation it holds up to its capacity of packages in two
+ * segments of half the capacity each: new packages are added to the current segment, and when
+ * that is full it becomes the previous segment and the former previous segment is dropped. A
+ * package that is found in the previous segment is added to the current one again, so that
+ * the packages in use are retained, as with a least recently used eviction.
+ */
+class VisibilityCache {
+    static final int DEFAULT_CAPACITY = 10000;
+
+    // Returned by get() if nothing is cached, compared by identity
+    static final String MISS = new String("miss");
+
+    private final int capacity;
+    private final int segmentCapacity;
+    private volatile Entries entries = new Entries(-1, new Segment(), null);
+
+    VisibilityCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    VisibilityCache(int capacity) {
+        this.capacity = capacity;
+        this.segmentCapacity = Math.max(1, (capacity + 1) / 2);
+    }
+
+    /**
+     * Look up a cached visibility.
+     * @param generation The current configuration generation
+     * @param requirer The requiring bundle id
+     * @param packageName The package
+     * @param provider The providing bundle id
+     * @return The value {@link RegionDecision#getCoveringRegion} returned, or {@link #MISS}
+     */
+    String get(long generation, long requirer, String packageName, long provider) {
+        Entries e = entries;
+        if (e.generation != generation) return MISS;
+
+        String region = e.current.get(requirer, packageName, provider);
+        if (region == MISS && e.previous != null) {
+            region = e.previous.get(requirer, packageName, provider);
+            if (region != MISS) {
+                // Retain the package when the previous segment is dropped
+                add(e, requirer, packageName, provider, region);
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Store a visibility.
+     * @param generation The configuration generation the visibility was computed with
+     * @param requirer The requiring bundle id
+     * @param packageName The package
+     * @param provider The providing bundle id
+     * @param region The value {@link RegionDecision#getCoveringRegion} returned
+     */
+    void put(long generation, long requirer, String packageName, long provider, String region) {
+        Entries e = entries;
+        if (e.generation != generation) {
+            if (e.generation > generation) return; // Computed with an outdated configuration
+
+            synchronized (this) {
+                e = entries;
+                if (e.generation < generation) {
+                    e = new Entries(generation, new Segment(), null);
+                    entries = e;
+                }
+            }
+        }
+        add(e, requirer, packageName, provider, region);
+    }
+
+    private void add(Entries e, long requirer, String packageName, long provider, String region) {
+        final Segment target = e.current;
+        ConcurrentMap<String, Providers> packages =
+                target.requirers.computeIfAbsent(requirer, r -> new ConcurrentHashMap<>());
+        packages.compute(packageName, (pkg, p) -> {
+            if (p == null) {
+                target.size.incrementAndGet();
+                return new Providers(new long[] {provider}, new String[] {region});
+            }
+            for (long id : p.ids) {
+                if (id == provider) return p;
+            }
+            long[] ids = Arrays.copyOf(p.ids, p.ids.length + 1);
+            ids[p.ids.length] = provider;
+            String[] regions = Arrays.copyOf(p.regions, p.regions.length + 1);
+            regions[p.regions.length] = region;
+            return new Providers(ids, regions);
+        });
+
+        if (target.size.get() >= segmentCapacity) {
+            synchronized (this) {
+                if (entries == e) {
+                    // The previous segment is dropped
+                    entries = new Entries(e.generation, new Segment(), target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visit the cached visibilities of a generation.
+     * @param generation The configuration generation
+     * @param visitor The visitor
+     * @return {@code false} if the cache holds no entries of the generation.
+     */
+    boolean visit(long generation, Visitor visitor) {
+        Entries e = entries;
+        if (e.generation != generation) return false;
+
+        e.current.visit(visitor, null);
+        if (e.previous != null) e.previous.visit(visitor, e.current);
+        return true;
+    }
+
+    /**
+     * @return The number of cached requirer and package combinations, a combination that
+     * was used again after it moved to the previous segment may be counted twice.
+     */
+    int size() {
+        Entries e = entries;
+        return e.current.size.get() + (e.previous != null ? e.previous.size.get() : 0);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    interface Visitor {
+        void visit(long requirer, String packageName, long provider, String region);
+    }
+
+    private static final class Entries {
+        final long generation;
+        final Segment current;
+        // Read only, null if there is none
+        final Segment previous;
+
+        Entries(long generation, Segment current, Segment previous) {
+            this.generation = generation;
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    private static final class Segment {
+        final ConcurrentMap<Long, ConcurrentMap<String, Providers>> requirers = new ConcurrentHashMap<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        String get(long requirer, String packageName, long provider) {
+            ConcurrentMap<String, Providers> packages = requirers.get(requirer);
+            if (packages != null) {
+                Providers p = packages.get(packageName);
+                if (p != null) {
+                    for (int i = 0; i < p.ids.length; i++) {
+                        if (p.ids[i] == provider) return p.regions[i];
+                    }
+                }
+            }
+            return MISS;
+        }
+
+        // Visit the entries that are not in the other segment
+        void visit(Visitor visitor, Segment other) {
+            for (Map.Entry<Long, ConcurrentMap<String, Providers>> requirer : requirers.entrySet()) {
+                for (Map.Entry<String, Providers> pkg : requirer.getValue().entrySet()) {
+                    Providers p = pkg.getValue();
+                    for (int i = 0; i < p.ids.length; i++) {
+                        if (other == null || other.get(requirer.getKey(), pkg.getKey(), p.ids[i]) == MISS) {
+                            visitor.visit(requirer.getKey(), pkg.getKey(), p.ids[i], p.regions[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Immutable, replaced when a provider is added
+    private static final class Providers {
+        final long[] ids;
+        final String[] regions;
+
+        Providers(long[] ids, String[] regions) {
+            this.ids = ids;
+            this.regions = regions;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.sling.feature.apiregions.impl.BatchEvaluator.BundleKey;
+import org.apache.sling.feature.apiregions.impl.BatchEvaluator.Requirement;
+import org.apache.sling.feature.apiregions.impl.RegionConfiguration.Snapshot;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+/**
+ * Command line tool that computes which package wirings the API Regions resolver hook
+ * would deny for a region configuration and a set of bundles, without starting a framework.
+ * The requirements are evaluated in parallel with the {@link BatchEvaluator}. <p>
+ *
+ * Usage: {@code WhatIfAnalyzer <idbsnver.properties> <bundles.properties> <features.properties>
+ * <regions.properties> <manifests> [<default regions>]} where {@code manifests} is a dump of
+ * the bundle manifests as read by {@link BundleManifest}. The exit code is {@code 1} if any
+ * wiring is denied.
+ */
+public class WhatIfAnalyzer {
+    // Number of requirements evaluated by a single fork-join task
+    static final int TASK_SIZE = 256;
+
+    private final RegionConfiguration configuration;
+    private final BatchEvaluator evaluator;
+
+    WhatIfAnalyzer(RegionConfiguration configuration) {
+        this.configuration = configuration;
+        this.evaluator = new BatchEvaluator(configuration);
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Run the analysis for the command line arguments.
+     * @param args The arguments as described for the command line tool
+     * @param out Receives the result
+     * @param err Receives the usage if the arguments are not valid
+     * @return The exit status, {@code 0} if no wiring is denied, {@code 1} if any wiring is denied
+     * and {@code 2} if the arguments are not valid.
+     * @throws IOException If a file cannot be read
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) throws IOException {
+        if (args.length < 5 || args.length > 6) {
+            err.println("Usage: " + WhatIfAnalyzer.class.getName()
+                    + " <idbsnver.properties> <bundles.properties> <features.properties> <regions.properties>"
+                    + " <manifests> [<default regions>]");
+            return 2;
+        }
+
+        Set<String> defaultRegions = new HashSet<>();
+        if (args.length > 5) {
+            for (String region : args[5].split(",")) {
+                if (region.length() > 0) defaultRegions.add(region);
+            }
+        }
+        RegionConfiguration configuration = RegionConfiguration.fromFiles(
+                new File(args[0]).toURI(),
+                new File(args[1]).toURI(),
+                new File(args[2]).toURI(),
+                new File(args[3]).toURI(),
+                Collections.unmodifiableSet(defaultRegions));
+
+        List<BundleManifest> manifests;
+        try (Reader reader = Files.newBufferedReader(new File(args[4]).toPath(), StandardCharsets.UTF_8)) {
+            manifests = BundleManifest.readAll(reader);
+        }
+
+        Result result = new WhatIfAnalyzer(configuration).analyze(manifests, ForkJoinPool.commonPool());
+        result.print(out);
+        return result.denials.isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Compute the denied wirings for a set of bundles. Every import is matched against the
+     * exports of all bundles with a matching version, imports without any such export are
+     * not considered.
+     * @param manifests The bundles. Bundle IDs are assigned in order, starting at {@code 1}.
+     * @param pool The pool to evaluate the requirements in.
+     * @return The result.
+     */
+    Result analyze(List<BundleManifest> manifests, ForkJoinPool pool) {
+        List<BundleKey> keys = new ArrayList<>();
+        Map<String, List<Integer>> exporters = new HashMap<>();
+        for (int i = 0; i < manifests.size(); i++) {
+            BundleManifest bm = manifests.get(i);
+            keys.add(new BundleKey(i + 1, bm.symbolicName, bm.version));
+            for (String pkg : bm.exports.keySet()) {
+                exporters.computeIfAbsent(pkg, p -> new ArrayList<>()).add(i);
+            }
+        }
+
+        List<Requirement> requirements = new ArrayList<>();
+        for (int i = 0; i < manifests.size(); i++) {
+            for (Map.Entry<String, VersionRange> imp : manifests.get(i).imports.entrySet()) {
+                String pkg = imp.getKey();
+                List<BundleKey> candidates = new ArrayList<>();
+                for (int e : exporters.getOrDefault(pkg, Collections.emptyList())) {
+                    Version exported = manifests.get(e).exports.get(pkg);
+                    if (imp.getValue().includes(exported)) candidates.add(keys.get(e));
+                }
+                if (!candidates.isEmpty()) {
+                    requirements.add(new Requirement(keys.get(i), pkg, candidates));
+                }
+            }
+        }
+
+        List<Denial> denials = pool.invoke(new EvaluateTask(requirements, 0, requirements.size()));
+
+        // Attribute the denials in the same way as the resolver hook does at runtime
+        RegionEnforcementStats stats = new RegionEnforcementStats(configuration);
+        ResolverHookImpl hook = new ResolverHookImpl(configuration, stats, RegionEnforcer.HookState.NONE);
+        // The same snapshot as the denials were decided with
+        Snapshot s = evaluator.snapshot;
+        for (Denial denial : denials) {
+            Set<String> reqFeatures = evaluator.getBundleFeatures(denial.requirer).features;
+            String capFeat = RegionDecision.getDenyingFeature(s, evaluator.getBundleFeatures(denial.provider));
+            hook.countDenial(
+                    reqFeatures, capFeat, ResolverHookImpl.getRegionsForPackage(s, denial.packageName, capFeat));
+        }
+        return new Result(denials, stats);
+    }
+
+    private class EvaluateTask extends RecursiveTask<List<Denial>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Requirement> requirements;
+        private final int from;
+        private final int to;
+
+        EvaluateTask(List<Requirement> requirements, int from, int to) {
+            this.requirements = requirements;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Denial> compute() {
+            if (to - from > TASK_SIZE) {
+                int mid = (from + to) >>> 1;
+                EvaluateTask left = new EvaluateTask(requirements, from, mid);
+                left.fork();
+                List<Denial> right = new EvaluateTask(requirements, mid, to).compute();
+                List<Denial> result = left.join();
+                result.addAll(right);
+                return result;
+            }
+
+            List<Requirement> batch = requirements.subList(from, to);
+            BitSet kept = evaluator.evaluate(batch);
+            List<Denial> denials = new ArrayList<>();
+            int bit = 0;
+            for (Requirement req : batch) {
+                for (BundleKey cap : req.candidates) {
+                    if (!kept.get(bit++)) {
+                        denials.add(new Denial(req.requirer, req.packageName, cap));
+                    }
+                }
+            }
+            return denials;
+        }
+    }
+
+    static final class Denial {
+        final BundleKey requirer;
+        final String packageName;
+        final BundleKey provider;
+
+        Denial(BundleKey requirer, String packageName, BundleKey provider) {
+            this.requirer = requirer;
+            this.packageName = packageName;
+            this.provider = provider;
+        }
+
+        @Override
+        public String toString() {
+            return requirer.bsnVer.getKey() + " " + requirer.bsnVer.getValue() + " -> " + packageName + " from "
+                    + provider.bsnVer.getKey() + " " + provider.bsnVer.getValue();
+        }
+    }
+
+    static final class Result {
+        final List<Denial> denials;
+        final RegionEnforcementStats stats;
+
+        Result(List<Denial> denials, RegionEnforcementStats stats) {
+            this.denials = denials;
+            this.stats = stats;
+        }
+
+        void print(PrintStream out) {
+            out.println("Denied wirings: " + denials.size());
+            for (Denial denial : denials) {
+                out.println(" - " + denial);
+            }
+            out.println("Denials per Region:");
+            for (String entry : stats.topRegionDenials(Integer.MAX_VALUE)) {
+                out.println(" - " + entry);
+            }
+            out.println("Denials per Feature:");
+            for (String entry : stats.topFeatureDenials(Integer.MAX_VALUE)) {
+                out.println(" - " + entry);
+            }
+        }
+    }
+}
@@ -18,8 +18,19 @@
  */
 package org.apache.sling.feature.apiregions.impl;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -28,6 +39,7 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -59,8 +71,10 @@ import static org.apache.sling.feature.apiregions.impl.RegionConstants.IDBSNVER_
 import static org.apache.sling.feature.apiregions.impl.RegionConstants.PROPERTIES_RESOURCE_PREFIX;
 import static org.apache.sling.feature.apiregions.impl.RegionConstants.REGION_PACKAGE_FILENAME;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class ActivatorTest {
     private Properties savedProps;
@@ -122,6 +136,78 @@ public class ActivatorTest {
                         Mockito.eq(RegionPrinter.class),
                         Mockito.isA(RegionPrinter.class),
                         Mockito.eq(expectedPrinterProps));
+
+        assertNotNull(a.mbeanName);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(a.mbeanName));
+        a.stop(bc);
+        assertNull(a.mbeanName);
+    }
+
+    @Test
+    public void testStartWhileLoadingInBackground() throws Exception {
+        String i = getClass().getResource("/idbsnver1.properties").toURI().toString();
+        String b = getClass().getResource("/bundles1.properties").toURI().toString();
+        String f = getClass().getResource("/features1.properties").toURI().toString();
+        byte[] regions = Files.readAllBytes(
+                new File(getClass().getResource("/regions1.properties").toURI()).toPath());
+
+        // The regions file is served by a server that only answers once the activator has started
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(10000);
+            String r = "http://" + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort()
+                    + "/regions1.properties";
+
+            BundleContext bc = Mockito.mock(BundleContext.class);
+            Mockito.when(bc.getBundle()).thenReturn(Mockito.mock(Bundle.class));
+            Mockito.when(bc.getProperty(Activator.REGIONS_PROPERTY_NAME)).thenReturn("*");
+            Mockito.when(bc.getProperty(RegionConstants.LOAD_IN_BACKGROUND)).thenReturn("true");
+            Mockito.when(bc.getProperty(PROPERTIES_RESOURCE_PREFIX + IDBSNVER_FILENAME))
+                    .thenReturn(i);
+            Mockito.when(bc.getProperty(PROPERTIES_RESOURCE_PREFIX + BUNDLE_FEATURE_FILENAME))
+                    .thenReturn(b);
+            Mockito.when(bc.getProperty(PROPERTIES_RESOURCE_PREFIX + FEATURE_REGION_FILENAME))
+                    .thenReturn(f);
+            Mockito.when(bc.getProperty(PROPERTIES_RESOURCE_PREFIX + REGION_PACKAGE_FILENAME))
+                    .thenReturn(r);
+
+            Activator a = new Activator();
+            a.start(bc);
+            try {
+                Mockito.verify(bc, Mockito.times(1))
+                        .registerService(
+                                Mockito.eq(ResolverHookFactory.class),
+                                Mockito.isA(RegionEnforcer.class),
+                                Mockito.any(Dictionary.class));
+                assertFalse(a.configuration.isLoaded());
+
+                // Diagnostics do not wait for the configuration either
+                assertEquals(-1, a.getStats().getConfigurationGeneration());
+                assertEquals(0, a.getStats().getPackageCount());
+                StringWriter sw = new StringWriter();
+                new RegionPrinter(bc, a.configuration, a.getStats()).printConfiguration(new PrintWriter(sw));
+                assertTrue(sw.toString().contains("Configuration is loading"));
+
+                try (Socket socket = server.accept()) {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        // Skip the request
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Length: " + regions.length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(regions);
+                    out.flush();
+                }
+
+                assertTrue(a.configuration.getGeneration() >= 0);
+                assertTrue(a.configuration.isLoaded());
+                assertTrue(a.getStats().getPackageCount() > 0);
+            } finally {
+                a.stop(bc);
+            }
+        }
     }
 
     @Test
@@ -258,6 +344,25 @@ public class ActivatorTest {
 
         managedService.updated(new Hashtable<>(Collections.singletonMap("disable", "false")));
         assertNotNull(a.hookRegistration);
+
+        // Settings apply to the running hook
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put(HookSettings.CACHE_SIZE, "50");
+        props.put(HookSettings.METRICS, "false");
+        props.put(HookSettings.SLOW_CALL_THRESHOLD, 20);
+        props.put(HookSettings.DECISIONS_SIZE, "invalid");
+        managedService.updated(props);
+        HookSettings settings = a.enforcer.getSettings();
+        assertEquals(50, settings.cacheSize);
+        assertFalse(settings.metrics);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), settings.slowCallThresholdNanos);
+        assertEquals(DecisionRingBuffer.DEFAULT_CAPACITY, settings.decisionCapacity);
+        assertFalse(a.getStats().isRecording());
+
+        // Without configuration the defaults apply again
+        managedService.updated(null);
+        assertTrue(a.enforcer.getSettings().metrics);
+        assertTrue(a.getStats().isRecording());
     }
 
     @Test
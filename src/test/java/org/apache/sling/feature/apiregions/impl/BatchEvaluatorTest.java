@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.sling.feature.apiregions.impl.BatchEvaluator.BundleKey;
+import org.apache.sling.feature.apiregions.impl.BatchEvaluator.Requirement;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchEvaluatorTest {
+    private static final Version VERSION = new Version(1, 0, 0);
+    private static final List<String> PACKAGES = Arrays.asList("pg", "p1", "p2", "p12", "px", "p3", "p3.sub", "p3x");
+
+    @Test
+    public void testSameResultAsResolverHook() {
+        assertSameResultAsResolverHook(createConfiguration(null));
+    }
+
+    @Test
+    public void testSameResultWithEnforcedRegionsAndLocations() {
+        RegionConfiguration cfg = createConfiguration(Collections.singleton("r2"));
+        // Bundle 4 was installed from a location that is associated with the configuration of b1
+        cfg.getBundleLocationConfigMap().put("test://b4", new AbstractMap.SimpleEntry<>("b1", VERSION));
+
+        assertSameResultAsResolverHook(cfg);
+    }
+
+    @Test
+    public void testEvaluatesAgainstSnapshotOfCreation() {
+        RegionConfiguration cfg = createConfiguration(null);
+        BatchEvaluator evaluator = new BatchEvaluator(cfg);
+
+        List<Requirement> requirements = Collections.singletonList(new Requirement(
+                new BundleKey(1, "b1", VERSION), "p2", Collections.singletonList(new BundleKey(2, "b2", VERSION))));
+        assertEquals(new BitSet(), evaluator.evaluate(requirements));
+
+        // p2 is now exported in the global region
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put(RegionConstants.PROP_regionPackage, "global=p2");
+        cfg.setConfig("pid", props);
+
+        assertEquals(new BitSet(), evaluator.evaluate(requirements));
+        assertEquals(1, new BatchEvaluator(cfg).evaluate(requirements).cardinality());
+    }
+
+    private static RegionConfiguration createConfiguration(Set<String> enforcedRegions) {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        addBundle(bsnvermap, bfmap, 1, "f1");
+        addBundle(bsnvermap, bfmap, 2, "f2");
+        addBundle(bsnvermap, bfmap, 3, "f1");
+        addBundle(bsnvermap, bfmap, 4);
+        addBundle(bsnvermap, bfmap, 5, "f3");
+        addBundle(bsnvermap, bfmap, 6, "f2", "f4");
+
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Arrays.asList("global", "r1"));
+        frmap.put("f2", Arrays.asList("global", "r2"));
+        frmap.put("f3", Collections.emptyList());
+        frmap.put("f4", Collections.singletonList("r1"));
+        frmap.put("__region.order__", Arrays.asList("global", "r1", "r2"));
+
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("global", new HashSet<>(Arrays.asList("pg", "p12")));
+        rpmap.put("r1", new HashSet<>(Arrays.asList("p1", "p12")));
+        rpmap.put("r2", new HashSet<>(Arrays.asList("p2", "p12", "p3.*")));
+
+        return new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet(), enforcedRegions);
+    }
+
+    private static void assertSameResultAsResolverHook(RegionConfiguration cfg) {
+        List<BundleKey> bundles = new ArrayList<>();
+        for (long id = 0; id <= 6; id++) {
+            bundles.add(new BundleKey(id, "test://b" + id, "b" + id, VERSION));
+        }
+        List<Requirement> requirements = new ArrayList<>();
+        for (long id = 1; id <= 6; id++) {
+            for (String pkg : PACKAGES) {
+                requirements.add(new Requirement(bundles.get((int) id), pkg, bundles));
+            }
+        }
+
+        BitSet result = new BatchEvaluator(cfg).evaluate(requirements);
+
+        ResolverHookImpl hook = new ResolverHookImpl(cfg);
+        BitSet expected = new BitSet();
+        int offset = 0;
+        for (Requirement req : requirements) {
+            List<BundleCapability> caps = new ArrayList<>();
+            for (BundleKey cap : req.candidates) {
+                caps.add(mockCapability(req.packageName, cap.id));
+            }
+            List<BundleCapability> candidates = new ArrayList<>(caps);
+            hook.filterMatches(mockRequirement(req.requirer.id), candidates);
+            for (int i = 0; i < caps.size(); i++) {
+                if (candidates.contains(caps.get(i))) expected.set(offset + i);
+            }
+            offset += caps.size();
+        }
+
+        assertEquals(expected, result);
+        // Precondition for a meaningful comparison: some candidates are removed, others kept
+        assertTrue(result.cardinality() > 0);
+        assertTrue(result.cardinality() < offset);
+    }
+
+    private static void addBundle(
+            Map<Entry<String, Version>, List<String>> bsnvermap,
+            Map<String, Set<String>> bfmap,
+            long id,
+            String... features) {
+        bsnvermap.put(new AbstractMap.SimpleEntry<>("b" + id, VERSION), Collections.singletonList("a" + id));
+        bfmap.put("a" + id, new HashSet<>(Arrays.asList(features)));
+    }
+
+    private static Bundle mockBundle(long id) {
+        Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getBundleId()).thenReturn(id);
+        Mockito.when(bundle.getSymbolicName()).thenReturn("b" + id);
+        Mockito.when(bundle.getVersion()).thenReturn(VERSION);
+        Mockito.when(bundle.getLocation()).thenReturn("test://b" + id);
+        return bundle;
+    }
+
+    private static BundleCapability mockCapability(String pkg, long id) {
+        Bundle bundle = mockBundle(id);
+        BundleRevision br = Mockito.mock(BundleRevision.class);
+        Mockito.when(br.getBundle()).thenReturn(bundle);
+
+        BundleCapability cap = Mockito.mock(BundleCapability.class);
+        Mockito.when(cap.getAttributes())
+                .thenReturn(Collections.<String, Object>singletonMap(PackageNamespace.PACKAGE_NAMESPACE, pkg));
+        Mockito.when(cap.getRevision()).thenReturn(br);
+        return cap;
+    }
+
+    private static BundleRequirement mockRequirement(long id) {
+        Bundle bundle = mockBundle(id);
+        BundleRevision br = Mockito.mock(BundleRevision.class);
+        Mockito.when(br.getBundle()).thenReturn(bundle);
+
+        BundleRequirement req = Mockito.mock(BundleRequirement.class);
+        Mockito.when(req.getNamespace()).thenReturn(PackageNamespace.PACKAGE_NAMESPACE);
+        Mockito.when(req.getRevision()).thenReturn(br);
+        return req;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DataFileWatcherTest {
+    @Test
+    public void testReloadsOnceWrittenCompletely() throws Exception {
+        Path dir = Files.createTempDirectory("apiregions");
+        Path file = dir.resolve(RegionConstants.REGION_PACKAGE_FILENAME);
+        Files.write(file, "global=a.b.c\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        List<String> reloaded = new CopyOnWriteArrayList<>();
+        RegionConfiguration cfg = new RegionConfiguration(
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.emptySet()) {
+            @Override
+            CompletableFuture<Long> reloadDataFile(String name) throws IOException {
+                reloaded.add(name + ":" + new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1));
+                return CompletableFuture.completedFuture(0L);
+            }
+        };
+
+        DataFileWatcher watcher = new DataFileWatcher(
+                cfg, Collections.singletonMap(RegionConstants.REGION_PACKAGE_FILENAME, file.toUri()), 1000);
+        try {
+            // The file is written in two chunks with a pause shorter than the settle time
+            try (OutputStream out = Files.newOutputStream(file)) {
+                out.write("internal=xyz\n".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                Thread.sleep(300);
+                out.write("global=uvw\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+
+            long end = System.currentTimeMillis() + 30000;
+            while (reloaded.isEmpty() && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+            // No further reload follows
+            Thread.sleep(1500);
+            assertEquals(
+                    Collections.singletonList(RegionConstants.REGION_PACKAGE_FILENAME + ":internal=xyz\nglobal=uvw\n"),
+                    reloaded);
+        } finally {
+            watcher.close();
+            Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+}
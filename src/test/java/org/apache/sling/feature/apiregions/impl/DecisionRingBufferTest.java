@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DecisionRingBufferTest {
+    @Test
+    public void testCapacityIsPowerOfTwo() {
+        assertEquals(1, new DecisionRingBuffer(1).capacity());
+        assertEquals(4, new DecisionRingBuffer(3).capacity());
+        assertEquals(1024, new DecisionRingBuffer(1000).capacity());
+    }
+
+    @Test
+    public void testEmpty() {
+        List<Long> seqs = new ArrayList<>();
+        new DecisionRingBuffer(4).visit((seq, req, pkg, removed, kept, region) -> seqs.add(seq));
+        assertEquals(0, seqs.size());
+    }
+
+    @Test
+    public void testWrapAround() {
+        DecisionRingBuffer buffer = new DecisionRingBuffer(4);
+        for (int i = 0; i < 6; i++) {
+            buffer.record(i, "p" + i, i == 3 ? -1 : i + 10, i + 20, i == 5 ? -1 : i);
+        }
+        assertEquals(6, buffer.getRecordCount());
+
+        List<String> decisions = new ArrayList<>();
+        buffer.visit((seq, req, pkg, removed, kept, region) ->
+                decisions.add(seq + ":" + req + "," + pkg + "," + removed + "," + kept + "," + region));
+        assertEquals(
+                Arrays.asList("5:5,p5,15,25,-1", "4:4,p4,14,24,4", "3:3,p3,-1,23,3", "2:2,p2,12,22,2"),
+                decisions);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongFunction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DecisionStoreTest {
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("decisions", ".bin");
+        try {
+            LongFunction<String> locations = id -> "test://b" + id;
+
+            RegionConfiguration cfg = createConfiguration();
+            RegionEnforcer enforcer = new RegionEnforcer(cfg);
+            enforcer.enablePersistence(locations);
+            ResolverHookImpl hook = (ResolverHookImpl) enforcer.begin(null);
+            long generation = cfg.getGeneration();
+            hook.visibilityCache.put(generation, 1, "org.foo", 2, "r1");
+            hook.visibilityCache.put(generation, 1, "org.foo", 3, ResolverHookImpl.NOT_COVERED);
+            hook.visibilityCache.put(generation, 4, "org.bar", 2, null);
+            assertEquals(3, enforcer.saveDecisions(file));
+
+            // A configuration with the same contents has the same checksum
+            RegionConfiguration cfg2 = createConfiguration();
+            assertEquals(cfg.getChecksum(cfg.getSnapshot()), cfg2.getChecksum(cfg2.getSnapshot()));
+            DecisionStore decisions = DecisionStore.load(file);
+            assertEquals(3, decisions.size());
+
+            // Bundle 4 was installed again and now has another id
+            RegionEnforcer enforcer2 = new RegionEnforcer(cfg2);
+            enforcer2.enablePersistence(id -> id == 4 ? "test://other" : locations.apply(id));
+            enforcer2.setPendingDecisions(decisions);
+            VisibilityCache cache = ((ResolverHookImpl) enforcer2.begin(null)).visibilityCache;
+            long generation2 = cfg2.getGeneration();
+            assertEquals("r1", cache.get(generation2, 1, "org.foo", 2));
+            assertSame(ResolverHookImpl.NOT_COVERED, cache.get(generation2, 1, "org.foo", 3));
+            assertSame(VisibilityCache.MISS, cache.get(generation2, 4, "org.bar", 2));
+
+            // Decisions of another configuration are not used
+            RegionConfiguration cfg3 = createConfiguration();
+            Dictionary<String, Object> props = new Hashtable<>();
+            props.put(RegionConstants.PROP_regionPackage, "r1=org.extra");
+            cfg3.setConfig("pid", props);
+            assertTrue(cfg.getChecksum(cfg.getSnapshot()) != cfg3.getChecksum(cfg3.getSnapshot()));
+            RegionEnforcer enforcer3 = new RegionEnforcer(cfg3);
+            enforcer3.enablePersistence(locations);
+            enforcer3.setPendingDecisions(DecisionStore.load(file));
+            cache = ((ResolverHookImpl) enforcer3.begin(null)).visibilityCache;
+            assertSame(VisibilityCache.MISS, cache.get(cfg3.getGeneration(), 1, "org.foo", 2));
+
+            // Nothing is saved for a cache of an older generation
+            cfg.setConfig("pid", props);
+            assertEquals(-1, enforcer.saveDecisions(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNotADecisionsFile() throws Exception {
+        File file = File.createTempFile("decisions", ".bin");
+        try {
+            Files.write(file.toPath(), new byte[16]);
+            assertNull(DecisionStore.load(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDamagedFile() throws Exception {
+        File file = File.createTempFile("decisions", ".bin");
+        try {
+            RegionConfiguration cfg = createConfiguration();
+            RegionEnforcer enforcer = new RegionEnforcer(cfg);
+            enforcer.enablePersistence(id -> "test://b" + id);
+            ResolverHookImpl hook = (ResolverHookImpl) enforcer.begin(null);
+            hook.visibilityCache.put(cfg.getGeneration(), 1, "org.foo", 2, "r1");
+            assertEquals(1, enforcer.saveDecisions(file));
+            assertEquals(1, DecisionStore.load(file).size());
+            assertEquals(0, file.getParentFile().listFiles((d, n) -> n.equals(file.getName() + ".tmp")).length);
+
+            // The region index of the decision is out of range
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(raf.length() - 4);
+                raf.writeInt(5);
+            }
+            assertDamaged(file);
+
+            // The bundle count exceeds what the file can hold
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(16);
+                raf.writeInt(Integer.MAX_VALUE);
+            }
+            assertDamaged(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertDamaged(File file) {
+        try {
+            DecisionStore.load(file);
+            fail("Expected the file to be reported as damaged");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static RegionConfiguration createConfiguration() {
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("r1", Collections.singleton("org.foo"));
+        return new RegionConfiguration(
+                Collections.emptyMap(),
+                Collections.singletonMap("b1", Collections.singleton("f1")),
+                Collections.singletonMap("f1", Collections.singletonList("r1")),
+                rpmap,
+                Collections.emptySet());
+    }
+}
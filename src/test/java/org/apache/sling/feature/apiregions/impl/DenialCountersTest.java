@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DenialCountersTest {
+    @Test
+    public void testRegions() {
+        DenialCounters counters = new DenialCounters(new StringIds(), new StringIds());
+        counters.countRegion("r1");
+        counters.countRegion("r2");
+        counters.countRegion("r2");
+        counters.countRegion(null);
+        for (int i = 0; i < 20; i++) {
+            counters.countRegion("many" + i);
+        }
+
+        assertEquals(Arrays.asList("r2=2", "r1=1"), counters.topRegions(2));
+        assertEquals(23, counters.topRegions(100).size());
+        assertTrue(counters.topRegions(100).contains("(none)=1"));
+        assertEquals(Collections.emptyList(), counters.topRegions(0));
+
+        counters.reset();
+        assertEquals(Collections.emptyList(), counters.topRegions(10));
+    }
+
+    @Test
+    public void testFeaturePairs() {
+        DenialCounters counters = new DenialCounters(new StringIds(), new StringIds());
+        for (int i = 0; i < 200; i++) {
+            counters.countFeaturePair("f" + i, "g");
+        }
+        for (int i = 0; i < 3; i++) {
+            counters.countFeaturePair("f7", "g");
+        }
+        counters.countFeaturePair(null, "g");
+        counters.countFeaturePair(null, "g");
+
+        assertEquals(Arrays.asList("f7 -> g=4", "(none) -> g=2"), counters.topFeaturePairs(2));
+        assertEquals(201, counters.topFeaturePairs(1000).size());
+
+        counters.reset();
+        assertEquals(Collections.emptyList(), counters.topFeaturePairs(10));
+    }
+
+    @Test
+    public void testNoFeatures() {
+        DenialCounters counters = new DenialCounters(new StringIds(), new StringIds());
+        // Both ids are -1, which packed without an offset gives the key of an empty slot
+        counters.countFeaturePair(null, null);
+        counters.countFeaturePair(null, null);
+        counters.countFeaturePair("f", null);
+
+        assertEquals(Arrays.asList("(none) -> (none)=2", "f -> (none)=1"), counters.topFeaturePairs(10));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectPackageIndexTest {
+    @Test
+    public void testLookup() {
+        TreeSet<String> names = new TreeSet<>();
+        for (int i = 0; i < 500; i++) {
+            names.add("org.apache.sling.api.resource.p" + i);
+        }
+        names.add("com.acme.caf\u00e9");
+        names.add("com.acme.\u4e2d\u6587");
+        names.add("com.acme.\ud835\udc9c");
+        DirectPackageIndex index = DirectPackageIndex.of(names);
+
+        assertEquals(names.size(), index.size());
+        assertTrue(index.getOffHeapUsage() > names.size() * 30);
+        int id = 0;
+        for (String name : names) {
+            assertEquals(name, id, index.idOf(name));
+            assertEquals(name, index.get(id));
+            id++;
+        }
+
+        for (String name : Arrays.asList(
+                "", "org.apache.sling.api.resource.p", "org.apache.sling.api.resource.p5000", "com.acme.cafe",
+                "com.acme.caf\u00e9s", "com.acme.\u4e2d", "com.acme.\ud835", "com.acme.?")) {
+            assertEquals(name, -1, index.idOf(name));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+
+public class JfrEventTest {
+    @Test
+    public void testNoEventWithoutRecording() {
+        JfrEvent type = JfrEvent.create(
+                "org.apache.sling.feature.apiregions.Test",
+                "Test",
+                "Test event",
+                new String[] {"value"},
+                new Class<?>[] {String.class});
+
+        // No recording is running, so no event should be created, whether or not JFR is available
+        Object event = type.begin();
+        assertNull(event);
+        type.commit(event, "ignored");
+    }
+
+    @Test
+    public void testInvalidEventTypeIsInert() {
+        JfrEvent type = JfrEvent.create(
+                "org.apache.sling.feature.apiregions.Invalid",
+                "Invalid",
+                "Event with an unsupported field type",
+                new String[] {"value"},
+                new Class<?>[] {Object.class});
+
+        assertNull(type.begin());
+    }
+}
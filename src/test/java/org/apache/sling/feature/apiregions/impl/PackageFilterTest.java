@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackageFilterTest {
+    @Test
+    public void testNoFalseNegatives() {
+        Set<String> r1 = new HashSet<>();
+        Set<String> r2 = new HashSet<>();
+        for (int i = 0; i < 5000; i++) {
+            r1.add("org.apache.sling.api.p" + i);
+            r2.add("com.acme.p" + i);
+        }
+        r2.add("org.apache.sling.api.p1");
+        List<Set<String>> regions = Arrays.asList(r1, r2);
+        PackageFilter filter = PackageFilter.compile(regions);
+
+        assertEquals(10000, filter.size());
+        for (Set<String> region : regions) {
+            for (String pkg : region) {
+                assertTrue(pkg, filter.mayContain(pkg));
+            }
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mayContain("org.other.p" + i)) falsePositives++;
+        }
+        double rate = filter.getFalsePositiveRate();
+        assertTrue("Rate: " + rate, rate > 0 && rate < 0.02);
+        assertTrue("False positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void testWildcards() {
+        PackageFilter filter =
+                PackageFilter.compile(Collections.singletonList(new HashSet<>(Arrays.asList("a.b", "c.d.*"))));
+        assertEquals(1, filter.size());
+        assertTrue(filter.mayContain("a.b"));
+        assertTrue(filter.mayContain("c.d"));
+        assertTrue(filter.mayContain("c.d.e"));
+        assertFalse(filter.mayContain("c.de"));
+    }
+
+    @Test
+    public void testEmpty() {
+        PackageFilter filter = PackageFilter.compile(Collections.emptyList());
+        assertEquals(0, filter.size());
+        assertFalse(filter.mayContain("a.b"));
+        assertEquals(0.0, filter.getFalsePositiveRate(), 0.0);
+
+        PackageFilter all = PackageFilter.compile(Collections.singletonList(Collections.singleton("*")));
+        assertTrue(all.mayContain("a.b"));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackageSetTest {
+    @Test
+    public void testContains() {
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.add("org.foo.p" + i);
+        }
+        PackageSet ps = PackageSet.of(expected);
+
+        assertEquals(expected.size(), ps.size());
+        assertEquals(expected, ps);
+        assertEquals(ps, expected);
+        assertEquals(expected.hashCode(), ps.hashCode());
+        for (String p : expected) {
+            assertTrue(ps.contains(p));
+        }
+        assertFalse(ps.contains("org.foo.p1000"));
+        assertFalse(ps.contains(null));
+        assertFalse(ps.contains(42));
+        assertEquals(expected, new HashSet<>(ps));
+    }
+
+    @Test
+    public void testDuplicatesAndEmpty() {
+        PackageSet ps = PackageSet.of(Arrays.asList("a", "b", "a"));
+        assertEquals(2, ps.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), ps);
+
+        assertSame(PackageSet.EMPTY, PackageSet.of(Collections.emptySet()));
+        assertTrue(PackageSet.EMPTY.isEmpty());
+        assertFalse(PackageSet.EMPTY.contains("a"));
+        assertFalse(PackageSet.EMPTY.iterator().hasNext());
+        assertSame(ps, PackageSet.of(ps));
+    }
+
+    @Test
+    public void testCompact() {
+        Map<String, Set<String>> m = new HashMap<>();
+        m.put("r1", new HashSet<>(Arrays.asList("org.foo", "org.foo.api", "org.bar")));
+        m.put("r2", new HashSet<>(Arrays.asList("org.foo.api", "org.zoo")));
+        m.put("r3", Collections.emptySet());
+        PackageSet.compact(m, false);
+
+        PackageSet r1 = (PackageSet) m.get("r1");
+        PackageSet r2 = (PackageSet) m.get("r2");
+        assertSame(r1.getIndex(), r2.getIndex());
+        assertEquals(4, r1.getIndex().size());
+        assertEquals(Arrays.asList("org.bar", "org.foo", "org.foo.api"), new ArrayList<>(r1));
+        assertEquals(Arrays.asList("org.foo.api", "org.zoo"), new ArrayList<>(r2));
+        assertFalse(r2.contains("org.foo"));
+        assertSame(PackageSet.EMPTY, m.get("r3"));
+
+        // Already compact, nothing changes
+        Map<String, Set<String>> m2 = new HashMap<>(m);
+        PackageSet.compact(m2, false);
+        assertSame(r1, m2.get("r1"));
+
+        // A modified set causes all sets to be moved to a new table
+        m2.put("r4", Collections.singleton("org.new"));
+        PackageSet.compact(m2, false);
+        assertNotSame(r1, m2.get("r1"));
+        assertEquals(r1, m2.get("r1"));
+        assertSame(((PackageSet) m2.get("r1")).getIndex(), ((PackageSet) m2.get("r4")).getIndex());
+    }
+
+    @Test
+    public void testCompactParallel() {
+        Map<String, Set<String>> sequential = new HashMap<>();
+        Map<String, Set<String>> parallel = new HashMap<>();
+        for (int r = 0; r < 20; r++) {
+            Set<String> packages = new HashSet<>();
+            for (int i = 0; i < 500; i++) {
+                packages.add("org.p" + (i * (r + 1)) % 3000);
+            }
+            sequential.put("r" + r, packages);
+            parallel.put("r" + r, new HashSet<>(packages));
+        }
+        PackageSet.compact(sequential, false, 0);
+        PackageSet.compact(parallel, false, 1);
+
+        assertEquals(sequential, parallel);
+        PackageIndex si = ((PackageSet) sequential.get("r0")).getIndex();
+        PackageIndex pi = ((PackageSet) parallel.get("r0")).getIndex();
+        assertEquals(si.size(), pi.size());
+        for (int i = 0; i < si.size(); i++) {
+            assertEquals(si.get(i), pi.get(i));
+        }
+        for (Set<String> values : parallel.values()) {
+            assertSame(pi, ((PackageSet) values).getIndex());
+        }
+    }
+
+    @Test
+    public void testUnion() {
+        Map<String, Set<String>> m = new HashMap<>();
+        m.put("global", new HashSet<>(Arrays.asList("org.foo", "org.bar")));
+        m.put("r1", new HashSet<>(Arrays.asList("org.foo", "org.zoo")));
+        m.put("r2", new HashSet<>(Arrays.asList("org.abc")));
+        PackageSet.compact(m, false);
+        PackageSet global = (PackageSet) m.get("global");
+        PackageSet r1 = (PackageSet) m.get("r1");
+        PackageSet r2 = (PackageSet) m.get("r2");
+
+        PackageSet union = PackageSet.union(Arrays.asList(global, r1, PackageSet.EMPTY));
+        assertSame(global.getIndex(), union.getIndex());
+        assertEquals(3, union.size());
+        assertEquals(Arrays.asList("org.bar", "org.foo", "org.zoo"), new ArrayList<>(union));
+        assertTrue(union.contains("org.zoo"));
+        assertFalse(union.contains("org.abc"));
+        assertEquals(new HashSet<>(Arrays.asList("org.foo", "org.bar", "org.zoo")), union);
+
+        // A union of a union refers to all sets
+        PackageSet all = PackageSet.union(Arrays.asList(union, r2));
+        assertEquals(Arrays.asList("org.abc", "org.bar", "org.foo", "org.zoo"), new ArrayList<>(all));
+        assertTrue(all.getEstimatedHeapUsage() > global.getEstimatedHeapUsage());
+
+        // Sets with another index are copied
+        PackageSet other = PackageSet.of(Collections.singleton("org.other"));
+        PackageSet copied = PackageSet.union(Arrays.asList(global, other));
+        assertEquals(new HashSet<>(Arrays.asList("org.foo", "org.bar", "org.other")), copied);
+
+        assertSame(PackageSet.EMPTY, PackageSet.union(Collections.singleton(PackageSet.EMPTY)));
+        assertEquals(global, PackageSet.union(Collections.singleton(global)));
+
+        // The same ids in the same index
+        assertTrue(union.hasSameIds(PackageSet.union(Arrays.asList(global, r1))));
+        assertFalse(union.hasSameIds(all));
+        assertFalse(global.hasSameIds(r1));
+        // The same names in another index
+        assertFalse(r2.hasSameIds(PackageSet.of(Collections.singleton("org.abc"))));
+    }
+
+    @Test
+    public void testImmutable() {
+        PackageSet ps = PackageSet.of(Collections.singleton("a"));
+        try {
+            ps.add("b");
+            fail("Should have thrown an exception");
+        } catch (UnsupportedOperationException e) {
+            // good
+        }
+        try {
+            ps.remove("a");
+            fail("Should have thrown an exception");
+        } catch (UnsupportedOperationException e) {
+            // good
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PackageTableTest {
+    @Test
+    public void testLookup() {
+        TreeSet<String> names = new TreeSet<>();
+        for (int i = 0; i < 200; i++) {
+            names.add("org.apache.sling.api.resource.p" + i);
+            names.add("org.apache.sling.api.p" + i);
+            names.add("com.acme" + i);
+        }
+        names.add("a");
+        names.add("org");
+        PackageTable table = PackageTable.of(names);
+
+        assertEquals(names.size(), table.size());
+        int id = 0;
+        for (String name : names) {
+            assertEquals(name, id, table.idOf(name));
+            assertEquals(name, table.get(id));
+            id++;
+        }
+
+        for (String name : Arrays.asList(
+                "", "o", "or", "org.", "org.apache.sling.api.p", "org.apache.sling.api.p1000", "com.acme1.x", "b")) {
+            assertEquals(name, -1, table.idOf(name));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        PackageTable table = PackageTable.of(new TreeSet<>());
+        assertEquals(0, table.size());
+        assertEquals(-1, table.idOf("org.foo"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetInvalid() {
+        PackageTable.of(new TreeSet<>(Arrays.asList("a", "b"))).get(2);
+    }
+}
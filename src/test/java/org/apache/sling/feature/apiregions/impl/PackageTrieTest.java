@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PackageTrieTest {
+    @Test
+    public void testMatches() {
+        PackageTrie trie = PackageTrie.compile(
+                Arrays.asList("com.acme.api.*", "com.acme.spi", "org.apache.sling.*", "org.apache.felix.scr.*"));
+
+        assertTrue(trie.matches("com.acme.api"));
+        assertTrue(trie.matches("com.acme.api.sub"));
+        assertTrue(trie.matches("com.acme.api.sub.deeper"));
+        assertTrue(trie.matches("org.apache.sling.api"));
+        assertTrue(trie.matches("org.apache.felix.scr"));
+
+        assertFalse(trie.matches("com.acme"));
+        assertFalse(trie.matches("com.acme.apix"));
+        assertFalse(trie.matches("com.acme.ap"));
+        assertFalse(trie.matches("com.acme.spi"));
+        assertFalse(trie.matches("org.apache.felix"));
+        assertFalse(trie.matches("org.apache.felix.http"));
+        assertFalse(trie.matches("org"));
+        assertFalse(trie.matches(""));
+    }
+
+    @Test
+    public void testMatchAll() {
+        PackageTrie trie = PackageTrie.compile(Collections.singleton("*"));
+        assertTrue(trie.matches("a"));
+        assertTrue(trie.matches("a.b.c"));
+    }
+
+    @Test
+    public void testNoPatterns() {
+        assertNull(PackageTrie.compile(Arrays.asList("a.b", "c.d")));
+        assertTrue(PackageTrie.isPattern("a.b.*"));
+        assertFalse(PackageTrie.isPattern("a.b"));
+    }
+}
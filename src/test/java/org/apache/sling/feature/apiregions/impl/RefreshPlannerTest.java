@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+import static org.junit.Assert.assertEquals;
+
+public class RefreshPlannerTest {
+    @Test
+    public void testAffectedBundles() {
+        Map<Map.Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        for (String bsn : Arrays.asList("b1", "b2", "b3", "b4")) {
+            bsnvermap.put(
+                    new AbstractMap.SimpleEntry<>(bsn, new Version(1, 0, 0)), Collections.singletonList(bsn));
+        }
+        bfmap.put("b1", Collections.singleton("f1"));
+        bfmap.put("b2", Collections.singleton("f2"));
+        bfmap.put("b3", Collections.singleton("f2"));
+        bfmap.put("b4", Collections.singleton("f1"));
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Collections.singletonList("r1"));
+        frmap.put("f2", Collections.singletonList("r1"));
+        frmap.put("__region.order__", Arrays.asList("global", "r1", "r2"));
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("r1", Collections.singleton("org.bar"));
+        RegionConfiguration cfg = new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put(RegionConstants.PROP_regionPackage, "r1=org.foo");
+        cfg.setConfig("pid", props);
+
+        Bundle b1 = mockBundle(1, "b1");
+        Bundle b2 = mockBundle(2, "b2");
+        Bundle b3 = mockBundle(3, "b3");
+        Bundle b4 = mockBundle(4, "b4");
+        BundleWire w1 = mockWire(b2, "org.foo");
+        BundleWire w4 = mockWire(b3, "org.bar");
+        mockWiring(b1, w1);
+        mockWiring(b4, w4);
+        mockWiring(b2);
+        mockWiring(b3);
+
+        Bundle sb = mockBundle(0, "system.bundle");
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getBundles()).thenReturn(new Bundle[] {sb, b1, b2, b3, b4});
+
+        RefreshPlanner planner = new RefreshPlanner(ctx, cfg, false);
+        List<Set<Bundle>> affected = new ArrayList<>();
+        cfg.setUpdateListener((previous, next) -> affected.add(planner.findAffectedBundles(previous, next)));
+
+        // Adding a package to a region does not affect existing wires
+        Dictionary<String, Object> props2 = new Hashtable<>();
+        props2.put(RegionConstants.PROP_regionPackage, "r1=org.baz");
+        cfg.setConfig("pid2", props2);
+        assertEquals(Collections.singletonList(Collections.emptySet()), affected);
+
+        // org.foo is no longer in r1, so b1 can no longer be wired to b2
+        cfg.removeConfig("pid");
+        assertEquals(2, affected.size());
+        assertEquals(Collections.singleton(b1), affected.get(1));
+
+        // org.foo is visible to b1 again through r2
+        Dictionary<String, Object> props3 = new Hashtable<>();
+        props3.put(RegionConstants.PROP_featureRegions, new String[] {"f1=r2", "f2=r2"});
+        props3.put(RegionConstants.PROP_regionPackage, "r2=org.foo");
+        cfg.setConfig("pid3", props3);
+        assertEquals(Collections.emptySet(), affected.get(2));
+    }
+
+    @Test
+    public void testNewlyAllowedProvider() {
+        Map<Map.Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        for (String bsn : Arrays.asList("b1", "b2", "b3")) {
+            bsnvermap.put(
+                    new AbstractMap.SimpleEntry<>(bsn, new Version(1, 0, 0)), Collections.singletonList(bsn));
+            bfmap.put(bsn, Collections.singleton("f" + bsn.substring(1)));
+        }
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Collections.singletonList("r1"));
+        frmap.put("f2", Collections.singletonList("r1"));
+        frmap.put("f3", Collections.singletonList("r2"));
+        frmap.put("__region.order__", Arrays.asList("global", "r1", "r2"));
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("r1", Collections.singleton("org.foo"));
+        RegionConfiguration cfg = new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+
+        // b1 is wired to b2 for org.foo, b3 exports org.foo as well but is not visible to b1
+        Bundle b1 = mockBundle(1, "b1");
+        Bundle b2 = mockBundle(2, "b2");
+        Bundle b3 = mockBundle(3, "b3");
+        mockWiring(b1, mockWire(b2, "org.foo"));
+        mockWiring(b2);
+        BundleWiring w3 = mockWiring(b3);
+        Mockito.when(w3.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE))
+                .thenReturn(Collections.singletonList(mockWire(b3, "org.foo").getCapability()));
+
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getBundles()).thenReturn(new Bundle[] {b1, b2, b3});
+
+        RefreshPlanner planner = new RefreshPlanner(ctx, cfg, false, Runnable::run);
+        List<Set<Bundle>> affected = new ArrayList<>();
+        cfg.setUpdateListener((previous, next) -> affected.add(planner.findAffectedBundles(previous, next)));
+
+        // The wire to b2 is still allowed, but the resolver could now choose b3
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put(RegionConstants.PROP_featureRegions, new String[] {"f3=r1"});
+        cfg.setConfig("pid", props);
+        assertEquals(Collections.singletonList(Collections.singleton(b1)), affected);
+    }
+
+    private static Bundle mockBundle(long id, String bsn) {
+        Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getBundleId()).thenReturn(id);
+        Mockito.when(bundle.getSymbolicName()).thenReturn(bsn);
+        Mockito.when(bundle.getVersion()).thenReturn(new Version(1, 0, 0));
+        Mockito.when(bundle.getLocation()).thenReturn("test://" + bsn);
+        return bundle;
+    }
+
+    private static BundleWire mockWire(Bundle provider, String packageName) {
+        BundleCapability cap = Mockito.mock(BundleCapability.class);
+        Mockito.when(cap.getAttributes())
+                .thenReturn(Collections.singletonMap(PackageNamespace.PACKAGE_NAMESPACE, packageName));
+        BundleRevision rev = Mockito.mock(BundleRevision.class);
+        Mockito.when(rev.getBundle()).thenReturn(provider);
+
+        Mockito.when(cap.getRevision()).thenReturn(rev);
+
+        BundleWire wire = Mockito.mock(BundleWire.class);
+        Mockito.when(wire.getCapability()).thenReturn(cap);
+        Mockito.when(wire.getProvider()).thenReturn(rev);
+        return wire;
+    }
+
+    private static BundleWiring mockWiring(Bundle bundle, BundleWire... wires) {
+        BundleWiring wiring = Mockito.mock(BundleWiring.class);
+        Mockito.when(wiring.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE)).thenReturn(Arrays.asList(wires));
+        Mockito.when(bundle.adapt(BundleWiring.class)).thenReturn(wiring);
+        return wiring;
+    }
+}
@@ -22,6 +22,9 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -30,10 +33,13 @@ import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -55,7 +61,9 @@ import static org.apache.sling.feature.apiregions.impl.RegionConstants.PROPERTIE
 import static org.apache.sling.feature.apiregions.impl.RegionConstants.PROPERTIES_RESOURCE_PREFIX;
 import static org.apache.sling.feature.apiregions.impl.RegionConstants.REGION_PACKAGE_FILENAME;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -88,14 +96,14 @@ public class RegionConfigurationTest {
                 .thenReturn(e);
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertEquals(2, re.bsnVerMap.size());
+        assertEquals(2, re.getBsnVerMap().size());
         assertEquals(
                 Collections.singletonList("g:b1:1"),
-                re.bsnVerMap.get(new AbstractMap.SimpleEntry<String, Version>("b1", new Version(1, 0, 0))));
+                re.getBsnVerMap().get(new AbstractMap.SimpleEntry<String, Version>("b1", new Version(1, 0, 0))));
         assertEquals(
                 new HashSet<>(Arrays.asList("g:b2:1.2.3", "g2:b2:1.2.4")),
                 new HashSet<>(
-                        re.bsnVerMap.get(new AbstractMap.SimpleEntry<String, Version>("b2", new Version(1, 2, 3)))));
+                        re.getBsnVerMap().get(new AbstractMap.SimpleEntry<String, Version>("b2", new Version(1, 2, 3)))));
         assertEquals(f, re.getRegistrationProperties().get(IDBSNVER_FILENAME));
     }
 
@@ -115,31 +123,34 @@ public class RegionConfigurationTest {
                 .thenReturn(e);
 
         RegionConfiguration re = new RegionConfiguration(ctx);
+        long generation = re.getGeneration();
         final Dictionary<String, Object> props = new Hashtable<>();
         props.put(RegionConstants.PROP_idbsnver, "g3:b3:2.7=b3~2.7");
         re.setConfig("new.config", props);
+        assertEquals(generation + 1, re.getGeneration());
 
-        assertEquals(3, re.bsnVerMap.size());
+        assertEquals(3, re.getBsnVerMap().size());
         assertEquals(
                 Collections.singletonList("g:b1:1"),
-                re.bsnVerMap.get(new AbstractMap.SimpleEntry<String, Version>("b1", new Version(1, 0, 0))));
+                re.getBsnVerMap().get(new AbstractMap.SimpleEntry<String, Version>("b1", new Version(1, 0, 0))));
         assertEquals(
                 new HashSet<>(Arrays.asList("g:b2:1.2.3", "g2:b2:1.2.4")),
                 new HashSet<>(
-                        re.bsnVerMap.get(new AbstractMap.SimpleEntry<String, Version>("b2", new Version(1, 2, 3)))));
+                        re.getBsnVerMap().get(new AbstractMap.SimpleEntry<String, Version>("b2", new Version(1, 2, 3)))));
         assertEquals(
                 Collections.singletonList("g3:b3:2.7"),
-                re.bsnVerMap.get(new AbstractMap.SimpleEntry<String, Version>("b3", new Version(2, 7, 0))));
+                re.getBsnVerMap().get(new AbstractMap.SimpleEntry<String, Version>("b3", new Version(2, 7, 0))));
 
         re.removeConfig("new.config");
-        assertEquals(2, re.bsnVerMap.size());
+        assertEquals(generation + 2, re.getGeneration());
+        assertEquals(2, re.getBsnVerMap().size());
         assertEquals(
                 Collections.singletonList("g:b1:1"),
-                re.bsnVerMap.get(new AbstractMap.SimpleEntry<String, Version>("b1", new Version(1, 0, 0))));
+                re.getBsnVerMap().get(new AbstractMap.SimpleEntry<String, Version>("b1", new Version(1, 0, 0))));
         assertEquals(
                 new HashSet<>(Arrays.asList("g:b2:1.2.3", "g2:b2:1.2.4")),
                 new HashSet<>(
-                        re.bsnVerMap.get(new AbstractMap.SimpleEntry<String, Version>("b2", new Version(1, 2, 3)))));
+                        re.getBsnVerMap().get(new AbstractMap.SimpleEntry<String, Version>("b2", new Version(1, 2, 3)))));
     }
 
     @Test
@@ -158,17 +169,17 @@ public class RegionConfigurationTest {
                 .thenReturn(e);
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertEquals(3, re.bundleFeatureMap.size());
+        assertEquals(3, re.getBundleFeatureMap().size());
         assertEquals(
                 Collections.singleton("org.sling:something:1.2.3:slingosgifeature:myclassifier"),
-                re.bundleFeatureMap.get("org.sling:b1:1"));
+                re.getBundleFeatureMap().get("org.sling:b1:1"));
         assertEquals(
                 Collections.singleton("org.sling:something:1.2.3:slingosgifeature:myclassifier"),
-                re.bundleFeatureMap.get("org.sling:b2:1"));
+                re.getBundleFeatureMap().get("org.sling:b2:1"));
         assertEquals(
                 new HashSet<>(Arrays.asList(
                         "some.other:feature:123", "org.sling:something:1.2.3:slingosgifeature:myclassifier")),
-                re.bundleFeatureMap.get("org.sling:b3:1"));
+                re.getBundleFeatureMap().get("org.sling:b3:1"));
         assertEquals(f, re.getRegistrationProperties().get(BUNDLE_FEATURE_FILENAME));
     }
 
@@ -192,48 +203,48 @@ public class RegionConfigurationTest {
         props.put(RegionConstants.PROP_bundleFeatures, "g3:b3:2.7=fg1:fa1:3.0");
         re.setConfig("new.config", props);
 
-        assertEquals(4, re.bundleFeatureMap.size());
-        assertEquals(Collections.singleton("fg1:fa1:3.0"), re.bundleFeatureMap.get("g3:b3:2.7"));
+        assertEquals(4, re.getBundleFeatureMap().size());
+        assertEquals(Collections.singleton("fg1:fa1:3.0"), re.getBundleFeatureMap().get("g3:b3:2.7"));
         assertEquals(
                 Collections.singleton("org.sling:something:1.2.3:slingosgifeature:myclassifier"),
-                re.bundleFeatureMap.get("org.sling:b1:1"));
+                re.getBundleFeatureMap().get("org.sling:b1:1"));
         assertEquals(
                 Collections.singleton("org.sling:something:1.2.3:slingosgifeature:myclassifier"),
-                re.bundleFeatureMap.get("org.sling:b2:1"));
+                re.getBundleFeatureMap().get("org.sling:b2:1"));
         assertEquals(
                 new HashSet<>(Arrays.asList(
                         "some.other:feature:123", "org.sling:something:1.2.3:slingosgifeature:myclassifier")),
-                re.bundleFeatureMap.get("org.sling:b3:1"));
+                re.getBundleFeatureMap().get("org.sling:b3:1"));
 
         re.removeConfig("new.config");
-        assertEquals(3, re.bundleFeatureMap.size());
+        assertEquals(3, re.getBundleFeatureMap().size());
         assertEquals(
                 Collections.singleton("org.sling:something:1.2.3:slingosgifeature:myclassifier"),
-                re.bundleFeatureMap.get("org.sling:b1:1"));
+                re.getBundleFeatureMap().get("org.sling:b1:1"));
         assertEquals(
                 Collections.singleton("org.sling:something:1.2.3:slingosgifeature:myclassifier"),
-                re.bundleFeatureMap.get("org.sling:b2:1"));
+                re.getBundleFeatureMap().get("org.sling:b2:1"));
         assertEquals(
                 new HashSet<>(Arrays.asList(
                         "some.other:feature:123", "org.sling:something:1.2.3:slingosgifeature:myclassifier")),
-                re.bundleFeatureMap.get("org.sling:b3:1"));
+                re.getBundleFeatureMap().get("org.sling:b3:1"));
 
         // add a config with an empty feature list
         props.put(RegionConstants.PROP_bundleFeatures, "g3:b3:2.7=");
         re.setConfig("new.config", props);
 
-        assertEquals(4, re.bundleFeatureMap.size());
-        assertEquals(Collections.emptySet(), re.bundleFeatureMap.get("g3:b3:2.7"));
+        assertEquals(4, re.getBundleFeatureMap().size());
+        assertEquals(Collections.emptySet(), re.getBundleFeatureMap().get("g3:b3:2.7"));
         assertEquals(
                 Collections.singleton("org.sling:something:1.2.3:slingosgifeature:myclassifier"),
-                re.bundleFeatureMap.get("org.sling:b1:1"));
+                re.getBundleFeatureMap().get("org.sling:b1:1"));
         assertEquals(
                 Collections.singleton("org.sling:something:1.2.3:slingosgifeature:myclassifier"),
-                re.bundleFeatureMap.get("org.sling:b2:1"));
+                re.getBundleFeatureMap().get("org.sling:b2:1"));
         assertEquals(
                 new HashSet<>(Arrays.asList(
                         "some.other:feature:123", "org.sling:something:1.2.3:slingosgifeature:myclassifier")),
-                re.bundleFeatureMap.get("org.sling:b3:1"));
+                re.getBundleFeatureMap().get("org.sling:b3:1"));
     }
 
     @Test
@@ -252,9 +263,9 @@ public class RegionConfigurationTest {
                 .thenReturn(e);
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertEquals(2, re.featureRegionMap.size());
-        assertEquals(Collections.singletonList("global"), re.featureRegionMap.get("an.other:feature:123"));
-        assertEquals(Arrays.asList("global", "internal"), re.featureRegionMap.get("org.sling:something:1.2.3"));
+        assertEquals(2, re.getFeatureRegionMap().size());
+        assertEquals(Collections.singletonList("global"), re.getFeatureRegionMap().get("an.other:feature:123"));
+        assertEquals(Arrays.asList("global", "internal"), re.getFeatureRegionMap().get("org.sling:something:1.2.3"));
         assertEquals(f, re.getRegistrationProperties().get(FEATURE_REGION_FILENAME));
     }
 
@@ -278,15 +289,15 @@ public class RegionConfigurationTest {
         props.put(RegionConstants.PROP_featureRegions, "fg1:fa1:3.0=newregion");
         re.setConfig("new.config", props);
 
-        assertEquals(3, re.featureRegionMap.size());
-        assertEquals(Collections.singletonList("newregion"), re.featureRegionMap.get("fg1:fa1:3.0"));
-        assertEquals(Collections.singletonList("global"), re.featureRegionMap.get("an.other:feature:123"));
-        assertEquals(Arrays.asList("global", "internal"), re.featureRegionMap.get("org.sling:something:1.2.3"));
+        assertEquals(3, re.getFeatureRegionMap().size());
+        assertEquals(Collections.singletonList("newregion"), re.getFeatureRegionMap().get("fg1:fa1:3.0"));
+        assertEquals(Collections.singletonList("global"), re.getFeatureRegionMap().get("an.other:feature:123"));
+        assertEquals(Arrays.asList("global", "internal"), re.getFeatureRegionMap().get("org.sling:something:1.2.3"));
 
         re.removeConfig("new.config");
-        assertEquals(2, re.featureRegionMap.size());
-        assertEquals(Collections.singletonList("global"), re.featureRegionMap.get("an.other:feature:123"));
-        assertEquals(Arrays.asList("global", "internal"), re.featureRegionMap.get("org.sling:something:1.2.3"));
+        assertEquals(2, re.getFeatureRegionMap().size());
+        assertEquals(Collections.singletonList("global"), re.getFeatureRegionMap().get("an.other:feature:123"));
+        assertEquals(Arrays.asList("global", "internal"), re.getFeatureRegionMap().get("org.sling:something:1.2.3"));
     }
 
     @Test
@@ -305,12 +316,72 @@ public class RegionConfigurationTest {
                 .thenReturn(f);
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertEquals(2, re.regionPackageMap.size());
-        assertEquals(Collections.singleton("xyz"), re.regionPackageMap.get("internal"));
-        assertEquals(new HashSet<>(Arrays.asList("a.b.c", "d.e.f", "test")), re.regionPackageMap.get("global"));
+        assertEquals(2, re.getRegionPackageMap().size());
+        assertEquals(Collections.singleton("xyz"), re.getRegionPackageMap().get("internal"));
+        assertEquals(new HashSet<>(Arrays.asList("a.b.c", "d.e.f", "test")), re.getRegionPackageMap().get("global"));
         assertEquals(f, re.getRegistrationProperties().get(REGION_PACKAGE_FILENAME));
     }
 
+    @Test
+    public void testLoadRegionPackageMapOffHeap() throws Exception {
+        String e = getClass().getResource("/empty.properties").toURI().toString();
+        String f = getClass().getResource("/regions1.properties").toURI().toString();
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getBundle()).thenReturn(Mockito.mock(Bundle.class));
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + IDBSNVER_FILENAME))
+                .thenReturn(e);
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + BUNDLE_FEATURE_FILENAME))
+                .thenReturn(e);
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + FEATURE_REGION_FILENAME))
+                .thenReturn(e);
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + REGION_PACKAGE_FILENAME))
+                .thenReturn(f);
+        Mockito.when(ctx.getProperty(RegionConstants.OFF_HEAP_INDEX)).thenReturn("true");
+
+        RegionConfiguration re = new RegionConfiguration(ctx);
+        assertTrue(re.getOffHeapUsage() > 0);
+        assertEquals("true", re.getRegistrationProperties().get(RegionConstants.OFF_HEAP_INDEX));
+        assertEquals(Collections.singleton("xyz"), re.getRegionPackageMap().get("internal"));
+        assertEquals(new HashSet<>(Arrays.asList("a.b.c", "d.e.f", "test")), re.getRegionPackageMap().get("global"));
+        assertTrue(re.isPackageInRegion("global", "d.e.f"));
+        assertFalse(re.isPackageInRegion("global", "xyz"));
+
+        final Dictionary<String, Object> props = new Hashtable<>();
+        props.put(RegionConstants.PROP_regionPackage, "internal=r.i.p");
+        re.setConfig("new.config", props);
+        assertEquals(new HashSet<>(Arrays.asList("xyz", "r.i.p")), re.getRegionPackageMap().get("internal"));
+        assertTrue(re.isPackageInRegion("internal", "r.i.p"));
+    }
+
+    @Test
+    public void testEnforcedRegions() throws Exception {
+        String e = getClass().getResource("/empty.properties").toURI().toString();
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getBundle()).thenReturn(Mockito.mock(Bundle.class));
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + IDBSNVER_FILENAME))
+                .thenReturn(e);
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + BUNDLE_FEATURE_FILENAME))
+                .thenReturn(e);
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + FEATURE_REGION_FILENAME))
+                .thenReturn(e);
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + REGION_PACKAGE_FILENAME))
+                .thenReturn(e);
+
+        Mockito.when(ctx.getProperty(Activator.REGIONS_PROPERTY_NAME)).thenReturn("*");
+        assertNull(new RegionConfiguration(ctx).getEnforcedRegions());
+
+        Mockito.when(ctx.getProperty(Activator.REGIONS_PROPERTY_NAME)).thenReturn("internal, global,");
+        RegionConfiguration re = new RegionConfiguration(ctx);
+        assertEquals(new HashSet<>(Arrays.asList("internal", "global")), re.getEnforcedRegions());
+        // A bundle that is in no feature is in no region
+        assertFalse(re.getBundleFeatures(null).enforced);
+
+        Mockito.when(ctx.getProperty(Activator.REGIONS_PROPERTY_NAME)).thenReturn("");
+        re = new RegionConfiguration(ctx);
+        assertNull(re.getEnforcedRegions());
+        assertTrue(re.getBundleFeatures(null).enforced);
+    }
+
     @Test
     public void testLoadRegionPackageMapAndConfig() throws Exception {
         String e = getClass().getResource("/empty.properties").toURI().toString();
@@ -327,18 +398,37 @@ public class RegionConfigurationTest {
                 .thenReturn(f);
 
         RegionConfiguration re = new RegionConfiguration(ctx);
+        final PackageFilter baseFilter = re.getPackageFilter();
+        final Dictionary<String, Object> other = new Hashtable<>();
+        other.put(RegionConstants.PROP_featureRegions, "org.sling:f:1=global");
+        re.setConfig("other.config", other);
+        // No packages were added, the filter is reused
+        assertSame(baseFilter, re.getPackageFilter());
+
         final Dictionary<String, Object> props = new Hashtable<>();
         props.put(RegionConstants.PROP_regionPackage, "internal=r.i.p");
         re.setConfig("new.config", props);
 
-        assertEquals(2, re.regionPackageMap.size());
-        assertEquals(new HashSet<>(Arrays.asList("xyz", "r.i.p")), re.regionPackageMap.get("internal"));
-        assertEquals(new HashSet<>(Arrays.asList("a.b.c", "d.e.f", "test")), re.regionPackageMap.get("global"));
+        assertEquals(2, re.getRegionPackageMap().size());
+        assertEquals(new HashSet<>(Arrays.asList("xyz", "r.i.p")), re.getRegionPackageMap().get("internal"));
+        assertEquals(new HashSet<>(Arrays.asList("a.b.c", "d.e.f", "test")), re.getRegionPackageMap().get("global"));
+        assertTrue(re.getPackageFilter().mayContain("r.i.p"));
+        assertTrue(re.getRegionPatternMap().isEmpty());
+
+        final Dictionary<String, Object> patterns = new Hashtable<>();
+        patterns.put(RegionConstants.PROP_regionPackage, "internal=org.w.*");
+        re.setConfig("pattern.config", patterns);
+        assertEquals(Collections.singleton("internal"), re.getRegionPatternMap().keySet());
+        assertTrue(re.isPackageInRegion("internal", "org.w.x"));
+        assertFalse(re.isPackageInRegion("global", "org.w.x"));
+        re.removeConfig("pattern.config");
 
         re.removeConfig("new.config");
-        assertEquals(2, re.regionPackageMap.size());
-        assertEquals(Collections.singleton("xyz"), re.regionPackageMap.get("internal"));
-        assertEquals(new HashSet<>(Arrays.asList("a.b.c", "d.e.f", "test")), re.regionPackageMap.get("global"));
+        // The sets of the base configuration are used again, and so is their filter
+        assertSame(baseFilter, re.getPackageFilter());
+        assertEquals(2, re.getRegionPackageMap().size());
+        assertEquals(Collections.singleton("xyz"), re.getRegionPackageMap().get("internal"));
+        assertEquals(new HashSet<>(Arrays.asList("a.b.c", "d.e.f", "test")), re.getRegionPackageMap().get("global"));
     }
 
     @Test
@@ -358,8 +448,18 @@ public class RegionConfigurationTest {
                 .thenReturn(f);
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertEquals(1, re.regionPackageMap.size());
-        assertEquals(new HashSet<>(Arrays.asList("xyz", "a.b.c", "d.e.f", "test")), re.regionPackageMap.get("global"));
+        assertEquals(1, re.getRegionPackageMap().size());
+        assertEquals(new HashSet<>(Arrays.asList("xyz", "a.b.c", "d.e.f", "test")), re.getRegionPackageMap().get("global"));
+        assertTrue(re.isPackageInRegion("global", "xyz"));
+        assertFalse(re.isPackageInRegion("global", "uvw"));
+
+        // Packages added to a joined region by a factory configuration are in global
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put(RegionConstants.PROP_regionPackage, "deprecated=uvw");
+        re.setConfig("pid", props);
+        assertTrue(re.isPackageInRegion("global", "uvw"));
+        assertEquals(5, re.getPackageCount());
+        assertFalse(re.getRegionPackageMap().containsKey("deprecated"));
     }
 
     @Test
@@ -380,16 +480,16 @@ public class RegionConfigurationTest {
                         getClass().getResource("/regions1.properties").toURI().toString());
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertTrue(re.bsnVerMap.size() > 0);
-        assertTrue(re.bundleFeatureMap.size() > 0);
-        assertTrue(re.featureRegionMap.size() > 0);
-        assertTrue(re.regionPackageMap.size() > 0);
+        assertTrue(re.getBsnVerMap().size() > 0);
+        assertTrue(re.getBundleFeatureMap().size() > 0);
+        assertTrue(re.getFeatureRegionMap().size() > 0);
+        assertTrue(re.getRegionPackageMap().size() > 0);
 
         ResolverHookImpl hook = (ResolverHookImpl) new RegionEnforcer(re).begin(null);
-        assertEquals(re.bsnVerMap, hook.configuration.bsnVerMap);
-        assertEquals(re.bundleFeatureMap, hook.configuration.bundleFeatureMap);
-        assertEquals(re.featureRegionMap, hook.configuration.featureRegionMap);
-        assertEquals(re.regionPackageMap, hook.configuration.regionPackageMap);
+        assertEquals(re.getBsnVerMap(), hook.configuration.getBsnVerMap());
+        assertEquals(re.getBundleFeatureMap(), hook.configuration.getBundleFeatureMap());
+        assertEquals(re.getFeatureRegionMap(), hook.configuration.getFeatureRegionMap());
+        assertEquals(re.getRegionPackageMap(), hook.configuration.getRegionPackageMap());
     }
 
     @Test
@@ -404,10 +504,10 @@ public class RegionConfigurationTest {
         Mockito.when(ctx.getProperty(PROPERTIES_FILE_LOCATION)).thenReturn(location);
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertTrue(re.bsnVerMap.size() > 0);
-        assertTrue(re.bundleFeatureMap.size() > 0);
-        assertTrue(re.featureRegionMap.size() > 0);
-        assertTrue(re.regionPackageMap.size() > 0);
+        assertTrue(re.getBsnVerMap().size() > 0);
+        assertTrue(re.getBundleFeatureMap().size() > 0);
+        assertTrue(re.getFeatureRegionMap().size() > 0);
+        assertTrue(re.getRegionPackageMap().size() > 0);
     }
 
     @Test
@@ -417,10 +517,10 @@ public class RegionConfigurationTest {
         Mockito.when(ctx.getProperty(PROPERTIES_FILE_LOCATION)).thenReturn("classloader://props1");
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertTrue(re.bsnVerMap.size() > 0);
-        assertTrue(re.bundleFeatureMap.size() > 0);
-        assertTrue(re.featureRegionMap.size() > 0);
-        assertTrue(re.regionPackageMap.size() > 0);
+        assertTrue(re.getBsnVerMap().size() > 0);
+        assertTrue(re.getBundleFeatureMap().size() > 0);
+        assertTrue(re.getFeatureRegionMap().size() > 0);
+        assertTrue(re.getRegionPackageMap().size() > 0);
     }
 
     @Test
@@ -432,7 +532,7 @@ public class RegionConfigurationTest {
         RegionConfiguration re = new RegionConfiguration(ctx);
         assertEquals(
                 Arrays.asList("r0", "r1", "r2", "r3"),
-                new ArrayList<>(re.featureRegionMap.get("org.sling:something:1.2.3")));
+                new ArrayList<>(re.getFeatureRegionMap().get("org.sling:something:1.2.3")));
     }
 
     @Test
@@ -442,14 +542,14 @@ public class RegionConfigurationTest {
         Mockito.when(ctx.getProperty(PROPERTIES_FILE_LOCATION)).thenReturn("classloader://props1");
 
         RegionConfiguration re = new RegionConfiguration(ctx);
-        assertTrue(re.bsnVerMap.size() > 0);
-        assertBSNVerMapUnmodifiable(re.bsnVerMap);
-        assertTrue(re.bundleFeatureMap.size() > 0);
-        assertMapUnmodifiable(re.bundleFeatureMap);
-        assertTrue(re.featureRegionMap.size() > 0);
-        assertMapUnmodifiable(re.featureRegionMap);
-        assertTrue(re.regionPackageMap.size() > 0);
-        assertMapUnmodifiable(re.regionPackageMap);
+        assertTrue(re.getBsnVerMap().size() > 0);
+        assertBSNVerMapUnmodifiable(re.getBsnVerMap());
+        assertTrue(re.getBundleFeatureMap().size() > 0);
+        assertMapUnmodifiable(re.getBundleFeatureMap());
+        assertTrue(re.getFeatureRegionMap().size() > 0);
+        assertMapUnmodifiable(re.getFeatureRegionMap());
+        assertTrue(re.getRegionPackageMap().size() > 0);
+        assertMapUnmodifiable(re.getRegionPackageMap());
     }
 
     @Test
@@ -561,6 +661,223 @@ public class RegionConfigurationTest {
                 "Now b4 from the req should have visibility to both caps as b4 is now in the feature", expected, caps2);
     }
 
+    @Test
+    public void testAsyncConfigUpdates() throws Exception {
+        RegionConfiguration cfg = new RegionConfiguration(
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.singletonMap("global", Collections.singleton("org.foo")),
+                Collections.emptySet());
+        long generation = cfg.getGeneration();
+
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Dictionary<String, Object> props = new Hashtable<>();
+            props.put(RegionConstants.PROP_regionPackage, "global=org.p" + i);
+            futures.add(cfg.setConfigAsync("pid" + i, props));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            // Every change is visible once its future completes
+            long g = futures.get(i).get(10, TimeUnit.SECONDS);
+            assertTrue(g > generation);
+            assertTrue(cfg.isPackageInRegion("global", "org.p" + i));
+        }
+        // Updates that arrive while an update is pending are coalesced
+        assertTrue(cfg.getGeneration() - generation <= 20);
+        assertEquals(21, cfg.getRegionPackageMap().get("global").size());
+
+        long g = cfg.removeConfigAsync("pid0").get(10, TimeUnit.SECONDS);
+        assertFalse(cfg.isPackageInRegion("global", "org.p0"));
+        assertEquals(g, cfg.removeConfigAsync("pid0").get(10, TimeUnit.SECONDS).longValue());
+
+        // After closing, updates run on the calling thread
+        cfg.close();
+        CompletableFuture<Long> f = cfg.removeConfigAsync("pid1");
+        assertTrue(f.isDone());
+        assertFalse(cfg.isPackageInRegion("global", "org.p1"));
+    }
+
+    @Test
+    public void testReloadDataFiles() throws Exception {
+        Path dir = Files.createTempDirectory("apiregions");
+        for (String name : Arrays.asList(
+                IDBSNVER_FILENAME, BUNDLE_FEATURE_FILENAME, FEATURE_REGION_FILENAME, REGION_PACKAGE_FILENAME)) {
+            Files.copy(getClass().getResourceAsStream("/props1/" + name), dir.resolve(name));
+        }
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getBundle()).thenReturn(Mockito.mock(Bundle.class));
+        Mockito.when(ctx.getProperty(PROPERTIES_FILE_LOCATION)).thenReturn(dir.toString());
+        Mockito.when(ctx.getProperty(RegionConstants.WATCH_FILES)).thenReturn("true");
+
+        RegionConfiguration re = new RegionConfiguration(ctx);
+        try {
+            assertTrue(re.isPackageInRegion("internal", "xyz"));
+
+            // Reload a single file explicitly
+            Files.write(
+                    dir.resolve(REGION_PACKAGE_FILENAME),
+                    Arrays.asList("internal=xyz,uvw", "global=a.b.c"),
+                    StandardCharsets.ISO_8859_1);
+            re.reloadDataFile(REGION_PACKAGE_FILENAME).get(10, TimeUnit.SECONDS);
+            assertEquals(new HashSet<>(Arrays.asList("xyz", "uvw")), re.getRegionPackageMap().get("internal"));
+            assertEquals(Collections.singleton("a.b.c"), re.getRegionPackageMap().get("global"));
+            assertEquals(Arrays.asList("global", "internal"), re.getGlobalRegionOrder());
+
+            // The watcher picks up a modified file
+            Files.write(
+                    dir.resolve(FEATURE_REGION_FILENAME),
+                    Arrays.asList("an.other\\:feature\\:123=global", "__region.order__=internal,global"),
+                    StandardCharsets.ISO_8859_1);
+            long end = System.currentTimeMillis() + 30000;
+            // The order is read before the configuration is rebuilt, wait for both
+            while ((!re.getGlobalRegionOrder().equals(Arrays.asList("internal", "global"))
+                            || re.getFeatureRegionMap().size() != 1)
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+            assertEquals(Arrays.asList("internal", "global"), re.getGlobalRegionOrder());
+            assertEquals(1, re.getFeatureRegionMap().size());
+        } finally {
+            re.close();
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSharedBaseConfiguration() throws Exception {
+        Path dir = Files.createTempDirectory("apiregions");
+        for (String name : Arrays.asList(
+                IDBSNVER_FILENAME, BUNDLE_FEATURE_FILENAME, FEATURE_REGION_FILENAME, REGION_PACKAGE_FILENAME)) {
+            Files.copy(getClass().getResourceAsStream("/props1/" + name), dir.resolve(name));
+        }
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getBundle()).thenReturn(Mockito.mock(Bundle.class));
+        Mockito.when(ctx.getProperty(PROPERTIES_FILE_LOCATION)).thenReturn(dir.toString());
+
+        RegionConfiguration re1 = new RegionConfiguration(ctx);
+        RegionConfiguration re2 = new RegionConfiguration(ctx);
+        RegionConfiguration re3 = null;
+        try {
+            RegionConfiguration.BaseConfiguration base = re1.getSharedBase();
+            assertSame(base, re2.getSharedBase());
+            assertEquals(2, base.getReferences());
+            assertSame(re1.getBsnVerMap(), re2.getBsnVerMap());
+            assertSame(re1.getRegionPackageMap().get("internal"), re2.getRegionPackageMap().get("internal"));
+
+            // A factory configuration only applies to its own framework
+            Dictionary<String, Object> props = new Hashtable<>();
+            props.put(RegionConstants.PROP_regionPackage, "internal=org.extra");
+            re2.setConfig("pid", props);
+            assertTrue(re2.isPackageInRegion("internal", "org.extra"));
+            assertFalse(re1.isPackageInRegion("internal", "org.extra"));
+            assertSame(re1.getBsnVerMap(), re2.getBsnVerMap());
+
+            // Different contents are parsed again
+            Files.write(
+                    dir.resolve(REGION_PACKAGE_FILENAME), Arrays.asList("internal=uvw"), StandardCharsets.ISO_8859_1);
+            re3 = new RegionConfiguration(ctx);
+            assertTrue(re3.getSharedBase() != base);
+            assertTrue(re3.isPackageInRegion("internal", "uvw"));
+            assertTrue(re1.isPackageInRegion("internal", "xyz"));
+
+            re1.close();
+            assertNull(re1.getSharedBase());
+            assertEquals(1, base.getReferences());
+            re2.close();
+            assertEquals(0, base.getReferences());
+        } finally {
+            re1.close();
+            re2.close();
+            if (re3 != null) re3.close();
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testParallelThreshold() throws Exception {
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getBundle()).thenReturn(Mockito.mock(Bundle.class));
+        Mockito.when(ctx.getProperty(PROPERTIES_FILE_LOCATION)).thenReturn("classloader://props1");
+        RegionConfiguration sequential = new RegionConfiguration(ctx);
+
+        // Build everything in parallel, the result is the same
+        Mockito.when(ctx.getProperty(RegionConstants.PARALLEL_THRESHOLD)).thenReturn("1");
+        RegionConfiguration parallel = new RegionConfiguration(ctx);
+        assertEquals("1", parallel.getRegistrationProperties().get(RegionConstants.PARALLEL_THRESHOLD));
+
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put(RegionConstants.PROP_bundleFeatures, "org.sling:b1:1=org.sling:f9:1");
+        props.put(RegionConstants.PROP_regionPackage, "internal=org.extra");
+        sequential.setConfig("pid", props);
+        parallel.setConfig("pid", props);
+
+        RegionConfiguration.Snapshot s = sequential.getSnapshot();
+        RegionConfiguration.Snapshot p = parallel.getSnapshot();
+        assertEquals(s.regionPackageMap, p.regionPackageMap);
+        assertEquals(s.bsnVerFeatures.keySet(), p.bsnVerFeatures.keySet());
+        for (Map.Entry<Map.Entry<String, Version>, BundleFeatures> entry : s.bsnVerFeatures.entrySet()) {
+            BundleFeatures bf = p.bsnVerFeatures.get(entry.getKey());
+            assertEquals(entry.getValue().features, bf.features);
+            assertEquals(entry.getValue().regions, bf.regions);
+            assertEquals(
+                    new HashSet<>(Arrays.asList(entry.getValue().regionsAndAncestors)),
+                    new HashSet<>(Arrays.asList(bf.regionsAndAncestors)));
+        }
+
+        // Bundles with the same features share their compiled features
+        Set<Set<String>> distinct = new HashSet<>();
+        Set<BundleFeatures> compiled = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BundleFeatures bf : p.bsnVerFeatures.values()) {
+            distinct.add(bf.features);
+            compiled.add(bf);
+        }
+        assertEquals(distinct.size(), compiled.size());
+        sequential.close();
+        parallel.close();
+    }
+
+    @Test
+    public void testLoadInBackground() throws Exception {
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getBundle()).thenReturn(Mockito.mock(Bundle.class));
+        Mockito.when(ctx.getProperty(PROPERTIES_FILE_LOCATION)).thenReturn("classloader://props1");
+        Mockito.when(ctx.getProperty(RegionConstants.LOAD_IN_BACKGROUND)).thenReturn("true");
+
+        RegionConfiguration re = new RegionConfiguration(ctx);
+        try {
+            // A factory configuration added while loading is part of the first snapshot
+            Dictionary<String, Object> props = new Hashtable<>();
+            props.put(RegionConstants.PROP_regionPackage, "global=org.extra");
+            re.setConfig("pid", props);
+
+            // Reading the configuration waits until it is loaded
+            assertTrue(re.isPackageInRegion("internal", "xyz"));
+            assertTrue(re.isLoaded());
+            assertTrue(re.isPackageInRegion("global", "org.extra"));
+            assertEquals("true", re.getRegistrationProperties().get(RegionConstants.LOAD_IN_BACKGROUND));
+        } finally {
+            re.close();
+        }
+
+        // A file that cannot be read results in a configuration without regions
+        Mockito.when(ctx.getProperty(PROPERTIES_RESOURCE_PREFIX + REGION_PACKAGE_FILENAME))
+                .thenReturn(new File("does-not-exist.properties").getAbsolutePath());
+        RegionConfiguration empty = new RegionConfiguration(ctx);
+        try {
+            assertTrue(empty.getRegionPackageMap().isEmpty());
+            assertTrue(empty.getBsnVerMap().isEmpty());
+        } finally {
+            empty.close();
+        }
+    }
+
     @Test
     public void testRegionOrderProperty() throws Exception {
         BundleContext ctx = Mockito.mock(BundleContext.class);
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.osgi.framework.Version;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegionEnforcementStatsTest {
+    @Test
+    public void testCallCounters() {
+        RegionEnforcementStats stats = new RegionEnforcementStats(null);
+        stats.recordCall(100);
+        stats.recordCall(300);
+        stats.recordCall(200);
+
+        assertEquals(3, stats.getCallCount());
+        assertEquals(600, stats.getCumulativeLatencyNanos());
+        assertEquals(300, stats.getMaxLatencyNanos());
+        assertTrue(stats.getCallRate() > 0);
+
+        stats.resetCounters();
+        assertEquals(0, stats.getCallCount());
+        assertEquals(0, stats.getCumulativeLatencyNanos());
+        assertEquals(0, stats.getMaxLatencyNanos());
+    }
+
+    @Test
+    public void testDenials() {
+        RegionEnforcementStats stats = new RegionEnforcementStats(null);
+        for (int i = 0; i < RegionEnforcementStats.MAX_DENIALS + 5; i++) {
+            stats.recordDenial("d" + i);
+        }
+
+        assertEquals(RegionEnforcementStats.MAX_DENIALS + 5, stats.getDenialCount());
+        assertArrayEquals(new String[] {"d104", "d103"}, stats.dumpDenials(2));
+        assertEquals(RegionEnforcementStats.MAX_DENIALS, stats.dumpDenials(1000).length);
+        assertEquals(0, stats.dumpDenials(-1).length);
+
+        stats.resetCounters();
+        assertEquals(0, stats.getDenialCount());
+        assertEquals(0, stats.dumpDenials(10).length);
+    }
+
+    @Test
+    public void testConfigurationAttributes() {
+        Map<Map.Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(new AbstractMap.SimpleEntry<>("b1", new Version(1, 0, 0)), Collections.singletonList("g:b1:1"));
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("g:b1:1", Collections.singleton("f1"));
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Arrays.asList("global", "r1"));
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("global", new HashSet<>(Arrays.asList("a.b.c", "d.e.f")));
+        rpmap.put("r1", Collections.singleton("x.y.z"));
+
+        RegionConfiguration cfg =
+                new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+        RegionEnforcementStats stats = new RegionEnforcementStats(cfg);
+
+        assertEquals(1, stats.getBundleCount());
+        assertEquals(1, stats.getFeatureCount());
+        assertEquals(2, stats.getRegionCount());
+        assertEquals(3, stats.getPackageCount());
+        assertEquals(cfg.getGeneration(), stats.getConfigurationGeneration());
+        assertTrue(stats.getEstimatedConfigurationHeapBytes() > 0);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.Collections;
+import java.util.Hashtable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RegionEnforcerTest {
+    @Test
+    public void testApplySettings() {
+        RegionConfiguration cfg = new RegionConfiguration(
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.emptySet());
+        RegionEnforcementStats stats = new RegionEnforcementStats(cfg);
+        RegionEnforcer enforcer = new RegionEnforcer(cfg, stats, Long.MAX_VALUE);
+
+        ResolverHookImpl hook = (ResolverHookImpl) enforcer.begin(null);
+        assertEquals(Long.MAX_VALUE, hook.slowCallThresholdNanos);
+        assertNull(hook.logLimiter);
+        VisibilityCache cache = hook.visibilityCache;
+
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put(HookSettings.LOG_SUPPRESSION_WINDOW, "60000");
+        props.put(HookSettings.SLOW_CALL_THRESHOLD, "5");
+        enforcer.applySettings(HookSettings.defaults(Long.MAX_VALUE).with(props));
+        hook = (ResolverHookImpl) enforcer.begin(null);
+        assertEquals(5000000, hook.slowCallThresholdNanos);
+        // The cache is kept as its size did not change
+        assertSame(cache, hook.visibilityCache);
+        assertEquals(60000000000L, hook.logLimiter.getWindowNanos());
+
+        // A threshold from the framework properties can be disabled
+        Hashtable<String, Object> off = new Hashtable<>();
+        off.put(HookSettings.SLOW_CALL_THRESHOLD, "off");
+        assertEquals(Long.MAX_VALUE, HookSettings.defaults(5000000).with(off).slowCallThresholdNanos);
+        off.put(HookSettings.SLOW_CALL_THRESHOLD, "-1");
+        assertEquals(5000000, HookSettings.defaults(5000000).with(off).slowCallThresholdNanos);
+
+        props.put(HookSettings.CACHE_SIZE, "0");
+        props.put(HookSettings.METRICS, "false");
+        props.put(HookSettings.DECISIONS_SIZE, "16");
+        enforcer.applySettings(HookSettings.defaults(Long.MAX_VALUE).with(props));
+        hook = (ResolverHookImpl) enforcer.begin(null);
+        assertNull(hook.visibilityCache);
+        assertFalse(stats.isRecording());
+        stats.recordCall(100);
+        stats.recordDecision(1, "org.foo", 2, 3, null);
+        assertEquals(0, stats.getCallCount());
+
+        props.put(HookSettings.CACHE_SIZE, "10");
+        props.put(HookSettings.METRICS, "true");
+        enforcer.applySettings(HookSettings.defaults(Long.MAX_VALUE).with(props));
+        hook = (ResolverHookImpl) enforcer.begin(null);
+        assertNotSame(cache, hook.visibilityCache);
+        assertTrue(stats.isRecording());
+        for (int i = 0; i < 20; i++) {
+            stats.recordDecision(1, "org.foo", 2, 3, null);
+        }
+        int[] count = new int[1];
+        stats.visitDecisions((seq, requirer, pkg, removed, kept, region) -> count[0]++);
+        assertEquals(16, count[0]);
+    }
+
+    @Test
+    public void testDenialLogLimiter() {
+        DenialLogLimiter limiter = new DenialLogLimiter(Long.MAX_VALUE);
+        assertTrue(limiter.shouldLog(1, "org.foo"));
+        assertFalse(limiter.shouldLog(1, "org.foo"));
+        assertTrue(limiter.shouldLog(2, "org.foo"));
+        assertTrue(limiter.shouldLog(1, "org.bar"));
+
+        limiter = new DenialLogLimiter(1);
+        assertTrue(limiter.shouldLog(1, "org.foo"));
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < 10) {
+            // wait for the window to pass
+        }
+        assertTrue(limiter.shouldLog(1, "org.foo"));
+    }
+}
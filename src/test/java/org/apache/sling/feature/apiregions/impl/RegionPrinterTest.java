@@ -22,6 +22,9 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.stream.Collectors;
 
 import org.junit.Before;
@@ -36,6 +39,7 @@ import static org.apache.sling.feature.apiregions.impl.RegionConstants.IDBSNVER_
 import static org.apache.sling.feature.apiregions.impl.RegionConstants.PROPERTIES_RESOURCE_PREFIX;
 import static org.apache.sling.feature.apiregions.impl.RegionConstants.REGION_PACKAGE_FILENAME;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -49,6 +53,7 @@ public class RegionPrinterTest {
     @Before
     public void setup() {
         regionConfiguration = mock(RegionConfiguration.class);
+        when(regionConfiguration.isLoaded()).thenReturn(true);
         bundleContext = mock(BundleContext.class);
         sw = new StringWriter();
         pw = new PrintWriter(sw);
@@ -95,6 +100,53 @@ public class RegionPrinterTest {
 
         RegionPrinter printer = new RegionPrinter(bundleContext, regionConfiguration);
         printer.printConfiguration(pw);
-        assertEquals(loadResource("printer/populated.txt"), sw.toString());
+        // The heap usage is an estimate, which is covered by testHeapUsage
+        String output = sw.toString();
+        int heapUsage = output.indexOf("\n\nHeap Usage");
+        assertEquals(loadResource("printer/populated.txt"), output.substring(0, heapUsage));
+        assertTrue(output.contains("\n\nPackage Filter\n"));
+    }
+
+    @Test
+    public void testDecisions() {
+        RegionEnforcementStats stats = new RegionEnforcementStats(null);
+        stats.recordDecision(12, "org.foo.api", -1, 7, "global");
+        stats.recordDecision(12, "org.foo.impl", 9, -1, null);
+
+        RegionPrinter printer = new RegionPrinter(bundleContext, regionConfiguration, stats);
+        printer.printDecisions(pw);
+        assertEquals(
+                " - #1 bundle 12 -> org.foo.impl: removed 9, kept -, region -\n"
+                        + " - #0 bundle 12 -> org.foo.api: removed -, kept 7, region global\n",
+                sw.toString().replace(System.lineSeparator(), "\n"));
+
+
+        // The MBean operation filters the decisions, an empty filter returns all decisions
+        assertEquals(
+                Arrays.asList("#0 bundle 12 -> org.foo.api: removed -, kept 7, region global"),
+                Arrays.asList(stats.recentDecisions("org.foo.api")));
+        assertEquals(2, stats.recentDecisions("").length);
+    }
+
+    @Test
+    public void testHeapUsage() {
+        RegionConfiguration cfg = new RegionConfiguration(
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.emptyMap(),
+                Collections.singletonMap("global", new HashSet<>(Arrays.asList("org.foo.api", "org.bar.api"))),
+                Collections.emptySet());
+        RegionPrinter printer = new RegionPrinter(bundleContext, cfg);
+        printer.printHeapUsage(pw);
+        String[] lines = sw.toString().split(System.lineSeparator());
+        assertEquals(6, lines.length);
+        assertTrue(lines[0].startsWith(" - bsnVerMap: "));
+        assertTrue(lines[3].startsWith(" - regionPackageMap: "));
+        assertTrue(lines[4].startsWith(" - packageFilter: "));
+        assertEquals(" - total: " + cfg.getEstimatedHeapUsage() + " bytes for 2 package entries", lines[5]);
+
+        sw.getBuffer().setLength(0);
+        printer.printPackageFilter(pw);
+        assertTrue(sw.toString().startsWith(" - 2 packages, 64 bits, 7 hash functions, false positive rate "));
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RegionVisibilityImplTest {
+    @Test
+    public void testVisibility() {
+        RegionVisibilityImpl rv = new RegionVisibilityImpl(createConfiguration());
+
+        Bundle b1 = mockBundle(1, "b1");
+        Bundle b2 = mockBundle(2, "b2");
+        Bundle b3 = mockBundle(3, "b3");
+        Bundle b4 = mockBundle(4, "b4");
+        Bundle sb = mockBundle(0, "system.bundle");
+
+        // b3 is in the same feature as b1
+        assertTrue(rv.isVisible(b3, "p1", b1));
+        assertTrue(rv.isVisible(b3, "px", b1));
+        // b2 is in r2 which is before r1 in the region order
+        assertFalse(rv.isVisible(b2, "p1", b1));
+        assertTrue(rv.isVisible(b2, "pg", b1));
+        // b1 can see r2 as it is an ancestor of r1
+        assertTrue(rv.isVisible(b1, "p2", b2));
+        // Not exported in any region
+        assertFalse(rv.isVisible(b2, "px", b1));
+        // Same bundle, system bundle and bundles not in a feature are always visible
+        assertTrue(rv.isVisible(b1, "px", b1));
+        assertTrue(rv.isVisible(b2, "px", sb));
+        assertTrue(rv.isVisible(b2, "px", b4));
+    }
+
+    @Test
+    public void testVisiblePackages() {
+        RegionVisibilityImpl rv = new RegionVisibilityImpl(createConfiguration());
+
+        Bundle b1 = mockBundle(1, "b1");
+        Bundle b2 = mockBundle(2, "b2");
+        Bundle b3 = mockBundle(3, "b3");
+
+        assertEquals(new HashSet<>(Arrays.asList("p1", "p2", "pg")), rv.visiblePackages(b1));
+        assertEquals(new HashSet<>(Arrays.asList("p2", "pg")), rv.visiblePackages(b2));
+
+        // Bundles in the same features share the result
+        assertSame(rv.visiblePackages(b1), rv.visiblePackages(b3));
+    }
+
+    private static RegionConfiguration createConfiguration() {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(new AbstractMap.SimpleEntry<>("b1", new Version(1, 0, 0)), Collections.singletonList("a1"));
+        bsnvermap.put(new AbstractMap.SimpleEntry<>("b2", new Version(1, 0, 0)), Collections.singletonList("a2"));
+        bsnvermap.put(new AbstractMap.SimpleEntry<>("b3", new Version(1, 0, 0)), Collections.singletonList("a3"));
+
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("a1", Collections.singleton("f1"));
+        bfmap.put("a2", Collections.singleton("f2"));
+        bfmap.put("a3", Collections.singleton("f1"));
+
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Arrays.asList("global", "r1"));
+        frmap.put("f2", Arrays.asList("global", "r2"));
+        frmap.put("__region.order__", Arrays.asList("global", "r2", "r1"));
+
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("global", Collections.singleton("pg"));
+        rpmap.put("r1", Collections.singleton("p1"));
+        rpmap.put("r2", Collections.singleton("p2"));
+
+        return new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+    }
+
+    private static Bundle mockBundle(long id, String bsn) {
+        Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getBundleId()).thenReturn(id);
+        Mockito.when(bundle.getSymbolicName()).thenReturn(bsn);
+        Mockito.when(bundle.getVersion()).thenReturn(new Version(1, 0, 0));
+        Mockito.when(bundle.getLocation()).thenReturn("test://" + bsn);
+        return bundle;
+    }
+}
@@ -25,11 +25,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
 
+import org.apache.sling.feature.apiregions.impl.RegionEnforcer.HookState;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.osgi.framework.Bundle;
@@ -39,7 +43,9 @@ import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
 import org.osgi.framework.wiring.BundleRevision;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ResolverHookImplTest {
     @Test
@@ -897,6 +903,340 @@ public class ResolverHookImplTest {
         assertEquals("There were no candidates, there still are none", 0, candidates1.size());
     }
 
+    @Test
+    public void testStatisticsAndDecisionsRecorded() {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("providing.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b1"));
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("requiring.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b2"));
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("other.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b3"));
+
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("b1", Collections.singleton("f1"));
+        bfmap.put("b2", Collections.singleton("f2"));
+        bfmap.put("b3", Collections.singleton("f3"));
+
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Collections.singletonList("r1"));
+        frmap.put("f2", Collections.singletonList("r1"));
+        frmap.put("f3", Collections.singletonList("r3"));
+        frmap.put("__region.order__", Arrays.asList("global", "r1", "r3"));
+
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("r1", Collections.singleton("org.foo"));
+
+        RegionConfiguration cfg =
+                new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+        RegionEnforcementStats stats = new RegionEnforcementStats(cfg);
+        ResolverHookImpl rh = new ResolverHookImpl(cfg, stats, HookState.NONE);
+
+        BundleRequirement req = mockRequirement("b2", bsnvermap);
+        BundleCapability cap1 = mockCapability("org.foo", "b1", bsnvermap);
+        BundleCapability cap3 = mockCapability("org.foo", "b3", bsnvermap);
+        List<BundleCapability> candidates = new ArrayList<>(Arrays.asList(cap1, cap3));
+        rh.filterMatches(req, candidates);
+        assertEquals(Collections.singletonList(cap1), candidates);
+
+        assertEquals(1, stats.getCallCount());
+        assertEquals(1, stats.getDenialCount());
+        assertEquals(1, stats.dumpDenials(10).length);
+        assertArrayEquals(new String[] {"(none)=1"}, stats.topRegionDenials(10));
+        assertArrayEquals(new String[] {"f2 -> f3=1"}, stats.topFeatureDenials(10));
+
+        List<String> decisions = new ArrayList<>();
+        stats.visitDecisions((seq, requirer, pkg, removed, kept, region) ->
+                decisions.add(requirer + " " + pkg + " " + removed + " " + kept + " " + region));
+        assertEquals(Collections.singletonList("2 org.foo 3 1 r1"), decisions);
+    }
+
+    @Test
+    public void testWildcardPackages() {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("providing.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b1"));
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("requiring.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b2"));
+
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("b1", Collections.singleton("f1"));
+        bfmap.put("b2", Collections.singleton("f2"));
+
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Arrays.asList("global", "r1"));
+        frmap.put("f2", Collections.singletonList("r1"));
+        frmap.put("__region.order__", Arrays.asList("global", "r1"));
+
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("global", Collections.singleton("org.foo.api.*"));
+
+        RegionConfiguration cfg =
+                new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+        ResolverHookImpl rh = new ResolverHookImpl(cfg);
+
+        BundleRequirement req = mockRequirement("b2", bsnvermap);
+        List<BundleCapability> candidates1 =
+                new ArrayList<>(Collections.singletonList(mockCapability("org.foo.api.sub", "b1", bsnvermap)));
+        rh.filterMatches(req, candidates1);
+        assertEquals(1, candidates1.size());
+
+        List<BundleCapability> candidates2 =
+                new ArrayList<>(Collections.singletonList(mockCapability("org.foo.impl", "b1", bsnvermap)));
+        rh.filterMatches(req, candidates2);
+        assertEquals(0, candidates2.size());
+
+        // Wildcard entries can also be provided by factory configurations
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put(RegionConstants.PROP_regionPackage, "r1=org.foo.*");
+        cfg.setConfig("some.pid", props);
+        candidates2 = new ArrayList<>(Collections.singletonList(mockCapability("org.foo.impl", "b1", bsnvermap)));
+        rh.filterMatches(req, candidates2);
+        assertEquals(1, candidates2.size());
+    }
+
+    @Test
+    public void testDynamicImportCache() {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("providing.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b1"));
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("requiring.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b2"));
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("other.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b3"));
+
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("b1", Collections.singleton("f1"));
+        bfmap.put("b2", Collections.singleton("f2"));
+        bfmap.put("b3", Collections.singleton("f3"));
+
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Collections.singletonList("r1"));
+        frmap.put("f2", Collections.singletonList("r1"));
+        frmap.put("f3", Collections.singletonList("r3"));
+        frmap.put("__region.order__", Arrays.asList("global", "r1", "r3"));
+
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("r1", Collections.singleton("org.foo"));
+
+        RegionConfiguration cfg =
+                new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+        RegionEnforcementStats stats = new RegionEnforcementStats(cfg);
+        HookState state = new HookState(HookState.NONE.settings, new VisibilityCache(), null, false);
+
+        BundleRequirement req = mockRequirement("b2", bsnvermap);
+        Mockito.when(req.getDirectives())
+                .thenReturn(Collections.singletonMap(
+                        PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE, PackageNamespace.RESOLUTION_DYNAMIC));
+        BundleCapability cap1 = mockCapability("org.foo", "b1", bsnvermap);
+        BundleCapability cap3 = mockCapability("org.foo", "b3", bsnvermap);
+
+        for (int i = 0; i < 2; i++) {
+            ResolverHookImpl rh = new ResolverHookImpl(cfg, stats, state);
+            List<BundleCapability> candidates = new ArrayList<>(Arrays.asList(cap1, cap3));
+            rh.filterMatches(req, candidates);
+            assertEquals(Collections.singletonList(cap1), candidates);
+        }
+        assertEquals(2, stats.getCacheMissCount());
+        assertEquals(2, stats.getCacheHitCount());
+        assertEquals(0.5, stats.getCacheHitRatio(), 0.0001);
+        // Denials served from the cache are attributed in the same way
+        assertArrayEquals(new String[] {"f2 -> f3=2"}, stats.topFeatureDenials(10));
+
+        // A configuration change invalidates the cache
+        cfg.setConfig("some.pid", new Hashtable<>());
+        new ResolverHookImpl(cfg, stats, state)
+                .filterMatches(req, new ArrayList<>(Arrays.asList(cap1, cap3)));
+        assertEquals(4, stats.getCacheMissCount());
+
+        // Requirements that are not dynamic do not use the cache
+        new ResolverHookImpl(cfg, stats, state)
+                .filterMatches(mockRequirement("b2", bsnvermap), new ArrayList<>(Arrays.asList(cap1, cap3)));
+        assertEquals(6, stats.getCacheHitCount() + stats.getCacheMissCount());
+    }
+
+    @Test
+    public void testEnforcedRegions() {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("providing.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b1"));
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("requiring.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b2"));
+
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("b1", Collections.singleton("f1"));
+        bfmap.put("b2", Collections.singleton("f2"));
+
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Collections.singletonList("r1"));
+        frmap.put("f2", Collections.singletonList("r2"));
+        frmap.put("__region.order__", Arrays.asList("global", "r2", "r1"));
+
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("r1", Collections.singleton("org.foo"));
+
+        BundleRequirement req = mockRequirement("b2", bsnvermap);
+        BundleCapability cap = mockCapability("org.foo", "b1", bsnvermap);
+
+        // Neither bundle is in an enforced region, the candidate is kept
+        RegionConfiguration cfg = new RegionConfiguration(
+                bsnvermap, bfmap, frmap, rpmap, Collections.emptySet(), Collections.singleton("r3"));
+        RegionEnforcementStats stats = new RegionEnforcementStats(cfg);
+        List<BundleCapability> candidates = new ArrayList<>(Collections.singletonList(cap));
+        new ResolverHookImpl(cfg, stats, HookState.NONE).filterMatches(req, candidates);
+        assertEquals(Collections.singletonList(cap), candidates);
+        assertEquals(1, stats.getBypassedCallCount());
+        assertEquals(0, stats.getDenialCount());
+
+        // The provider is in an enforced region
+        cfg = new RegionConfiguration(
+                bsnvermap, bfmap, frmap, rpmap, Collections.emptySet(), Collections.singleton("r1"));
+        stats = new RegionEnforcementStats(cfg);
+        candidates = new ArrayList<>(Collections.singletonList(cap));
+        new ResolverHookImpl(cfg, stats, HookState.NONE).filterMatches(req, candidates);
+        assertEquals(0, candidates.size());
+        assertEquals(0, stats.getBypassedCallCount());
+
+        // The requirer is in an enforced region
+        cfg = new RegionConfiguration(
+                bsnvermap, bfmap, frmap, rpmap, Collections.emptySet(), Collections.singleton("r2"));
+        candidates = new ArrayList<>(Collections.singletonList(cap));
+        new ResolverHookImpl(cfg).filterMatches(req, candidates);
+        assertEquals(0, candidates.size());
+    }
+
+    @Test
+    public void testUnmanagedBundles() {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("providing.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b1"));
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("b1", Collections.singleton("f1"));
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Collections.singletonList("r1"));
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("r1", Collections.singleton("org.foo"));
+
+        BundleRequirement req = mockRequirement(5, "requiring.bundle", new Version(1, 0, 0));
+        BundleCapability cap = mockCapability("org.foo", 6, "other.bundle", new Version(1, 0, 0));
+        BundleCapability sysCap = mockCapability("org.foo", 0, "system.bundle", new Version(1, 0, 0));
+        BundleCapability managedCap = mockCapability("org.foo", "b1", bsnvermap);
+
+        // Neither the requirer nor the candidates are in a feature
+        RegionConfiguration cfg = new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+        RegionEnforcementStats stats = new RegionEnforcementStats(cfg);
+        ResolverHookImpl hook = new ResolverHookImpl(cfg, stats, HookState.NONE);
+        List<BundleCapability> candidates = new ArrayList<>(Arrays.asList(cap, sysCap));
+        hook.filterMatches(req, candidates);
+        assertEquals(Arrays.asList(cap, sysCap), candidates);
+        assertEquals(1, stats.getBypassedCallCount());
+
+        RegionConfiguration.Snapshot s = cfg.getSnapshot();
+        assertEquals(UnmanagedBundles.UNMANAGED, s.unmanagedBundles.get(5));
+        assertEquals(UnmanagedBundles.UNMANAGED, s.unmanagedBundles.get(6));
+        assertEquals(UnmanagedBundles.UNKNOWN, s.unmanagedBundles.get(0));
+
+        // A candidate in a feature is evaluated as before
+        candidates = new ArrayList<>(Arrays.asList(cap, managedCap));
+        hook.filterMatches(req, candidates);
+        assertEquals(Collections.singletonList(cap), candidates);
+        assertEquals(1, stats.getBypassedCallCount());
+        assertEquals(UnmanagedBundles.MANAGED, s.unmanagedBundles.get(1));
+
+        // Default regions apply to all bundles
+        cfg = new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.singleton("r1"));
+        stats = new RegionEnforcementStats(cfg);
+        candidates = new ArrayList<>(Arrays.asList(cap, sysCap));
+        new ResolverHookImpl(cfg, stats, HookState.NONE).filterMatches(req, candidates);
+        assertEquals(0, stats.getBypassedCallCount());
+    }
+
+    @Test
+    public void testSlowCallReport() {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("providing.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b1"));
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("requiring.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b2"));
+        bsnvermap.put(
+                new AbstractMap.SimpleEntry<String, Version>("other.bundle", new Version(1, 0, 0)),
+                Collections.singletonList("b3"));
+
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("b1", Collections.singleton("f1"));
+        bfmap.put("b2", Collections.singleton("f2"));
+        bfmap.put("b3", new HashSet<>(Arrays.asList("f3", "f4")));
+
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Collections.singletonList("r1"));
+        frmap.put("f2", Collections.singletonList("r1"));
+        frmap.put("f3", Collections.singletonList("r3"));
+        frmap.put("f4", Collections.singletonList("r3"));
+        frmap.put("__region.order__", Arrays.asList("global", "r1", "r3"));
+
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("r1", Collections.singleton("org.foo"));
+
+        RegionConfiguration cfg =
+                new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+        RegionEnforcementStats stats = new RegionEnforcementStats(cfg);
+        // A negative threshold reports every call
+        ResolverHookImpl rh =
+                new ResolverHookImpl(cfg, stats, new HookState(HookSettings.defaults(-1), null, null, false));
+
+        List<LogRecord> records = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (ResolverHookImpl.SLOW_CALL_MESSAGE.equals(record.getMessage())) {
+                    records.add(record);
+                }
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        };
+        Activator.LOG.addHandler(handler);
+        try {
+            BundleRequirement req = mockRequirement("b2", bsnvermap);
+            BundleCapability cap1 = mockCapability("org.foo", "b1", bsnvermap);
+            BundleCapability cap3 = mockCapability("org.foo", "b3", bsnvermap);
+            List<BundleCapability> candidates = new ArrayList<>(Arrays.asList(cap1, cap3));
+            rh.filterMatches(req, candidates);
+            assertEquals(Collections.singletonList(cap1), candidates);
+        } finally {
+            Activator.LOG.removeHandler(handler);
+        }
+
+        assertEquals(1, stats.getSlowCallCount());
+        assertEquals("Analysing the slow call should not record it again", 1, stats.getDenialCount());
+        assertEquals(1, records.size());
+
+        SlowCallReport report = (SlowCallReport) records.get(0).getParameters()[0];
+        assertEquals("org.foo", report.packageName);
+        assertEquals(2, report.requirer);
+        assertEquals(2, report.candidates);
+        assertEquals(Arrays.asList(1, 2), report.featuresPerCandidate);
+        assertEquals(1, report.kept);
+        assertTrue(report.sharedRegionScan > 0);
+    }
+
     private BundleCapability mockCapability(
             String pkgName, String bid, Map<Entry<String, Version>, List<String>> bsnvermap) {
         for (Map.Entry<Map.Entry<String, Version>, List<String>> entry : bsnvermap.entrySet()) {
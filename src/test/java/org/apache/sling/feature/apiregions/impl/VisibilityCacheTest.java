@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VisibilityCacheTest {
+    @Test
+    public void testGetPut() {
+        VisibilityCache cache = new VisibilityCache();
+        assertSame(VisibilityCache.MISS, cache.get(1, 10, "a.b", 20));
+
+        cache.put(1, 10, "a.b", 20, "r1");
+        cache.put(1, 10, "a.b", 21, null);
+        cache.put(1, 10, "a.b", 22, ResolverHookImpl.NOT_COVERED);
+        assertEquals("r1", cache.get(1, 10, "a.b", 20));
+        assertNull(cache.get(1, 10, "a.b", 21));
+        assertSame(ResolverHookImpl.NOT_COVERED, cache.get(1, 10, "a.b", 22));
+        assertSame(VisibilityCache.MISS, cache.get(1, 11, "a.b", 20));
+        assertSame(VisibilityCache.MISS, cache.get(1, 10, "a.c", 20));
+    }
+
+    @Test
+    public void testGenerationChange() {
+        VisibilityCache cache = new VisibilityCache();
+        cache.put(1, 10, "a.b", 20, "r1");
+        assertSame(VisibilityCache.MISS, cache.get(2, 10, "a.b", 20));
+
+        cache.put(2, 10, "a.b", 20, "r2");
+        assertEquals("r2", cache.get(2, 10, "a.b", 20));
+
+        // Values computed with an older configuration are not stored
+        cache.put(1, 10, "a.c", 20, "r1");
+        assertSame(VisibilityCache.MISS, cache.get(1, 10, "a.c", 20));
+        assertSame(VisibilityCache.MISS, cache.get(2, 10, "a.c", 20));
+    }
+
+    @Test
+    public void testCapacity() {
+        VisibilityCache cache = new VisibilityCache(4);
+        cache.put(1, 10, "a.a", 20, "r1");
+        cache.put(1, 10, "a.b", 20, "r1");
+        assertEquals("r1", cache.get(1, 10, "a.a", 20));
+        assertEquals(3, cache.size());
+
+        // a.b was not used since the segment was filled and is evicted, a.a is retained
+        cache.put(1, 10, "a.c", 20, "r1");
+        cache.put(1, 10, "a.d", 20, "r1");
+        assertEquals("r1", cache.get(1, 10, "a.a", 20));
+        assertSame(VisibilityCache.MISS, cache.get(1, 10, "a.b", 20));
+
+        // Using a.a again filled the segment, a.c was not used since it was added
+        List<String> visited = new ArrayList<>();
+        assertTrue(cache.visit(1, (requirer, packageName, provider, region) -> visited.add(packageName)));
+        Collections.sort(visited);
+        assertEquals(Arrays.asList("a.a", "a.d"), visited);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.feature.apiregions.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.apache.sling.feature.apiregions.impl.WhatIfAnalyzer.Result;
+import org.junit.Test;
+import org.osgi.framework.Version;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WhatIfAnalyzerTest {
+    private static final String MANIFESTS = "Bundle-SymbolicName: b1;singleton:=true\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Export-Package: org.foo.api;version=\"1.2\";uses:=\"org.foo.spi,org.bar\",\n"
+            + " org.foo.spi;version=1.0,org.foo.impl\n"
+            + "\n"
+            + "Bundle-SymbolicName: b2\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Import-Package: org.foo.api;version=\"[1.0,2)\",org.foo.spi,org.foo.impl,org.unknown\n"
+            + "\n"
+            + "Bundle-SymbolicName: b3\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Import-Package: org.foo.api;version=\"[2.0,3)\",org.foo.impl\n";
+
+    @Test
+    public void testReadManifests() throws Exception {
+        List<BundleManifest> manifests = BundleManifest.readAll(new StringReader(MANIFESTS));
+        assertEquals(3, manifests.size());
+
+        BundleManifest b1 = manifests.get(0);
+        assertEquals("b1", b1.symbolicName);
+        assertEquals(new Version(1, 0, 0), b1.version);
+        assertEquals(
+                Arrays.asList("org.foo.api", "org.foo.spi", "org.foo.impl"), new ArrayList<>(b1.exports.keySet()));
+        assertEquals(new Version(1, 2, 0), b1.exports.get("org.foo.api"));
+        assertEquals(Version.emptyVersion, b1.exports.get("org.foo.impl"));
+
+        BundleManifest b2 = manifests.get(1);
+        assertEquals(4, b2.imports.size());
+        assertTrue(b2.imports.get("org.foo.api").includes(new Version(1, 2, 0)));
+    }
+
+    @Test
+    public void testAnalyze() throws Exception {
+        Map<Entry<String, Version>, List<String>> bsnvermap = new HashMap<>();
+        bsnvermap.put(new AbstractMap.SimpleEntry<>("b1", new Version(1, 0, 0)), Collections.singletonList("a1"));
+        bsnvermap.put(new AbstractMap.SimpleEntry<>("b2", new Version(1, 0, 0)), Collections.singletonList("a2"));
+        bsnvermap.put(new AbstractMap.SimpleEntry<>("b3", new Version(1, 0, 0)), Collections.singletonList("a3"));
+
+        Map<String, Set<String>> bfmap = new HashMap<>();
+        bfmap.put("a1", Collections.singleton("f1"));
+        bfmap.put("a2", Collections.singleton("f2"));
+        bfmap.put("a3", Collections.singleton("f3"));
+
+        Map<String, List<String>> frmap = new HashMap<>();
+        frmap.put("f1", Arrays.asList("global", "internal"));
+        frmap.put("f2", Collections.singletonList("global"));
+        frmap.put("f3", Collections.singletonList("global"));
+        frmap.put("__region.order__", Arrays.asList("global", "internal"));
+
+        Map<String, Set<String>> rpmap = new HashMap<>();
+        rpmap.put("global", Collections.singleton("org.foo.api"));
+        rpmap.put("internal", Collections.singleton("org.foo.spi"));
+
+        RegionConfiguration cfg = new RegionConfiguration(bsnvermap, bfmap, frmap, rpmap, Collections.emptySet());
+
+        Result result = new WhatIfAnalyzer(cfg)
+                .analyze(BundleManifest.readAll(new StringReader(MANIFESTS)), new ForkJoinPool(2));
+
+        // org.foo.api is in the global region and org.unknown is not exported, and b3 cannot
+        // import org.foo.api because of its version
+        assertEquals(
+                Arrays.asList(
+                        "b2 1.0.0 -> org.foo.spi from b1 1.0.0",
+                        "b2 1.0.0 -> org.foo.impl from b1 1.0.0",
+                        "b3 1.0.0 -> org.foo.impl from b1 1.0.0"),
+                result.denials.stream().map(Object::toString).collect(Collectors.toList()));
+        assertArrayEquals(new String[] {"(none)=2", "internal=1"}, result.stats.topRegionDenials(10));
+        assertArrayEquals(new String[] {"f2 -> f1=2", "f3 -> f1=1"}, result.stats.topFeatureDenials(10));
+    }
+
+    @Test
+    public void testUsage() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        assertEquals(2, WhatIfAnalyzer.run(new String[] {"a.properties"}, new PrintStream(out), new PrintStream(err)));
+        assertEquals(0, out.size());
+        assertTrue(err.toString().startsWith("Usage: "));
+    }
+}